@@ -102,6 +102,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.IntPredicate;
 
 /** Adapter class to fill in data for the Call Log. */
 public class CallLogAdapter extends GroupingListAdapter
@@ -676,6 +677,7 @@ public class CallLogAdapter extends GroupingListAdapter
     if (PermissionsUtil.hasPermission(activity, android.Manifest.permission.READ_CONTACTS)) {
       contactInfoCache.start();
     }
+    callLogCache.start();
     isSpamEnabled = SpamComponent.get(activity).spamSettings().isSpamEnabled();
     getDuo().registerListener(this);
     notifyDataSetChanged();
@@ -713,6 +715,17 @@ public class CallLogAdapter extends GroupingListAdapter
     callLogGroupBuilder.addGroups(cursor);
   }
 
+  @Override
+  protected int regroup(
+      Cursor cursor, int start, int minEnd, IntPredicate isUnchangedGroupStart) {
+    return callLogGroupBuilder.regroup(cursor, start, minEnd, isUnchangedGroupStart);
+  }
+
+  @Override
+  protected int getHeaderItemCount() {
+    return callLogAlertManager.isEmpty() ? 0 : 1;
+  }
+
   @Override
   public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
     if (viewType == VIEW_TYPE_ALERT) {
@@ -22,17 +22,21 @@ import android.provider.CallLog.Calls;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.telephony.PhoneNumberUtils;
-import android.text.TextUtils;
+import android.util.SparseBooleanArray;
 import com.android.contacts.common.util.DateUtils;
 import com.android.dialer.calllogutils.CallbackActionHelper;
 import com.android.dialer.calllogutils.CallbackActionHelper.CallbackAction;
 import com.android.dialer.compat.telephony.TelephonyManagerCompat;
+import com.android.dialer.duo.DuoComponent;
 import com.android.dialer.inject.ApplicationContext;
 import com.android.dialer.phonenumbercache.CallLogQuery;
 import com.android.dialer.phonenumberutil.PhoneNumberHelper;
 
 import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Objects;
+import java.util.function.IntPredicate;
 
 /**
  * Groups together calls in the call log. The primary grouping attempts to group together calls to
@@ -63,6 +67,9 @@ public class CallLogGroupBuilder {
   /** The object on which the groups are created. */
   private final GroupCreator groupCreator;
 
+  /** When the day groups were last computed for all rows, or 0 if they never were. */
+  private long groupingTimeMillis;
+
   public CallLogGroupBuilder(@ApplicationContext Context appContext, GroupCreator groupCreator) {
     this.appContext = appContext;
     this.groupCreator = groupCreator;
@@ -88,107 +95,214 @@ public class CallLogGroupBuilder {
     groupCreator.clearDayGroups();
 
     // Get current system time, used for calculating which day group calls belong to.
+    groupingTimeMillis = System.currentTimeMillis();
+
+    addGroups(cursor, 0, count, position -> false, groupingTimeMillis);
+  }
+
+  /**
+   * Regroups the rows of {@code cursor} from {@code start} after some rows were inserted or
+   * removed. The rows before {@code start} must be grouped as before, and {@code start} must be the
+   * first row of a group. Unlike {@link #addGroups(Cursor)}, the day groups and callback actions
+   * of the rows that are not regrouped are kept.
+   *
+   * <p>Grouping stops at the first group starting at or after {@code minEnd} for which {@code
+   * isUnchangedGroupStart} is true: the rows from there on are the same as before, so are their
+   * groups.
+   *
+   * @return the position grouping stopped at, which is the cursor count if it went through all
+   *     rows, or -1 if nothing was grouped because all rows have to be regrouped with {@link
+   *     #addGroups(Cursor)}, e.g. since the day changed
+   */
+  public int regroup(Cursor cursor, int start, int minEnd, IntPredicate isUnchangedGroupStart) {
     long currentTime = System.currentTimeMillis();
-    cursor.moveToFirst();
-
-    // Determine the day group for the first call in the cursor.
-    final long firstDate = cursor.getLong(CallLogQuery.DATE);
-    final long firstRowId = cursor.getLong(CallLogQuery.ID);
-    int groupDayGroup = getDayGroup(firstDate, currentTime);
-    groupCreator.setDayGroup(firstRowId, groupDayGroup);
-
-    // Determine the callback action for the first call in the cursor.
-    String groupNumber = cursor.getString(CallLogQuery.NUMBER);
-    String groupAccountComponentName = cursor.getString(CallLogQuery.ACCOUNT_COMPONENT_NAME);
-    int groupFeatures = cursor.getInt(CallLogQuery.FEATURES);
-    int groupCallbackAction =
-        CallbackActionHelper.getCallbackAction(
-            appContext, groupNumber, groupFeatures, groupAccountComponentName);
-    groupCreator.setCallbackAction(firstRowId, groupCallbackAction);
-
-    // Instantiate other group values to those of the first call in the cursor.
-    String groupAccountId = cursor.getString(CallLogQuery.ACCOUNT_ID);
-    String groupPostDialDigits = cursor.getString(CallLogQuery.POST_DIAL_DIGITS);
-    String groupViaNumbers = cursor.getString(CallLogQuery.VIA_NUMBER);
-    int groupCallType = cursor.getInt(CallLogQuery.CALL_TYPE);
-    int groupSize = 1;
-
-    String number;
-    String numberPostDialDigits;
-    String numberViaNumbers;
-    int callType;
-    int callFeatures;
-    String accountComponentName;
-    String accountId;
-    int callbackAction;
-
-    while (cursor.moveToNext()) {
-      // Obtain the values for the current call to group.
-      number = cursor.getString(CallLogQuery.NUMBER);
-      numberPostDialDigits = cursor.getString(CallLogQuery.POST_DIAL_DIGITS);
-      numberViaNumbers = cursor.getString(CallLogQuery.VIA_NUMBER);
-      callType = cursor.getInt(CallLogQuery.CALL_TYPE);
-      callFeatures = cursor.getInt(CallLogQuery.FEATURES);
-      accountComponentName = cursor.getString(CallLogQuery.ACCOUNT_COMPONENT_NAME);
-      accountId = cursor.getString(CallLogQuery.ACCOUNT_ID);
-      callbackAction =
-          CallbackActionHelper.getCallbackAction(
-              appContext, number, callFeatures, accountComponentName);
-
-      final boolean isSameNumber = equalNumbers(groupNumber, number);
-      final boolean isSamePostDialDigits = groupPostDialDigits.equals(numberPostDialDigits);
-      final boolean isSameViaNumbers = groupViaNumbers.equals(numberViaNumbers);
-      final boolean isSameAccount =
-          isSameAccount(groupAccountComponentName, accountComponentName, groupAccountId, accountId);
-      final boolean isSameCallbackAction = (groupCallbackAction == callbackAction);
+    if (groupingTimeMillis == 0
+        || DateUtils.getDayDifference(TIME_ZONE, groupingTimeMillis, currentTime) != 0) {
+      return -1;
+    }
+    if (start >= cursor.getCount()) {
+      return start;
+    }
+    return addGroups(cursor, start, minEnd, isUnchangedGroupStart, currentTime);
+  }
+
+  private int addGroups(
+      Cursor cursor,
+      int start,
+      int minEnd,
+      IntPredicate isUnchangedGroupStart,
+      long currentTime) {
+    final int count = cursor.getCount();
+    GroupingKeys keys = new GroupingKeys(cursor, start, count - start);
+
+    // Determine the day group and the callback action for the first call.
+    keys.read(start);
+    int groupStart = start;
+    int groupDayGroup = getDayGroup(keys.getDate(start), currentTime);
+    groupCreator.setDayGroup(keys.getRowId(start), groupDayGroup);
+    groupCreator.setCallbackAction(keys.getRowId(start), keys.getCallbackAction(start));
+
+    for (int position = start + 1; position < count; position++) {
+      keys.read(position);
+      if (!keys.belongToSameGroup(groupStart, position)) {
+        // Create a group for the previous group of calls, which does not include the
+        // current call.
+        groupCreator.addGroup(groupStart, position - groupStart);
+
+        if (position >= minEnd && isUnchangedGroupStart.test(position)) {
+          return position;
+        }
+
+        // The call group has changed. Determine the day group for the new call group.
+        groupDayGroup = getDayGroup(keys.getDate(position), currentTime);
+
+        // Start a new group; it will include at least the current call.
+        groupStart = position;
+      }
+
+      // Save the callback action and the day group associated with the current call.
+      groupCreator.setCallbackAction(keys.getRowId(position), keys.getCallbackAction(groupStart));
+      groupCreator.setDayGroup(keys.getRowId(position), groupDayGroup);
+    }
+
+    // Create a group for the last set of calls.
+    groupCreator.addGroup(groupStart, count - groupStart);
+    return count;
+  }
+
+  /**
+   * The values of the rows of a cursor that decide whether calls are grouped together, read in a
+   * single pass. Strings are replaced by IDs that are equal iff the strings are, and the callback
+   * action is resolved with one Duo lookup per account component name.
+   */
+  private final class GroupingKeys {
+    private final Cursor cursor;
+    /** The cursor position of index 0 of the arrays. */
+    private final int offset;
+
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final SparseBooleanArray isDuoAccount = new SparseBooleanArray();
+
+    private final long[] rowIds;
+    private final long[] dates;
+    private final String[] numbers;
+    private final int[] numberIds;
+    private final int[] postDialDigitsIds;
+    private final int[] viaNumberIds;
+    /** The IDs of the account component name and the account ID, packed. */
+    private final long[] accountKeys;
+    private final int[] callTypes;
+    private final int[] assistedDialingFeatures;
+    private final int[] callbackActions;
+
+    /** The last pair of number IDs passed to {@link #equalNumbers(int, int)}, and its result. */
+    private int lastNumberId1 = -1;
+    private int lastNumberId2 = -1;
+    private boolean lastNumbersEqual;
+
+    GroupingKeys(Cursor cursor, int offset, int capacity) {
+      this.cursor = cursor;
+      this.offset = offset;
+      rowIds = new long[capacity];
+      dates = new long[capacity];
+      numbers = new String[capacity];
+      numberIds = new int[capacity];
+      postDialDigitsIds = new int[capacity];
+      viaNumberIds = new int[capacity];
+      accountKeys = new long[capacity];
+      callTypes = new int[capacity];
+      assistedDialingFeatures = new int[capacity];
+      callbackActions = new int[capacity];
+    }
 
+    /** Reads the row at {@code position} of the cursor. */
+    void read(int position) {
+      cursor.moveToPosition(position);
+      int index = position - offset;
+      String number = cursor.getString(CallLogQuery.NUMBER);
+      String accountComponentName = cursor.getString(CallLogQuery.ACCOUNT_COMPONENT_NAME);
+      int features = cursor.getInt(CallLogQuery.FEATURES);
+
+      int accountComponentNameId = getStringId(accountComponentName);
+      int accountId = getStringId(cursor.getString(CallLogQuery.ACCOUNT_ID));
+
+      int duoIndex = isDuoAccount.indexOfKey(accountComponentNameId);
+      boolean isDuoCall;
+      if (duoIndex >= 0) {
+        isDuoCall = isDuoAccount.valueAt(duoIndex);
+      } else {
+        isDuoCall = DuoComponent.get(appContext).getDuo().isDuoAccount(accountComponentName);
+        isDuoAccount.put(accountComponentNameId, isDuoCall);
+      }
+
+      rowIds[index] = cursor.getLong(CallLogQuery.ID);
+      dates[index] = cursor.getLong(CallLogQuery.DATE);
+      numbers[index] = number;
+      numberIds[index] = getStringId(number);
+      postDialDigitsIds[index] = getStringId(cursor.getString(CallLogQuery.POST_DIAL_DIGITS));
+      viaNumberIds[index] = getStringId(cursor.getString(CallLogQuery.VIA_NUMBER));
+      accountKeys[index] = ((long) accountComponentNameId << 32) | accountId;
+      callTypes[index] = cursor.getInt(CallLogQuery.CALL_TYPE);
+      assistedDialingFeatures[index] = features & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING;
+      callbackActions[index] = CallbackActionHelper.getCallbackAction(number, features, isDuoCall);
+    }
+
+    long getRowId(int position) {
+      return rowIds[position - offset];
+    }
+
+    long getDate(int position) {
+      return dates[position - offset];
+    }
+
+    int getCallbackAction(int position) {
+      return callbackActions[position - offset];
+    }
+
+    /**
+     * Whether the call at {@code position} belongs to the group started by the call at {@code
+     * groupStart}. Both rows must have been read.
+     */
+    boolean belongToSameGroup(int groupStart, int position) {
+      int group = groupStart - offset;
+      int index = position - offset;
+      int callType = callTypes[index];
+      int groupCallType = callTypes[group];
       // Group calls with the following criteria:
       // (1) Calls with the same number, account, and callback action should be in the same group;
       // (2) Never group voice mails; and
       // (3) Only group blocked calls with other blocked calls.
       // (4) Only group calls that were assisted dialed with other calls that were assisted dialed.
-      if (isSameNumber
-          && isSameAccount
-          && isSamePostDialDigits
-          && isSameViaNumbers
-          && isSameCallbackAction
+      return accountKeys[group] == accountKeys[index]
+          && postDialDigitsIds[group] == postDialDigitsIds[index]
+          && viaNumberIds[group] == viaNumberIds[index]
+          && callbackActions[group] == callbackActions[index]
           && areBothNotVoicemail(callType, groupCallType)
           && (areBothNotBlocked(callType, groupCallType) || areBothBlocked(callType, groupCallType))
-          && meetsAssistedDialingGroupingCriteria(groupFeatures, callFeatures)) {
-        // Increment the size of the group to include the current call, but do not create
-        // the group until finding a call that does not match.
-        groupSize++;
-      } else {
-        // The call group has changed. Determine the day group for the new call group.
-        final long date = cursor.getLong(CallLogQuery.DATE);
-        groupDayGroup = getDayGroup(date, currentTime);
-
-        // Create a group for the previous group of calls, which does not include the
-        // current call.
-        groupCreator.addGroup(cursor.getPosition() - groupSize, groupSize);
+          && assistedDialingFeatures[group] == assistedDialingFeatures[index]
+          && equalNumbers(group, index);
+    }
 
-        // Start a new group; it will include at least the current call.
-        groupSize = 1;
-
-        // Update the group values to those of the current call.
-        groupNumber = number;
-        groupPostDialDigits = numberPostDialDigits;
-        groupViaNumbers = numberViaNumbers;
-        groupCallType = callType;
-        groupAccountComponentName = accountComponentName;
-        groupAccountId = accountId;
-        groupCallbackAction = callbackAction;
-        groupFeatures = callFeatures;
+    private boolean equalNumbers(int index1, int index2) {
+      int numberId1 = numberIds[index1];
+      int numberId2 = numberIds[index2];
+      if (numberId1 != lastNumberId1 || numberId2 != lastNumberId2) {
+        lastNumberId1 = numberId1;
+        lastNumberId2 = numberId2;
+        lastNumbersEqual =
+            CallLogGroupBuilder.this.equalNumbers(numbers[index1], numbers[index2]);
       }
-
-      // Save the callback action and the day group associated with the current call.
-      final long currentCallId = cursor.getLong(CallLogQuery.ID);
-      groupCreator.setCallbackAction(currentCallId, groupCallbackAction);
-      groupCreator.setDayGroup(currentCallId, groupDayGroup);
+      return lastNumbersEqual;
     }
 
-    // Create a group for the last set of calls.
-    groupCreator.addGroup(count - groupSize, groupSize);
+    private int getStringId(@Nullable String string) {
+      Integer id = stringIds.get(string);
+      if (id == null) {
+        id = stringIds.size();
+        stringIds.put(string, id);
+      }
+      return id;
+    }
   }
 
   /**
@@ -213,10 +327,6 @@ public class CallLogGroupBuilder {
     return PhoneNumberUtils.compare(number1, number2);
   }
 
-  private boolean isSameAccount(String name1, String name2, String id1, String id2) {
-    return TextUtils.equals(name1, name2) && TextUtils.equals(id1, id2);
-  }
-
   @VisibleForTesting
   boolean compareSipAddresses(@Nullable String number1, @Nullable String number2) {
     if (number1 == null || number2 == null) {
@@ -279,13 +389,6 @@ public class CallLogGroupBuilder {
     return callType == Calls.BLOCKED_TYPE && groupCallType == Calls.BLOCKED_TYPE;
   }
 
-  private boolean meetsAssistedDialingGroupingCriteria(int groupFeatures, int callFeatures) {
-    int groupAssisted = (groupFeatures & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING);
-    int callAssisted = (callFeatures & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING);
-
-    return groupAssisted == callAssisted;
-  }
-
   public interface GroupCreator {
 
     /**
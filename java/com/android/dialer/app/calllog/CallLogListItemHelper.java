@@ -64,6 +64,7 @@ import com.android.dialer.common.LogUtil;
     Assert.isWorkerThread();
     details.callLocationAndDate = phoneCallDetailsHelper.getCallLocationAndDate(details);
     details.callDescription = getCallDescription(details);
+    phoneCallDetailsHelper.prepareDisplayTexts(details);
   }
 
   /**
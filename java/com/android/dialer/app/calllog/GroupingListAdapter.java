@@ -22,6 +22,8 @@ import android.database.DataSetObserver;
 import android.os.Handler;
 import android.support.v7.widget.RecyclerView;
 import android.util.SparseIntArray;
+import com.android.dialer.phonenumbercache.CallLogQuery;
+import java.util.function.IntPredicate;
 
 /**
  * Maintains a list that groups items into groups of consecutive elements which are disjoint, that
@@ -29,6 +31,10 @@ import android.util.SparseIntArray;
  * received from or made to the same phone number.
  *
  * <p>There are two integers stored as metadata for every list item in the adapter.
+ *
+ * <p>When the cursor changes, only the rows that were inserted or removed, found by call ID and
+ * date, are regrouped if possible, and the list is notified of the groups inserted, removed and
+ * changed instead of the whole data set.
  */
 abstract class GroupingListAdapter extends RecyclerView.Adapter {
 
@@ -60,6 +66,11 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
 
   private int itemCount;
 
+  /** The call ID and date of each row of {@link #cursor}, to find the rows changed by the next. */
+  private long[] rowIds;
+
+  private long[] rowDates;
+
   public GroupingListAdapter() {
     reset();
   }
@@ -69,6 +80,22 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
    */
   protected abstract void addGroups(Cursor cursor);
 
+  /**
+   * Regroups the rows of {@code cursor} from {@code start} by calling {@link #addGroup} for each
+   * group, until the first group starting at or after {@code minEnd} for which {@code
+   * isUnchangedGroupStart} is true.
+   *
+   * @return the cursor position grouping stopped at, or -1 if the whole cursor must be grouped with
+   *     {@link #addGroups} instead
+   */
+  protected abstract int regroup(
+      Cursor cursor, int start, int minEnd, IntPredicate isUnchangedGroupStart);
+
+  /** Returns the number of list items shown before the groups. */
+  protected int getHeaderItemCount() {
+    return 0;
+  }
+
   protected abstract void onContentChanged();
 
   public void changeCursor(Cursor cursor) {
@@ -82,20 +109,140 @@ abstract class GroupingListAdapter extends RecyclerView.Adapter {
       this.cursor.close();
     }
 
+    boolean hadCursor = this.cursor != null;
+    long[] oldRowIds = rowIds;
+    long[] oldRowDates = rowDates;
+    SparseIntArray oldGroupMetadata = groupMetadata;
+
     // Reset whenever the cursor is changed.
     reset();
     this.cursor = cursor;
 
     if (cursor != null) {
-      addGroups(this.cursor);
+      readRowVersions(cursor);
 
-      // Calculate the item count by subtracting group child counts from the cursor count.
-      itemCount = groupMetadata.size();
+      if (!hadCursor || !regroupChangedRows(oldRowIds, oldRowDates, oldGroupMetadata)) {
+        reset();
+        addGroups(this.cursor);
+
+        // Calculate the item count by subtracting group child counts from the cursor count.
+        itemCount = groupMetadata.size();
+        notifyDataSetChanged();
+      }
 
       cursor.registerContentObserver(changeObserver);
       cursor.registerDataSetObserver(dataSetObserver);
-      notifyDataSetChanged();
+    } else {
+      rowIds = null;
+      rowDates = null;
+    }
+  }
+
+  private void readRowVersions(Cursor cursor) {
+    int count = cursor.getCount();
+    rowIds = new long[count];
+    rowDates = new long[count];
+    cursor.moveToPosition(-1);
+    for (int position = 0; cursor.moveToNext(); position++) {
+      rowIds[position] = cursor.getLong(CallLogQuery.ID);
+      rowDates[position] = cursor.getLong(CallLogQuery.DATE);
+    }
+  }
+
+  /**
+   * Regroups only the rows that were inserted or removed compared to the previous cursor, and
+   * notifies the list of the groups that changed.
+   *
+   * @return false if the whole cursor has to be regrouped instead
+   */
+  private boolean regroupChangedRows(
+      long[] oldRowIds, long[] oldRowDates, SparseIntArray oldGroupMetadata) {
+    int oldCount = oldRowIds.length;
+    int newCount = rowIds.length;
+    int commonCount = Math.min(oldCount, newCount);
+
+    // The rows before "prefix" and the last "suffix" rows are the same as before.
+    int prefix = 0;
+    while (prefix < commonCount
+        && oldRowIds[prefix] == rowIds[prefix]
+        && oldRowDates[prefix] == rowDates[prefix]) {
+      prefix++;
+    }
+    int suffix = 0;
+    while (suffix < commonCount - prefix
+        && oldRowIds[oldCount - 1 - suffix] == rowIds[newCount - 1 - suffix]
+        && oldRowDates[oldCount - 1 - suffix] == rowDates[newCount - 1 - suffix]) {
+      suffix++;
+    }
+    int delta = newCount - oldCount;
+
+    // The group holding the last unchanged row of the prefix may take new rows, so regroup from
+    // its start. The groups before it are kept.
+    int keptGroupCount = prefix == 0 ? 0 : getGroupIndex(oldGroupMetadata, prefix - 1);
+    int start =
+        keptGroupCount < oldGroupMetadata.size() ? oldGroupMetadata.keyAt(keptGroupCount) : 0;
+    for (int i = 0; i < keptGroupCount; i++) {
+      groupMetadata.append(oldGroupMetadata.keyAt(i), oldGroupMetadata.valueAt(i));
+    }
+
+    int end =
+        regroup(
+            cursor,
+            start,
+            newCount - suffix,
+            position ->
+                position - delta >= oldCount - suffix
+                    && oldGroupMetadata.indexOfKey(position - delta) >= 0);
+    if (end < 0) {
+      return false;
+    }
+
+    // The groups from "end" on are the same as before, shifted.
+    int newChangedGroupCount = groupMetadata.size() - keptGroupCount;
+    int oldEndIndex =
+        end < newCount ? oldGroupMetadata.indexOfKey(end - delta) : oldGroupMetadata.size();
+    int oldChangedGroupCount = oldEndIndex - keptGroupCount;
+    for (int i = oldEndIndex; i < oldGroupMetadata.size(); i++) {
+      groupMetadata.append(oldGroupMetadata.keyAt(i) + delta, oldGroupMetadata.valueAt(i));
+    }
+    itemCount = groupMetadata.size();
+
+    int headerItemCount = getHeaderItemCount();
+    if (newChangedGroupCount > oldChangedGroupCount) {
+      notifyItemRangeInserted(
+          headerItemCount + keptGroupCount + oldChangedGroupCount,
+          newChangedGroupCount - oldChangedGroupCount);
+    } else if (newChangedGroupCount < oldChangedGroupCount) {
+      notifyItemRangeRemoved(
+          headerItemCount + keptGroupCount + newChangedGroupCount,
+          oldChangedGroupCount - newChangedGroupCount);
+    }
+    // Columns that don't affect grouping, e.g. cached contact info, may have changed in any row.
+    int changedItemCount = keptGroupCount + Math.min(newChangedGroupCount, oldChangedGroupCount);
+    if (changedItemCount > 0) {
+      notifyItemRangeChanged(headerItemCount, changedItemCount);
+    }
+    int shiftedGroupCount = itemCount - keptGroupCount - newChangedGroupCount;
+    if (shiftedGroupCount > 0) {
+      notifyItemRangeChanged(
+          headerItemCount + keptGroupCount + newChangedGroupCount, shiftedGroupCount);
+    }
+    return true;
+  }
+
+  /** Returns the index of the group holding the row at {@code cursorPosition}. */
+  private static int getGroupIndex(SparseIntArray groupMetadata, int cursorPosition) {
+    int low = 0;
+    int high = groupMetadata.size() - 1;
+    while (low < high) {
+      int middle = (low + high + 1) >>> 1;
+      if (groupMetadata.keyAt(middle) <= cursorPosition) {
+        low = middle;
+      } else {
+        high = middle - 1;
+      }
     }
+    return low;
   }
 
   /**
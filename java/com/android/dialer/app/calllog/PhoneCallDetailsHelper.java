@@ -24,6 +24,7 @@ import android.graphics.Typeface;
 import android.net.Uri;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
+import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.os.BuildCompat;
 import android.telecom.PhoneAccount;
@@ -150,8 +151,62 @@ public class PhoneCallDetailsHelper
     return true;
   }
 
+  /**
+   * Computes the texts shown by {@link #setPhoneCallDetails(PhoneCallDetailsViews,
+   * PhoneCallDetails)}, so that binding only has to set them. Called on a background thread once
+   * the contact info is known, see {@link CallLogListItemHelper#updatePhoneCallDetails}. Requires
+   * {@link PhoneCallDetails#callLocationAndDate}.
+   */
+  public void prepareDisplayTexts(PhoneCallDetails details) {
+    int count = details.callTypes.length;
+    boolean isVoicemail = count > 0 && details.callTypes[0] == Calls.VOICEMAIL_TYPE;
+
+    details.showWifiIcon = MotorolaUtils.shouldShowWifiIconInCallLog(context, details.features);
+
+    // Show the total call count only if there are more than the maximum number of icons.
+    details.detailText = getDetailText(count > MAX_CALL_TYPE_ICONS ? count : null, details);
+
+    // Set the account label if it exists.
+    String accountLabel = callLogCache.getAccountLabel(details.accountHandle);
+    if (!TextUtils.isEmpty(details.viaNumber)) {
+      if (!TextUtils.isEmpty(accountLabel)) {
+        accountLabel =
+            resources.getString(
+                R.string.call_log_via_number_phone_account, accountLabel, details.viaNumber);
+      } else {
+        accountLabel = resources.getString(R.string.call_log_via_number, details.viaNumber);
+      }
+    }
+    if (!TextUtils.isEmpty(accountLabel)) {
+      details.accountLabelText = accountLabel;
+      int color = callLogCache.getAccountColor(details.accountHandle);
+      if (color == PhoneAccount.NO_HIGHLIGHT_COLOR) {
+        int defaultColor = R.color.dialer_secondary_text_color;
+        details.accountLabelColor = context.getResources().getColor(defaultColor);
+      } else {
+        details.accountLabelColor = color;
+      }
+    } else {
+      details.accountLabelText = null;
+    }
+
+    prepareNameText(details);
+
+    if (isVoicemail) {
+      details.transcriptionBranding = getTranscriptionBranding(details);
+      details.showTranscriptionRating =
+          shouldShowTranscriptionRating(details.transcriptionState, details.accountHandle);
+    }
+
+    details.hasDisplayTexts = true;
+  }
+
   /** Fills the call details views with content. */
   public void setPhoneCallDetails(PhoneCallDetailsViews views, PhoneCallDetails details) {
+    if (!details.hasDisplayTexts) {
+      prepareDisplayTexts(details);
+    }
+
     // Display up to a given number of icons.
     views.callTypeIcons.clear();
     int count = details.callTypes.length;
@@ -168,8 +223,7 @@ public class PhoneCallDetailsHelper
         (details.features & Calls.FEATURES_VIDEO) == Calls.FEATURES_VIDEO);
     views.callTypeIcons.setShowHd(
         (details.features & Calls.FEATURES_HD_CALL) == Calls.FEATURES_HD_CALL);
-    views.callTypeIcons.setShowWifi(
-        MotorolaUtils.shouldShowWifiIconInCallLog(context, details.features));
+    views.callTypeIcons.setShowWifi(details.showWifiIcon);
     views.callTypeIcons.setShowAssistedDialed(
         (details.features & TelephonyManagerCompat.FEATURES_ASSISTED_DIALING)
             == TelephonyManagerCompat.FEATURES_ASSISTED_DIALING);
@@ -179,82 +233,31 @@ public class PhoneCallDetailsHelper
     views.callTypeIcons.requestLayout();
     views.callTypeIcons.setVisibility(View.VISIBLE);
 
-    // Show the total call count only if there are more than the maximum number of icons.
-    final Integer callCount;
-    if (count > MAX_CALL_TYPE_ICONS) {
-      callCount = count;
-    } else {
-      callCount = null;
-    }
-
     // Set the call count, location, date and if voicemail, set the duration.
-    setDetailText(views, callCount, details);
+    views.callLocationAndDate.setText(details.detailText);
 
     // Set the account label if it exists.
-    String accountLabel = callLogCache.getAccountLabel(details.accountHandle);
-    if (!TextUtils.isEmpty(details.viaNumber)) {
-      if (!TextUtils.isEmpty(accountLabel)) {
-        accountLabel =
-            resources.getString(
-                R.string.call_log_via_number_phone_account, accountLabel, details.viaNumber);
-      } else {
-        accountLabel = resources.getString(R.string.call_log_via_number, details.viaNumber);
-      }
-    }
-    if (!TextUtils.isEmpty(accountLabel)) {
+    if (details.accountLabelText != null) {
       views.callAccountLabel.setVisibility(View.VISIBLE);
-      views.callAccountLabel.setText(accountLabel);
-      int color = callLogCache.getAccountColor(details.accountHandle);
-      if (color == PhoneAccount.NO_HIGHLIGHT_COLOR) {
-        int defaultColor = R.color.dialer_secondary_text_color;
-        views.callAccountLabel.setTextColor(context.getResources().getColor(defaultColor));
-      } else {
-        views.callAccountLabel.setTextColor(color);
-      }
+      views.callAccountLabel.setText(details.accountLabelText);
+      views.callAccountLabel.setTextColor(details.accountLabelColor);
     } else {
       views.callAccountLabel.setVisibility(View.GONE);
     }
 
-    setNameView(views, details);
+    views.nameView.setText(details.nameText);
+    views.nameView.setTextDirection(details.nameTextDirection);
 
     if (isVoicemail) {
       int relevantLinkTypes = Linkify.EMAIL_ADDRESSES | Linkify.PHONE_NUMBERS | Linkify.WEB_URLS;
       views.voicemailTranscriptionView.setAutoLinkMask(relevantLinkTypes);
 
-      String transcript = "";
-      String branding = "";
-      if (!TextUtils.isEmpty(details.transcription)) {
-        transcript = details.transcription;
-
-        if (details.transcriptionState == VoicemailCompat.TRANSCRIPTION_AVAILABLE
-            || details.transcriptionState == VoicemailCompat.TRANSCRIPTION_AVAILABLE_AND_RATED) {
-          branding = resources.getString(R.string.voicemail_transcription_branding_text);
-        }
-      } else {
-        switch (details.transcriptionState) {
-          case VoicemailCompat.TRANSCRIPTION_IN_PROGRESS:
-            branding = resources.getString(R.string.voicemail_transcription_in_progress);
-            break;
-          case VoicemailCompat.TRANSCRIPTION_FAILED_NO_SPEECH_DETECTED:
-            branding = resources.getString(R.string.voicemail_transcription_failed_no_speech);
-            break;
-          case VoicemailCompat.TRANSCRIPTION_FAILED_LANGUAGE_NOT_SUPPORTED:
-            branding =
-                resources.getString(R.string.voicemail_transcription_failed_language_not_supported);
-            break;
-          case VoicemailCompat.TRANSCRIPTION_FAILED:
-            branding = resources.getString(R.string.voicemail_transcription_failed);
-            break;
-          default:
-            break; // Fall through
-        }
-      }
-
-      views.voicemailTranscriptionView.setText(transcript);
-      views.voicemailTranscriptionBrandingView.setText(branding);
+      views.voicemailTranscriptionView.setText(
+          TextUtils.isEmpty(details.transcription) ? "" : details.transcription);
+      views.voicemailTranscriptionBrandingView.setText(details.transcriptionBranding);
 
       View ratingView = views.voicemailTranscriptionRatingView;
-      if (shouldShowTranscriptionRating(details.transcriptionState, details.accountHandle)) {
+      if (details.showTranscriptionRating) {
         ratingView.setVisibility(View.VISIBLE);
         ratingView
             .findViewById(R.id.voicemail_transcription_rating_good)
@@ -285,24 +288,46 @@ public class PhoneCallDetailsHelper
             : ThemeComponent.get(context).theme().getTextColorPrimary());
   }
 
-  private void setNameView(PhoneCallDetailsViews views, PhoneCallDetails details) {
+  private void prepareNameText(PhoneCallDetails details) {
     if (!TextUtils.isEmpty(details.getPreferredName())) {
-      views.nameView.setText(details.getPreferredName());
+      details.nameText = details.getPreferredName();
       // "nameView" is updated from phone number to contact name after number matching.
       // Since TextDirection remains at View.TEXT_DIRECTION_LTR, initialize it.
-      views.nameView.setTextDirection(View.TEXT_DIRECTION_INHERIT);
+      details.nameTextDirection = View.TEXT_DIRECTION_INHERIT;
       return;
     }
 
     if (PhoneNumberUtils.isEmergencyNumber(details.displayNumber)) {
-      views.nameView.setText(R.string.emergency_number);
-      views.nameView.setTextDirection(View.TEXT_DIRECTION_INHERIT);
+      details.nameText = resources.getString(R.string.emergency_number);
+      details.nameTextDirection = View.TEXT_DIRECTION_INHERIT;
       return;
     }
 
-    views.nameView.setText(details.displayNumber);
+    details.nameText = details.displayNumber;
     // We have a real phone number as "nameView" so make it always LTR
-    views.nameView.setTextDirection(View.TEXT_DIRECTION_LTR);
+    details.nameTextDirection = View.TEXT_DIRECTION_LTR;
+  }
+
+  private String getTranscriptionBranding(PhoneCallDetails details) {
+    if (!TextUtils.isEmpty(details.transcription)) {
+      if (details.transcriptionState == VoicemailCompat.TRANSCRIPTION_AVAILABLE
+          || details.transcriptionState == VoicemailCompat.TRANSCRIPTION_AVAILABLE_AND_RATED) {
+        return resources.getString(R.string.voicemail_transcription_branding_text);
+      }
+      return "";
+    }
+    switch (details.transcriptionState) {
+      case VoicemailCompat.TRANSCRIPTION_IN_PROGRESS:
+        return resources.getString(R.string.voicemail_transcription_in_progress);
+      case VoicemailCompat.TRANSCRIPTION_FAILED_NO_SPEECH_DETECTED:
+        return resources.getString(R.string.voicemail_transcription_failed_no_speech);
+      case VoicemailCompat.TRANSCRIPTION_FAILED_LANGUAGE_NOT_SUPPORTED:
+        return resources.getString(R.string.voicemail_transcription_failed_language_not_supported);
+      case VoicemailCompat.TRANSCRIPTION_FAILED:
+        return resources.getString(R.string.voicemail_transcription_failed);
+      default:
+        return "";
+    }
   }
 
   private boolean shouldShowTranscriptionRating(
@@ -580,9 +605,8 @@ public class PhoneCallDetailsHelper
     }
   }
 
-  /** Sets the call count, date, and if it is a voicemail, sets the duration. */
-  private void setDetailText(
-      PhoneCallDetailsViews views, Integer callCount, PhoneCallDetails details) {
+  /** Returns the call count, date, and if it is a voicemail, the duration. */
+  private CharSequence getDetailText(@Nullable Integer callCount, PhoneCallDetails details) {
     // Combine the count (if present) and the date.
     CharSequence dateText = details.callLocationAndDate;
     final CharSequence text;
@@ -593,14 +617,10 @@ public class PhoneCallDetailsHelper
     }
 
     if (details.callTypes[0] == Calls.VOICEMAIL_TYPE && details.duration > 0) {
-      views.callLocationAndDate.setText(
-          resources.getString(
-              R.string.voicemailCallLogDateTimeFormatWithDuration,
-              text,
-              getVoicemailDuration(details)));
-    } else {
-      views.callLocationAndDate.setText(text);
+      return resources.getString(
+          R.string.voicemailCallLogDateTimeFormatWithDuration, text, getVoicemailDuration(details));
     }
+    return text;
   }
 
   private String getVoicemailDuration(PhoneCallDetails details) {
@@ -16,15 +16,23 @@
 
 package com.android.dialer.app.calllog.calllogcache;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.telecom.PhoneAccountHandle;
+import android.telecom.TelecomManager;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import com.android.dialer.app.calllog.CallLogAdapter;
 import com.android.dialer.calllogutils.PhoneAccountUtils;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.telecom.TelecomUtil;
 import com.android.dialer.util.CallUtil;
+import java.util.Collections;
 import java.util.Map;
 import javax.annotation.concurrent.ThreadSafe;
 
@@ -35,6 +43,12 @@ import javax.annotation.concurrent.ThreadSafe;
  * cache is to reduce the number of cross-process requests to TelecomManager, which can negatively
  * affect performance.
  *
+ * <p>The metadata of the call capable phone accounts is read on a background thread once {@link
+ * #start()} is called, and again whenever a phone account is registered or unregistered. Readers
+ * get it from an immutable snapshot without locking, so binding a row does not wait for Telecom.
+ * Only accounts missing from the snapshot, e.g. the ones that are no longer call capable, are still
+ * looked up on the calling thread.
+ *
  * <p>This is designed with the specific use case of the {@link CallLogAdapter} in mind.
  */
 @ThreadSafe
@@ -44,33 +58,62 @@ public class CallLogCache {
 
   protected final Context context;
 
-  private boolean hasCheckedForVideoAvailability;
-  private int videoAvailability;
-  private final Map<PhoneAccountHandle, String> phoneAccountLabelCache = new ArrayMap<>();
-  private final Map<PhoneAccountHandle, Integer> phoneAccountColorCache = new ArrayMap<>();
-  private final Map<PhoneAccountHandle, Boolean> phoneAccountCallWithNoteCache = new ArrayMap<>();
+  private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+  /** Incremented whenever the snapshot being built is no longer wanted. Guarded by this. */
+  private int snapshotGeneration;
+
+  private boolean receiverRegistered;
+
+  private final BroadcastReceiver phoneAccountChangedReceiver =
+      new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+          loadSnapshot();
+        }
+      };
 
   public CallLogCache(Context context) {
     this.context = context;
   }
 
-  public synchronized void reset() {
-    phoneAccountLabelCache.clear();
-    phoneAccountColorCache.clear();
-    phoneAccountCallWithNoteCache.clear();
-    hasCheckedForVideoAvailability = false;
-    videoAvailability = 0;
+  /**
+   * Starts loading the phone account metadata in the background, and keeps it up to date until
+   * {@link #reset()}.
+   */
+  @MainThread
+  public void start() {
+    if (!receiverRegistered) {
+      IntentFilter filter = new IntentFilter();
+      filter.addAction(TelecomManager.ACTION_PHONE_ACCOUNT_REGISTERED);
+      filter.addAction(TelecomManager.ACTION_PHONE_ACCOUNT_UNREGISTERED);
+      context.registerReceiver(phoneAccountChangedReceiver, filter);
+      receiverRegistered = true;
+    }
+    loadSnapshot();
+  }
+
+  public void reset() {
+    synchronized (this) {
+      snapshotGeneration++;
+      snapshot = Snapshot.EMPTY;
+      if (receiverRegistered) {
+        context.unregisterReceiver(phoneAccountChangedReceiver);
+        receiverRegistered = false;
+      }
+    }
   }
 
   /**
    * Returns true if the given number is the number of the configured voicemail. To be able to
    * mock-out this, it is not a static method.
    */
-  public synchronized boolean isVoicemailNumber(
+  public boolean isVoicemailNumber(
       PhoneAccountHandle accountHandle, @Nullable CharSequence number) {
     if (TextUtils.isEmpty(number)) {
       return false;
     }
+    // Cached by TelecomUtil without locking.
     return TelecomUtil.isVoicemailNumber(context, accountHandle, number.toString());
   }
 
@@ -79,33 +122,25 @@ public class CallLogCache {
    * {@link android.provider.ContactsContract.CommonDataKinds.Phone#CARRIER_PRESENCE} column.
    */
   public boolean canRelyOnVideoPresence() {
-    if (!hasCheckedForVideoAvailability) {
+    Snapshot snapshot = this.snapshot;
+    int videoAvailability;
+    if (snapshot.hasVideoAvailability) {
+      videoAvailability = snapshot.videoAvailability;
+    } else {
       videoAvailability = CallUtil.getVideoCallingAvailability(context);
-      hasCheckedForVideoAvailability = true;
+      publish(snapshot, snapshot.withVideoAvailability(videoAvailability));
     }
     return (videoAvailability & CallUtil.VIDEO_CALLING_PRESENCE) != 0;
   }
 
   /** Extract account label from PhoneAccount object. */
-  public synchronized String getAccountLabel(PhoneAccountHandle accountHandle) {
-    if (phoneAccountLabelCache.containsKey(accountHandle)) {
-      return phoneAccountLabelCache.get(accountHandle);
-    } else {
-      String label = PhoneAccountUtils.getAccountLabel(context, accountHandle);
-      phoneAccountLabelCache.put(accountHandle, label);
-      return label;
-    }
+  public String getAccountLabel(PhoneAccountHandle accountHandle) {
+    return getAccountInfo(accountHandle).label;
   }
 
   /** Extract account color from PhoneAccount object. */
-  public synchronized int getAccountColor(PhoneAccountHandle accountHandle) {
-    if (phoneAccountColorCache.containsKey(accountHandle)) {
-      return phoneAccountColorCache.get(accountHandle);
-    } else {
-      Integer color = PhoneAccountUtils.getAccountColor(context, accountHandle);
-      phoneAccountColorCache.put(accountHandle, color);
-      return color;
-    }
+  public int getAccountColor(PhoneAccountHandle accountHandle) {
+    return getAccountInfo(accountHandle).color;
   }
 
   /**
@@ -115,14 +150,104 @@ public class CallLogCache {
    * @param accountHandle The PhoneAccount handle.
    * @return {@code true} if calling with a note is supported, {@code false} otherwise.
    */
-  public synchronized boolean doesAccountSupportCallSubject(PhoneAccountHandle accountHandle) {
-    if (phoneAccountCallWithNoteCache.containsKey(accountHandle)) {
-      return phoneAccountCallWithNoteCache.get(accountHandle);
-    } else {
-      Boolean supportsCallWithNote =
-          PhoneAccountUtils.getAccountSupportsCallSubject(context, accountHandle);
-      phoneAccountCallWithNoteCache.put(accountHandle, supportsCallWithNote);
-      return supportsCallWithNote;
+  public boolean doesAccountSupportCallSubject(PhoneAccountHandle accountHandle) {
+    return getAccountInfo(accountHandle).supportsCallSubject;
+  }
+
+  private AccountInfo getAccountInfo(@Nullable PhoneAccountHandle accountHandle) {
+    Snapshot snapshot = this.snapshot;
+    AccountInfo accountInfo = snapshot.accountInfos.get(accountHandle);
+    if (accountInfo == null) {
+      accountInfo = AccountInfo.load(context, accountHandle);
+      publish(snapshot, snapshot.withAccountInfo(accountHandle, accountInfo));
+    }
+    return accountInfo;
+  }
+
+  /** Replaces {@code expected} with {@code updated}, unless the snapshot changed meanwhile. */
+  private synchronized void publish(Snapshot expected, Snapshot updated) {
+    if (snapshot == expected) {
+      snapshot = updated;
+    }
+  }
+
+  private void loadSnapshot() {
+    int generation;
+    synchronized (this) {
+      generation = ++snapshotGeneration;
+    }
+    DialerExecutorComponent.get(context)
+        .backgroundExecutor()
+        .execute(
+            () -> {
+              Snapshot loaded = Snapshot.load(context);
+              synchronized (CallLogCache.this) {
+                if (generation == snapshotGeneration) {
+                  snapshot = loaded;
+                }
+              }
+            });
+  }
+
+  /** The metadata of a phone account shown in the call log. */
+  private static final class AccountInfo {
+    @Nullable final String label;
+    final int color;
+    final boolean supportsCallSubject;
+
+    private AccountInfo(@Nullable String label, int color, boolean supportsCallSubject) {
+      this.label = label;
+      this.color = color;
+      this.supportsCallSubject = supportsCallSubject;
+    }
+
+    static AccountInfo load(Context context, @Nullable PhoneAccountHandle accountHandle) {
+      return new AccountInfo(
+          PhoneAccountUtils.getAccountLabel(context, accountHandle),
+          PhoneAccountUtils.getAccountColor(context, accountHandle),
+          PhoneAccountUtils.getAccountSupportsCallSubject(context, accountHandle));
+    }
+  }
+
+  /** Immutable view of what is known about the phone accounts. */
+  private static final class Snapshot {
+    static final Snapshot EMPTY = new Snapshot(Collections.emptyMap(), false, 0);
+
+    final Map<PhoneAccountHandle, AccountInfo> accountInfos;
+    final boolean hasVideoAvailability;
+    final int videoAvailability;
+
+    private Snapshot(
+        Map<PhoneAccountHandle, AccountInfo> accountInfos,
+        boolean hasVideoAvailability,
+        int videoAvailability) {
+      this.accountInfos = accountInfos;
+      this.hasVideoAvailability = hasVideoAvailability;
+      this.videoAvailability = videoAvailability;
+    }
+
+    @WorkerThread
+    static Snapshot load(Context context) {
+      Map<PhoneAccountHandle, AccountInfo> accountInfos = new ArrayMap<>();
+      for (PhoneAccountHandle accountHandle : TelecomUtil.getCallCapablePhoneAccounts(context)) {
+        accountInfos.put(accountHandle, AccountInfo.load(context, accountHandle));
+      }
+      return new Snapshot(
+          Collections.unmodifiableMap(accountInfos),
+          true,
+          CallUtil.getVideoCallingAvailability(context));
+    }
+
+    Snapshot withAccountInfo(@Nullable PhoneAccountHandle accountHandle, AccountInfo accountInfo) {
+      Map<PhoneAccountHandle, AccountInfo> updated = new ArrayMap<>(accountInfos.size() + 1);
+      updated.putAll(accountInfos);
+      updated.put(accountHandle, accountInfo);
+      return new Snapshot(
+          Collections.unmodifiableMap(updated), hasVideoAvailability, videoAvailability);
+    }
+
+    Snapshot withVideoAvailability(int videoAvailability) {
+      return new Snapshot(accountInfos, true, videoAvailability);
     }
   }
 }
@@ -22,25 +22,30 @@ import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.logging.ContactSource.Type;
 import com.android.dialer.oem.CequintCallerIdManager;
 import com.android.dialer.phonenumbercache.ContactInfo;
 import com.android.dialer.phonenumbercache.ContactInfoHelper;
-import com.android.dialer.util.ExpirableCache;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This is a cache of contact details for the phone numbers in the call log. The key is the phone
  * number with the country in which the call was placed or received. The content of the cache is
  * expired (but not purged) whenever the application comes to the foreground.
  *
- * <p>This cache queues request for information and queries for information on a background thread,
- * so {@code start()} and {@code stop()} must be called to initiate or halt that thread's exeuction
- * as needed.
+ * <p>This cache queues request for information and queries for information on background threads,
+ * so {@code start()} and {@code stop()} must be called to initiate or halt those threads' execution
+ * as needed. Local lookups, Cequint lookups and remote directory lookups each have their own queue
+ * and threads, so that a slow remote directory does not hold up the local lookups of other rows.
  *
  * <p>TODO: Explore whether there is a pattern to remove external dependencies for starting and
  * stopping the query thread.
@@ -51,13 +56,21 @@ public class ContactInfoCache {
   private static final int START_THREAD = 2;
   private static final int START_PROCESSING_REQUESTS_DELAY_MS = 1000;
 
-  private final ExpirableCache<NumberWithCountryIso, ContactInfo> cache;
+  /** Updates found within this time are shown with a single redraw. About one frame. */
+  private static final int REDRAW_BATCH_DELAY_MS = 16;
+
+  private final ExpirableContactInfoCache cache;
+
   private final ContactInfoHelper contactInfoHelper;
   private final OnContactInfoChangedListener onContactInfoChangedListener;
-  private final BlockingQueue<ContactInfoRequest> updateRequests;
+  private final Stage localStage = new Stage("Local", 2);
+  private final Stage cequintStage = new Stage("Cequint", 1);
+  private final Stage remoteStage = new Stage("Remote", 2);
+  private final Stage[] stages = {localStage, cequintStage, remoteStage};
+  private final AtomicBoolean redrawScheduled = new AtomicBoolean();
   private final Handler handler;
-  private CequintCallerIdManager cequintCallerIdManager;
-  private QueryThread contactInfoQueryThread;
+  private volatile CequintCallerIdManager cequintCallerIdManager;
+  private boolean requestProcessingStarted;
   private volatile boolean requestProcessingDisabled = false;
 
   private static class InnerHandler extends Handler {
@@ -76,6 +89,7 @@ public class ContactInfoCache {
       }
       switch (msg.what) {
         case REDRAW:
+          reference.redrawScheduled.set(false);
           reference.onContactInfoChangedListener.onContactInfoChanged();
           break;
         case START_THREAD:
@@ -87,13 +101,12 @@ public class ContactInfoCache {
   }
 
   public ContactInfoCache(
-      @NonNull ExpirableCache<NumberWithCountryIso, ContactInfo> internalCache,
+      @NonNull ExpirableContactInfoCache internalCache,
       @NonNull ContactInfoHelper contactInfoHelper,
       @NonNull OnContactInfoChangedListener listener) {
     cache = internalCache;
     this.contactInfoHelper = contactInfoHelper;
     onContactInfoChangedListener = listener;
-    updateRequests = new PriorityBlockingQueue<>();
     handler = new InnerHandler(new WeakReference<>(this));
   }
 
@@ -106,15 +119,18 @@ public class ContactInfoCache {
       String countryIso,
       ContactInfo callLogContactInfo,
       boolean remoteLookupIfNotFoundLocally) {
-    NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(number, countryIso);
-    ExpirableCache.CachedValue<ContactInfo> cachedInfo = cache.getCachedValue(numberCountryIso);
-    ContactInfo info = cachedInfo == null ? null : cachedInfo.getValue();
+    // Filled while holding the cache's lock and only read by this call, so that the value and
+    // whether it expired stay consistent whichever thread binds the row.
+    ExpirableContactInfoCache.Lookup lookup = new ExpirableContactInfoCache.Lookup();
+    boolean cached = cache.lookup(number, countryIso, lookup);
+    ContactInfo info = lookup.value;
+    boolean expired = lookup.expired;
     int requestType =
         remoteLookupIfNotFoundLocally
             ? ContactInfoRequest.TYPE_LOCAL_AND_REMOTE
             : ContactInfoRequest.TYPE_LOCAL;
-    if (cachedInfo == null) {
-      cache.put(numberCountryIso, ContactInfo.EMPTY);
+    if (!cached) {
+      cache.put(number, countryIso, ContactInfo.EMPTY);
       // Use the cached contact info from the call log.
       info = callLogContactInfo;
       // The db request should happen on a non-UI thread.
@@ -122,7 +138,7 @@ public class ContactInfoCache {
       enqueueRequest(number, countryIso, callLogContactInfo, /* immediate */ true, requestType);
       // We will format the phone number when we make the background request.
     } else {
-      if (cachedInfo.isExpired()) {
+      if (expired) {
         // The contact info is no longer up to date, we should request it. However, we
         // do not need to request them immediately.
         enqueueRequest(number, countryIso, callLogContactInfo, /* immediate */ false, requestType);
@@ -153,39 +169,43 @@ public class ContactInfoCache {
    * <p>It returns true if it updated the content of the cache and we should therefore tell the view
    * to update its content.
    */
-  private boolean queryContactInfo(ContactInfoRequest request) {
+  private boolean queryContactInfo(Stage stage, ContactInfoRequest request) {
     LogUtil.d(
         "ContactInfoCache.queryContactInfo",
         "request number: %s, type: %d",
         LogUtil.sanitizePhoneNumber(request.number),
         request.type);
     ContactInfo info;
-    if (request.isLocalRequest()) {
+    if (stage == cequintStage) {
+      info = request.localInfo;
+      // TODO(wangqi): Maybe skip look up if it's already available in cached number lookup
+      // service.
+      long start = SystemClock.elapsedRealtime();
+      contactInfoHelper.updateFromCequintCallerId(cequintCallerIdManager, info, request.number);
+      long time = SystemClock.elapsedRealtime() - start;
+      LogUtil.d("ContactInfoCache.queryContactInfo", "Cequint Caller Id look up takes %d ms", time);
+    } else if (request.isLocalRequest()) {
       info = contactInfoHelper.lookupNumber(request.number, request.countryIso);
-      if (info != null && !info.contactExists) {
-        // TODO(wangqi): Maybe skip look up if it's already available in cached number lookup
-        // service.
-        long start = SystemClock.elapsedRealtime();
-        contactInfoHelper.updateFromCequintCallerId(cequintCallerIdManager, info, request.number);
-        long time = SystemClock.elapsedRealtime() - start;
-        LogUtil.d(
-            "ContactInfoCache.queryContactInfo", "Cequint Caller Id look up takes %d ms", time);
-      }
-      if (request.type == ContactInfoRequest.TYPE_LOCAL_AND_REMOTE) {
-        if (!contactInfoHelper.hasName(info)) {
-          enqueueRequest(
-              request.number,
-              request.countryIso,
-              request.callLogInfo,
-              true,
-              ContactInfoRequest.TYPE_REMOTE);
-          return false;
-        }
+      if (info != null && !info.contactExists && cequintCallerIdManager != null) {
+        // Cequint lookups are slow, hand them on so the next local lookups can go ahead.
+        cequintStage.offer(request.withLocalInfo(info));
+        return false;
       }
     } else {
       info = contactInfoHelper.lookupNumberInRemoteDirectory(request.number, request.countryIso);
     }
 
+    if (request.type == ContactInfoRequest.TYPE_LOCAL_AND_REMOTE
+        && !contactInfoHelper.hasName(info)) {
+      enqueueRequest(
+          request.number,
+          request.countryIso,
+          request.callLogInfo,
+          request.immediate,
+          ContactInfoRequest.TYPE_REMOTE);
+      return false;
+    }
+
     if (info == null) {
       // The lookup failed, just return without requesting to update the view.
       return false;
@@ -193,9 +213,7 @@ public class ContactInfoCache {
 
     // Check the existing entry in the cache: only if it has changed we should update the
     // view.
-    NumberWithCountryIso numberCountryIso =
-        new NumberWithCountryIso(request.number, request.countryIso);
-    ContactInfo existingInfo = cache.getPossiblyExpired(numberCountryIso);
+    ContactInfo existingInfo = cache.getPossiblyExpired(request.number, request.countryIso);
 
     final boolean isRemoteSource = info.sourceType != Type.UNKNOWN_SOURCE_TYPE;
 
@@ -210,7 +228,7 @@ public class ContactInfoCache {
 
     // Store the data in the cache so that the UI thread can use to display it. Store it
     // even if it has not changed so that it is marked as not expired.
-    cache.put(numberCountryIso, info);
+    cache.put(request.number, request.countryIso, info);
 
     // Update the call log even if the cache it is up-to-date: it is possible that the cache
     // contains the value from a different call log entry.
@@ -223,28 +241,29 @@ public class ContactInfoCache {
   }
 
   /**
-   * After a delay, start the thread to begin processing requests. We perform lookups on a
-   * background thread, but this must be called to indicate the thread should be running.
+   * After a delay, start the threads to begin processing requests. We perform lookups on
+   * background threads, but this must be called to indicate the threads should be running.
    */
   public void start() {
-    // Schedule a thread-creation message if the thread hasn't been created yet, as an
+    // Schedule a thread-creation message if the threads haven't been created yet, as an
     // optimization to queue fewer messages.
-    if (contactInfoQueryThread == null) {
+    if (!requestProcessingStarted) {
       // TODO: Check whether this delay before starting to process is necessary.
       handler.sendEmptyMessageDelayed(START_THREAD, START_PROCESSING_REQUESTS_DELAY_MS);
     }
   }
 
   /**
-   * Stops the thread and clears the queue of messages to process. This cleans up the thread for
-   * lookups so that it is not perpetually running.
+   * Stops the threads and clears the queue of messages to process. This cleans up the threads for
+   * lookups so that they are not perpetually running. Call log updates still pending are written.
    */
   public void stop() {
     stopRequestProcessing();
+    contactInfoHelper.flushCallLogContactInfoUpdates();
   }
 
   /**
-   * Starts a background thread to process contact-lookup requests, unless one has already been
+   * Starts the background threads to process contact-lookup requests, unless they have already been
    * started.
    */
   private synchronized void startRequestProcessing() {
@@ -253,14 +272,15 @@ public class ContactInfoCache {
       return;
     }
 
-    // If a thread is already started, don't start another.
-    if (contactInfoQueryThread != null) {
+    // If the threads are already started, don't start others.
+    if (requestProcessingStarted) {
       return;
     }
 
-    contactInfoQueryThread = new QueryThread();
-    contactInfoQueryThread.setPriority(Thread.MIN_PRIORITY);
-    contactInfoQueryThread.start();
+    requestProcessingStarted = true;
+    for (Stage stage : stages) {
+      stage.startThreads();
+    }
   }
 
   public void invalidate() {
@@ -269,17 +289,18 @@ public class ContactInfoCache {
   }
 
   /**
-   * Stops the background thread that processes updates and cancels any pending requests to start
-   * it.
+   * Stops the background threads that process updates and cancels any pending requests to start
+   * them.
    */
   private synchronized void stopRequestProcessing() {
-    // Remove any pending requests to start the processing thread.
+    // Remove any pending requests to start the processing threads.
     handler.removeMessages(START_THREAD);
-    if (contactInfoQueryThread != null) {
-      // Stop the thread; we are finished with it.
-      contactInfoQueryThread.stopProcessing();
-      contactInfoQueryThread.interrupt();
-      contactInfoQueryThread = null;
+    if (requestProcessingStarted) {
+      // Stop the threads; we are finished with them.
+      requestProcessingStarted = false;
+      for (Stage stage : stages) {
+        stage.stopThreads();
+      }
     }
   }
 
@@ -288,9 +309,10 @@ public class ContactInfoCache {
    *
    * <p>It also provides the current contact info stored in the call log for this number.
    *
-   * <p>If the {@code immediate} parameter is true, it will start immediately the thread that looks
-   * up the contact information (if it has not been already started). Otherwise, it will be started
-   * with a delay. See {@link #START_PROCESSING_REQUESTS_DELAY_MS}.
+   * <p>If the {@code immediate} parameter is true, it will start immediately the threads that look
+   * up the contact information (if they have not been already started), and the request is served
+   * before the ones that are not immediate. Otherwise, the threads will be started with a delay. See
+   * {@link #START_PROCESSING_REQUESTS_DELAY_MS}.
    */
   private void enqueueRequest(
       String number,
@@ -298,9 +320,12 @@ public class ContactInfoCache {
       ContactInfo callLogInfo,
       boolean immediate,
       @ContactInfoRequest.TYPE int type) {
-    ContactInfoRequest request = new ContactInfoRequest(number, countryIso, callLogInfo, type);
-    if (!updateRequests.contains(request)) {
-      updateRequests.offer(request);
+    ContactInfoRequest request =
+        new ContactInfoRequest(number, countryIso, callLogInfo, type, immediate);
+    if (request.isLocalRequest()) {
+      localStage.offer(request);
+    } else {
+      remoteStage.offer(request);
     }
 
     if (immediate) {
@@ -308,6 +333,13 @@ public class ContactInfoCache {
     }
   }
 
+  /** Redraws the call log once the updates found within about a frame are in the cache. */
+  private void requestRedraw() {
+    if (redrawScheduled.compareAndSet(false, true)) {
+      handler.sendEmptyMessageDelayed(REDRAW, REDRAW_BATCH_DELAY_MS);
+    }
+  }
+
   /** Checks whether the contact info from the call log matches the one from the contacts db. */
   private boolean callLogInfoMatches(ContactInfo callLogInfo, ContactInfo info) {
     // The call log only contains a subset of the fields in the contacts db. Only check those.
@@ -323,8 +355,7 @@ public class ContactInfoCache {
 
   @VisibleForTesting
   public void injectContactInfoForTest(String number, String countryIso, ContactInfo contactInfo) {
-    NumberWithCountryIso numberCountryIso = new NumberWithCountryIso(number, countryIso);
-    cache.put(numberCountryIso, contactInfo);
+    cache.put(number, countryIso, contactInfo);
   }
 
   public interface OnContactInfoChangedListener {
@@ -332,15 +363,82 @@ public class ContactInfoCache {
     void onContactInfoChanged();
   }
 
+  /** A queue of requests of one kind, with the threads processing them. */
+  private final class Stage {
+
+    private final String name;
+    private final int threadCount;
+    private final BlockingQueue<ContactInfoRequest> requests = new PriorityBlockingQueue<>();
+
+    /** The queued or running request of each number, to drop duplicates. Guarded by this. */
+    private final Map<NumberWithCountryIso, ContactInfoRequest> pendingRequests = new ArrayMap<>();
+
+    /** Guarded by {@link ContactInfoCache#this}. */
+    private final List<QueryThread> threads = new ArrayList<>();
+
+    Stage(String name, int threadCount) {
+      this.name = name;
+      this.threadCount = threadCount;
+    }
+
+    /**
+     * Queues {@code request}, unless a request for the same number is already queued or running
+     * and {@code request} adds nothing to it.
+     */
+    synchronized void offer(ContactInfoRequest request) {
+      NumberWithCountryIso key = new NumberWithCountryIso(request.number, request.countryIso);
+      ContactInfoRequest existing = pendingRequests.get(key);
+      if (existing != null) {
+        boolean morePressing = request.immediate && !existing.immediate;
+        boolean wantsRemote =
+            request.type == ContactInfoRequest.TYPE_LOCAL_AND_REMOTE
+                && existing.type == ContactInfoRequest.TYPE_LOCAL;
+        if (!morePressing && !wantsRemote) {
+          return;
+        }
+        // Replace it if it is still queued. If it is running already, look up again.
+        requests.remove(existing);
+      }
+      pendingRequests.put(key, request);
+      requests.offer(request);
+    }
+
+    synchronized void onProcessed(ContactInfoRequest request) {
+      NumberWithCountryIso key = new NumberWithCountryIso(request.number, request.countryIso);
+      if (pendingRequests.get(key) == request) {
+        pendingRequests.remove(key);
+      }
+    }
+
+    void startThreads() {
+      for (int i = 0; i < threadCount; i++) {
+        QueryThread thread = new QueryThread(this);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+        threads.add(thread);
+      }
+    }
+
+    void stopThreads() {
+      for (QueryThread thread : threads) {
+        thread.stopProcessing();
+        thread.interrupt();
+      }
+      threads.clear();
+    }
+  }
+
   /*
    * Handles requests for contact name and number type.
    */
   private class QueryThread extends Thread {
 
+    private final Stage stage;
     private volatile boolean done = false;
 
-    public QueryThread() {
-      super("ContactInfoCache.QueryThread");
+    public QueryThread(Stage stage) {
+      super("ContactInfoCache.QueryThread." + stage.name);
+      this.stage = stage;
     }
 
     public void stopProcessing() {
@@ -349,24 +447,25 @@ public class ContactInfoCache {
 
     @Override
     public void run() {
-      boolean shouldRedraw = false;
       while (true) {
         // Check if thread is finished, and if so return immediately.
         if (done) {
           return;
         }
 
+        ContactInfoRequest request;
         try {
-          ContactInfoRequest request = updateRequests.take();
-          shouldRedraw |= queryContactInfo(request);
-          if (shouldRedraw
-              && (updateRequests.isEmpty()
-                  || (request.isLocalRequest() && !updateRequests.peek().isLocalRequest()))) {
-            shouldRedraw = false;
-            handler.sendEmptyMessage(REDRAW);
-          }
+          request = stage.requests.take();
         } catch (InterruptedException e) {
           // Ignore and attempt to continue processing requests
+          continue;
+        }
+        try {
+          if (queryContactInfo(stage, request)) {
+            requestRedraw();
+          }
+        } finally {
+          stage.onProcessed(request);
         }
       }
     }
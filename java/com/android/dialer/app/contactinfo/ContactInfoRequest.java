@@ -17,6 +17,7 @@
 package com.android.dialer.app.contactinfo;
 
 import android.support.annotation.IntDef;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import com.android.dialer.phonenumbercache.ContactInfo;
 import java.lang.annotation.Retention;
@@ -41,6 +42,15 @@ public final class ContactInfoRequest implements Comparable<ContactInfoRequest>
   /** Is the request a remote lookup. Remote requests are treated as lower priority. */
   @TYPE public final int type;
 
+  /**
+   * Whether the request is for a row that is being shown. Such requests are served before the ones
+   * refreshing expired info, newest first.
+   */
+  public final boolean immediate;
+
+  /** The result of the local lookup, if it is handed on to Cequint. */
+  @Nullable final ContactInfo localInfo;
+
   /** Specifies the type of the request is. */
   @IntDef(
     value = {
@@ -60,11 +70,46 @@ public final class ContactInfoRequest implements Comparable<ContactInfoRequest>
 
   public ContactInfoRequest(
       String number, String countryIso, ContactInfo callLogInfo, @TYPE int type) {
-    this.sequenceNumber = NEXT_SEQUENCE_NUMBER.getAndIncrement();
+    this(number, countryIso, callLogInfo, type, false);
+  }
+
+  public ContactInfoRequest(
+      String number,
+      String countryIso,
+      ContactInfo callLogInfo,
+      @TYPE int type,
+      boolean immediate) {
+    this(
+        NEXT_SEQUENCE_NUMBER.getAndIncrement(),
+        number,
+        countryIso,
+        callLogInfo,
+        type,
+        immediate,
+        null);
+  }
+
+  private ContactInfoRequest(
+      long sequenceNumber,
+      String number,
+      String countryIso,
+      ContactInfo callLogInfo,
+      @TYPE int type,
+      boolean immediate,
+      @Nullable ContactInfo localInfo) {
+    this.sequenceNumber = sequenceNumber;
     this.number = number;
     this.countryIso = countryIso;
     this.callLogInfo = callLogInfo;
     this.type = type;
+    this.immediate = immediate;
+    this.localInfo = localInfo;
+  }
+
+  /** Returns a copy of this request with the same priority, carrying the local lookup result. */
+  ContactInfoRequest withLocalInfo(ContactInfo localInfo) {
+    return new ContactInfoRequest(
+        sequenceNumber, number, countryIso, callLogInfo, type, immediate, localInfo);
   }
 
   @Override
@@ -116,6 +161,13 @@ public final class ContactInfoRequest implements Comparable<ContactInfoRequest>
     if (!isLocalRequest() && other.isLocalRequest()) {
       return 1;
     }
+    // Then the rows being shown, newest first since the older ones may be scrolled away already.
+    if (immediate != other.immediate) {
+      return immediate ? -1 : 1;
+    }
+    if (immediate) {
+      return sequenceNumber > other.sequenceNumber ? -1 : 1;
+    }
     // First come first served.
     return sequenceNumber < other.sequenceNumber ? -1 : 1;
   }
@@ -21,20 +21,19 @@ import android.support.annotation.NonNull;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v7.app.AppCompatActivity;
-import com.android.dialer.phonenumbercache.ContactInfo;
-import com.android.dialer.util.ExpirableCache;
 
 /**
- * Fragment without any UI whose purpose is to retain an instance of {@link ExpirableCache} across
- * configuration change through the use of {@link #setRetainInstance(boolean)}. This is done as
- * opposed to implementing {@link android.os.Parcelable} as it is a less widespread change.
+ * Fragment without any UI whose purpose is to retain an instance of {@link
+ * ExpirableContactInfoCache} across configuration change through the use of {@link
+ * #setRetainInstance(boolean)}. This is done as opposed to implementing {@link
+ * android.os.Parcelable} as it is a less widespread change.
  */
 public class ExpirableCacheHeadlessFragment extends Fragment {
 
   private static final String FRAGMENT_TAG = "ExpirableCacheHeadlessFragment";
   private static final int CONTACT_INFO_CACHE_SIZE = 100;
 
-  private ExpirableCache<NumberWithCountryIso, ContactInfo> retainedCache;
+  private ExpirableContactInfoCache retainedCache;
 
   @NonNull
   public static ExpirableCacheHeadlessFragment attach(@NonNull AppCompatActivity parentActivity) {
@@ -57,11 +56,11 @@ public class ExpirableCacheHeadlessFragment extends Fragment {
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    retainedCache = ExpirableCache.create(CONTACT_INFO_CACHE_SIZE);
+    retainedCache = new ExpirableContactInfoCache(CONTACT_INFO_CACHE_SIZE);
     setRetainInstance(true);
   }
 
-  public ExpirableCache<NumberWithCountryIso, ContactInfo> getRetainedCache() {
+  public ExpirableContactInfoCache getRetainedCache() {
     return retainedCache;
   }
 }
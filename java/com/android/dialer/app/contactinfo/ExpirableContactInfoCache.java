@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.app.contactinfo;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import com.android.dialer.common.Assert;
+import com.android.dialer.phonenumbercache.ContactInfo;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * Cache of {@link ContactInfo} by phone number and country, whose entries can all be marked as
+ * expired at once. The least recently used entry is evicted once the cache is full.
+ *
+ * <p>Unlike a {@link com.android.dialer.util.ExpirableCache} keyed by {@link NumberWithCountryIso},
+ * looking up an entry doesn't allocate: the number and country are hashed together into a long key
+ * stored in an open-addressed table, and each entry records the generation in which it was put
+ * instead of being wrapped. This matters since the call log looks up every row it binds.
+ */
+@ThreadSafe
+public final class ExpirableContactInfoCache {
+
+  private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+  private final int maxSize;
+  private final int mask;
+  private final int shift;
+
+  /** Guarded by this. A slot is in use if its value is not null. */
+  private final long[] keys;
+
+  private final String[] numbers;
+  private final String[] countryIsos;
+  private final ContactInfo[] values;
+  private final int[] generations;
+  private final long[] accessTimes;
+
+  /** Guarded by this. */
+  private int size;
+
+  private int generation;
+  private long accessTime;
+
+  /**
+   * The result of {@link #lookup(String, String, Lookup)}. It is filled while holding the cache's
+   * lock, so it must not be shared by lookups that can run concurrently.
+   */
+  public static final class Lookup {
+
+    /** The value found, possibly expired, or null if there is none. */
+    @Nullable public ContactInfo value;
+
+    /** Whether the value found was put before {@link #expireAll()} was last called. */
+    public boolean expired;
+  }
+
+  public ExpirableContactInfoCache(int maxSize) {
+    Assert.checkArgument(maxSize > 0);
+    this.maxSize = maxSize;
+    // Keep the table at most half full so that probe sequences stay short.
+    int capacity = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+    mask = capacity - 1;
+    shift = Long.numberOfLeadingZeros(mask);
+    keys = new long[capacity];
+    numbers = new String[capacity];
+    countryIsos = new String[capacity];
+    values = new ContactInfo[capacity];
+    generations = new int[capacity];
+    accessTimes = new long[capacity];
+  }
+
+  /**
+   * Looks up the value for {@code number} in {@code countryIso} into {@code result}.
+   *
+   * @return whether there is a value, possibly expired
+   */
+  public synchronized boolean lookup(
+      @Nullable String number, @Nullable String countryIso, @NonNull Lookup result) {
+    int slot = findSlot(number, countryIso);
+    if (slot < 0) {
+      result.value = null;
+      result.expired = false;
+      return false;
+    }
+    accessTimes[slot] = ++accessTime;
+    result.value = values[slot];
+    result.expired = generations[slot] != generation;
+    return true;
+  }
+
+  /** Returns the value for {@code number} in {@code countryIso}, possibly expired, or null. */
+  @Nullable
+  public synchronized ContactInfo getPossiblyExpired(
+      @Nullable String number, @Nullable String countryIso) {
+    int slot = findSlot(number, countryIso);
+    if (slot < 0) {
+      return null;
+    }
+    accessTimes[slot] = ++accessTime;
+    return values[slot];
+  }
+
+  /**
+   * Puts the value for {@code number} in {@code countryIso}. It is not expired until {@link
+   * #expireAll()} is next called.
+   */
+  public synchronized void put(
+      @Nullable String number, @Nullable String countryIso, @NonNull ContactInfo value) {
+    Assert.isNotNull(value);
+    int slot = findSlot(number, countryIso);
+    if (slot < 0) {
+      if (size == maxSize) {
+        removeSlot(findLeastRecentlyUsedSlot());
+      }
+      long key = getKey(number, countryIso);
+      slot = getHomeSlot(key);
+      while (values[slot] != null) {
+        slot = (slot + 1) & mask;
+      }
+      keys[slot] = key;
+      numbers[slot] = number;
+      countryIsos[slot] = countryIso;
+      size++;
+    }
+    values[slot] = value;
+    generations[slot] = generation;
+    accessTimes[slot] = ++accessTime;
+  }
+
+  /**
+   * Marks all values currently in the cache as expired. Values put after this call are not expired.
+   *
+   * <p>Expired values are not evicted.
+   */
+  public synchronized void expireAll() {
+    generation++;
+  }
+
+  private int findSlot(@Nullable String number, @Nullable String countryIso) {
+    long key = getKey(number, countryIso);
+    for (int slot = getHomeSlot(key); values[slot] != null; slot = (slot + 1) & mask) {
+      if (keys[slot] == key
+          && TextUtils.equals(numbers[slot], number)
+          && TextUtils.equals(countryIsos[slot], countryIso)) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  private int findLeastRecentlyUsedSlot() {
+    int leastRecentlyUsed = -1;
+    for (int slot = 0; slot <= mask; slot++) {
+      if (values[slot] != null
+          && (leastRecentlyUsed < 0 || accessTimes[slot] < accessTimes[leastRecentlyUsed])) {
+        leastRecentlyUsed = slot;
+      }
+    }
+    return leastRecentlyUsed;
+  }
+
+  /** Empties {@code slot}, moving later entries of the same probe sequences back into the gap. */
+  private void removeSlot(int slot) {
+    int hole = slot;
+    for (int next = (slot + 1) & mask; values[next] != null; next = (next + 1) & mask) {
+      int home = getHomeSlot(keys[next]);
+      // The entry can fill the hole if the hole lies between its home slot and where it is.
+      if (((next - home) & mask) >= ((next - hole) & mask)) {
+        keys[hole] = keys[next];
+        numbers[hole] = numbers[next];
+        countryIsos[hole] = countryIsos[next];
+        values[hole] = values[next];
+        generations[hole] = generations[next];
+        accessTimes[hole] = accessTimes[next];
+        hole = next;
+      }
+    }
+    numbers[hole] = null;
+    countryIsos[hole] = null;
+    values[hole] = null;
+    size--;
+  }
+
+  private int getHomeSlot(long key) {
+    return (int) ((key * HASH_MULTIPLIER) >>> shift);
+  }
+
+  private static long getKey(@Nullable String number, @Nullable String countryIso) {
+    long numberHash = number == null ? 0 : number.hashCode();
+    long countryIsoHash = countryIso == null ? 0 : countryIso.hashCode();
+    return (numberHash << 32) | (countryIsoHash & 0xffffffffL);
+  }
+}
@@ -11,5 +11,8 @@ public class CallRecordingSettingsFragment extends PreferenceFragment {
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     addPreferencesFromResource(R.xml.call_recording_settings);
+    if (!CallRecorderService.isSegmentedRecordingSupported()) {
+      getPreferenceScreen().removePreference(findPreference("call_recording_segmented"));
+    }
   }
 }
@@ -156,6 +156,17 @@ abstract class CallDetailsActivityCommon extends AppCompatActivity {
   }
 
   protected void loadRttTranscriptAvailability() {
+    if (RttTranscriptUtil.areRttTranscriptIdsLoaded()) {
+      // The stored transcript IDs are in memory, no need to go to the background.
+      ImmutableSet.Builder<String> available = ImmutableSet.builder();
+      for (CallDetailsEntry entry : callDetailsEntries.getEntriesList()) {
+        if (RttTranscriptUtil.hasRttTranscript(entry.getCallMappingId())) {
+          available.add(entry.getCallMappingId());
+        }
+      }
+      updateCallDetailsEntriesWithRttTranscriptAvailability(available.build());
+      return;
+    }
     ImmutableSet.Builder<String> builder = ImmutableSet.builder();
     for (CallDetailsEntry entry : callDetailsEntries.getEntriesList()) {
       builder.add(entry.getCallMappingId());
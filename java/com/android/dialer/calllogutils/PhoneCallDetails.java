@@ -137,6 +137,27 @@ public class PhoneCallDetails {
   // The URI of the voicemail associated with this phone call, if this call went to voicemail.
   public String voicemailUri;
 
+  // Whether the display texts below were prepared off the main thread before binding.
+  public boolean hasDisplayTexts;
+
+  // Call count, location, date and voicemail duration text.
+  public CharSequence detailText;
+
+  // Account label text, or null if no label is shown, and its color.
+  public CharSequence accountLabelText;
+  public int accountLabelColor;
+
+  // Name or number text, and its text direction.
+  public CharSequence nameText;
+  public int nameTextDirection;
+
+  // Whether to show the Wi-Fi icon.
+  public boolean showWifiIcon;
+
+  // Voicemail transcription branding text, and whether to show the transcription rating.
+  public String transcriptionBranding;
+  public boolean showTranscriptionRating;
+
   /**
    * Constructor with required fields for the details of a call with a number associated with a
    * contact.
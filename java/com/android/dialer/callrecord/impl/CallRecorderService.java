@@ -16,6 +16,7 @@
 
 package com.android.dialer.callrecord.impl;
 
+import android.annotation.TargetApi;
 import android.app.Service;
 import android.content.ContentUris;
 import android.content.Intent;
@@ -23,20 +24,31 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.media.MediaRecorder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Build.VERSION_CODES;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
+import android.os.RemoteCallbackList;
 import android.os.RemoteException;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.dialer.callrecord.CallRecording;
+import com.android.dialer.callrecord.ICallRecorderListener;
 import com.android.dialer.callrecord.ICallRecorderService;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.android.dialer.R;
 
@@ -49,10 +61,27 @@ public class CallRecorderService extends Service {
 
   private static final String KEY_CALL_RECORDING_AUDIO_SOURCE = "call_recording_audio_source";
   private static final String KEY_CALL_RECORDING_OUTPUT_FORMAT = "call_recording_output_format";
+  private static final String KEY_CALL_RECORDING_SEGMENTED = "call_recording_segmented";
+
+  // Size at which the recorder rolls over to a new segment. A crash loses at most the segment
+  // being written, i.e. a few minutes of audio at the bitrates used for calls.
+  private static final long SEGMENT_MAX_BYTES = 1024 * 1024;
+  private static final String SEGMENTS_DIRECTORY = "call_recording_segments";
 
   private MediaRecorder mMediaRecorder = null;
   private CallRecording mCurrentRecording = null;
 
+  // Only set while a segmented recording is in progress.
+  private SegmentedRecordingManifest mManifest = null;
+  private File mCurrentSegment = null;
+  private File mNextSegment = null;
+
+  private final RemoteCallbackList<ICallRecorderListener> mListeners = new RemoteCallbackList<>();
+  // Joins segments off the binder threads, one recording at a time.
+  private final ExecutorService mFinalizeExecutor = Executors.newSingleThreadExecutor();
+  // Stopped recordings whose segments are queued for joining. Guarded by this.
+  private final Set<Long> mFinalizingMediaIds = new HashSet<>();
+
   private SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMdd-HHmmss");
 
   private final ICallRecorderService.Stub mBinder = new ICallRecorderService.Stub() {
@@ -75,11 +104,40 @@ public class CallRecorderService extends Service {
     public CallRecording getActiveRecording() throws RemoteException {
       return mCurrentRecording;
     }
+
+    @Override
+    public void registerListener(ICallRecorderListener listener) {
+      mListeners.register(listener);
+    }
+
+    @Override
+    public void unregisterListener(ICallRecorderListener listener) {
+      mListeners.unregister(listener);
+    }
+  };
+
+  private final MediaRecorder.OnInfoListener mSegmentInfoListener = (mr, what, extra) -> {
+    switch (what) {
+      case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_APPROACHING:
+        prepareNextSegment(mr);
+        break;
+      case MediaRecorder.MEDIA_RECORDER_INFO_NEXT_OUTPUT_FILE_STARTED:
+        onSegmentCompleted(mr);
+        break;
+      case MediaRecorder.MEDIA_RECORDER_INFO_MAX_FILESIZE_REACHED:
+        Log.w(TAG, "Segment size limit reached without a next segment, stopping recording");
+        stopRecordingInternal();
+        break;
+      default:
+        break;
+    }
   };
 
   @Override
   public void onCreate() {
     if (DBG) Log.d(TAG, "Creating CallRecorderService");
+    // Finish recordings whose recorder process died before it could join the segments.
+    mFinalizeExecutor.execute(this::recoverUnfinishedRecordings);
   }
 
   @Override
@@ -100,14 +158,31 @@ public class CallRecorderService extends Service {
     return parseInt(getPrefs().getString(KEY_CALL_RECORDING_AUDIO_SOURCE, def));
   }
 
-  private static final int OUTPUT_FORMAT_AAC_MPEG_4 = 0;
-  private static final int OUTPUT_FORMAT_AMR_WB = 1;
+  static final int OUTPUT_FORMAT_AAC_MPEG_4 = 0;
+  static final int OUTPUT_FORMAT_AMR_WB = 1;
 
   private int getOutputFormat() {
     String def = getString(R.string.call_recording_output_format_default);
     return parseInt(getPrefs().getString(KEY_CALL_RECORDING_OUTPUT_FORMAT, def));
   }
 
+  /**
+   * Segments need {@link MediaRecorder#setNextOutputFile(File)}, so older releases always record to
+   * a single file.
+   */
+  public static boolean isSegmentedRecordingSupported() {
+    return Build.VERSION.SDK_INT >= VERSION_CODES.O;
+  }
+
+  private boolean isSegmentedRecordingEnabled() {
+    return isSegmentedRecordingSupported()
+        && getPrefs().getBoolean(KEY_CALL_RECORDING_SEGMENTED, true);
+  }
+
+  private File getSegmentsRoot() {
+    return new File(getFilesDir(), SEGMENTS_DIRECTORY);
+  }
+
   private synchronized boolean startRecordingInternal(String phoneNumber, long creationTime) {
     if (mMediaRecorder != null) {
       Log.i(TAG, "Start called with recording in progress, stopping current recording");
@@ -150,26 +225,33 @@ public class CallRecorderService extends Service {
     String fileName = generateFilename(phoneNumber, outputFormat);
     Uri uri = getContentResolver().insert(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
             CallRecording.generateMediaInsertValues(fileName, creationTime));
+    long mediaId = Long.parseLong(uri.getLastPathSegment());
 
     try {
-      try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "w")) {
-        if (pfd == null) {
-          throw new IOException("Opening file for URI " + uri + " failed");
+      if (isSegmentedRecordingEnabled()) {
+        prepareSegmentedOutput(mediaId, outputFormat);
+      } else {
+        try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "w")) {
+          if (pfd == null) {
+            throw new IOException("Opening file for URI " + uri + " failed");
+          }
+          mMediaRecorder.setOutputFile(pfd.getFileDescriptor());
+          mMediaRecorder.prepare();
         }
-        mMediaRecorder.setOutputFile(pfd.getFileDescriptor());
-        mMediaRecorder.prepare();
       }
       mMediaRecorder.start();
 
-      long mediaId = Long.parseLong(uri.getLastPathSegment());
       mCurrentRecording = new CallRecording(phoneNumber, creationTime,
               fileName, System.currentTimeMillis(), mediaId);
+      notifyRecordingStarted(mCurrentRecording);
       return true;
     } catch (IOException | IllegalStateException e) {
       Log.e(TAG, "Could not start recording", e);
       getContentResolver().delete(uri, null, null);
+      discardManifest();
     } catch (RuntimeException e) {
       getContentResolver().delete(uri, null, null);
+      discardManifest();
       // only catch exceptions thrown by the MediaRecorder JNI code
       if (e.getMessage().indexOf("start failed") >= 0) {
         Log.e(TAG, "Could not start recording", e);
@@ -195,24 +277,181 @@ public class CallRecorderService extends Service {
 
       releaseMediaRecorder();
 
-      Uri uri = ContentUris.withAppendedId(
-          MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, mCurrentRecording.mediaId);
-      getContentResolver().update(uri, CallRecording.generateCompletedValues(), null, null);
+      if (mManifest != null) {
+        final SegmentedRecordingManifest manifest = mManifest;
+        try {
+          manifest.appendSegment(mCurrentSegment);
+        } catch (IOException e) {
+          Log.e(TAG, "Could not record final segment", e);
+        }
+        mManifest = null;
+        mCurrentSegment = null;
+        mNextSegment = null;
+        mFinalizingMediaIds.add(manifest.getMediaId());
+        mFinalizeExecutor.execute(() -> {
+          finalizeSegmentedRecording(manifest);
+          synchronized (CallRecorderService.this) {
+            mFinalizingMediaIds.remove(manifest.getMediaId());
+          }
+        });
+      } else {
+        publishRecording(mCurrentRecording.mediaId);
+      }
 
       mCurrentRecording = null;
+      notifyRecordingStopped(recording);
     }
     return recording;
   }
 
+  @TargetApi(VERSION_CODES.O)
+  private void prepareSegmentedOutput(long mediaId, int outputFormat) throws IOException {
+    // The MediaStore entry stays pending until the segments are joined into it.
+    mManifest = SegmentedRecordingManifest.create(getSegmentsRoot(), mediaId, outputFormat);
+    mCurrentSegment = mManifest.newSegmentFile(getExtension(outputFormat));
+    mMediaRecorder.setOutputFile(mCurrentSegment);
+    mMediaRecorder.setMaxFileSize(SEGMENT_MAX_BYTES);
+    mMediaRecorder.setOnInfoListener(mSegmentInfoListener);
+    mMediaRecorder.prepare();
+  }
+
+  @TargetApi(VERSION_CODES.O)
+  private synchronized void prepareNextSegment(MediaRecorder mr) {
+    if (mr != mMediaRecorder || mManifest == null || mNextSegment != null) {
+      return;
+    }
+    mNextSegment = mManifest.newSegmentFile(getExtension(mManifest.getOutputFormat()));
+    try {
+      mMediaRecorder.setNextOutputFile(mNextSegment);
+    } catch (IOException | IllegalStateException e) {
+      Log.e(TAG, "Could not set next segment " + mNextSegment, e);
+      mNextSegment = null;
+    }
+  }
+
+  private synchronized void onSegmentCompleted(MediaRecorder mr) {
+    if (mr != mMediaRecorder || mManifest == null || mNextSegment == null) {
+      return;
+    }
+    try {
+      mManifest.appendSegment(mCurrentSegment);
+    } catch (IOException e) {
+      Log.e(TAG, "Could not record segment " + mCurrentSegment, e);
+    }
+    mCurrentSegment = mNextSegment;
+    mNextSegment = null;
+    notifyRecordingProgress(System.currentTimeMillis() - mCurrentRecording.startRecordingTime);
+  }
+
+  private void discardManifest() {
+    if (mManifest != null) {
+      mManifest.delete();
+      mManifest = null;
+      mCurrentSegment = null;
+      mNextSegment = null;
+    }
+  }
+
+  /** Joins the segments into the pending MediaStore entry and publishes it. */
+  private void finalizeSegmentedRecording(SegmentedRecordingManifest manifest) {
+    List<File> segments = manifest.getSegments();
+    Uri uri = ContentUris.withAppendedId(
+        MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, manifest.getMediaId());
+    if (segments.isEmpty()) {
+      Log.w(TAG, "No complete segments for recording " + manifest.getMediaId());
+      getContentResolver().delete(uri, null, null);
+      manifest.delete();
+      return;
+    }
+    try (ParcelFileDescriptor pfd = getContentResolver().openFileDescriptor(uri, "w")) {
+      if (pfd == null) {
+        throw new IOException("Opening file for URI " + uri + " failed");
+      }
+      RecordingSegmentMerger.merge(segments, manifest.getOutputFormat(), pfd.getFileDescriptor());
+    } catch (IOException | IllegalArgumentException | SecurityException e) {
+      // Keep the segments around, the next start of the service will try again.
+      Log.e(TAG, "Could not join segments of recording " + manifest.getMediaId(), e);
+      return;
+    }
+    publishRecording(manifest.getMediaId());
+    manifest.delete();
+  }
+
+  private void recoverUnfinishedRecordings() {
+    List<SegmentedRecordingManifest> unfinished = new ArrayList<>();
+    // Under the lock so recordings being started or stopped right now are not picked up.
+    synchronized (this) {
+      for (SegmentedRecordingManifest manifest :
+          SegmentedRecordingManifest.findUnfinished(getSegmentsRoot())) {
+        long mediaId = manifest.getMediaId();
+        boolean isActive = mCurrentRecording != null && mCurrentRecording.mediaId == mediaId;
+        if (!isActive && !mFinalizingMediaIds.contains(mediaId)) {
+          unfinished.add(manifest);
+        }
+      }
+    }
+    for (SegmentedRecordingManifest manifest : unfinished) {
+      Log.i(TAG, "Recovering interrupted recording " + manifest.getMediaId());
+      finalizeSegmentedRecording(manifest);
+    }
+  }
+
+  private void publishRecording(long mediaId) {
+    Uri uri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, mediaId);
+    getContentResolver().update(uri, CallRecording.generateCompletedValues(), null, null);
+  }
+
+  private void notifyRecordingStarted(CallRecording recording) {
+    int count = mListeners.beginBroadcast();
+    for (int i = 0; i < count; i++) {
+      try {
+        mListeners.getBroadcastItem(i).onRecordingStarted(recording);
+      } catch (RemoteException e) {
+        // The RemoteCallbackList will take care of removing dead listeners.
+      }
+    }
+    mListeners.finishBroadcast();
+  }
+
+  private void notifyRecordingProgress(long elapsedTimeMs) {
+    int count = mListeners.beginBroadcast();
+    for (int i = 0; i < count; i++) {
+      try {
+        mListeners.getBroadcastItem(i).onRecordingProgress(elapsedTimeMs);
+      } catch (RemoteException e) {
+        // The RemoteCallbackList will take care of removing dead listeners.
+      }
+    }
+    mListeners.finishBroadcast();
+  }
+
+  private void notifyRecordingStopped(CallRecording recording) {
+    int count = mListeners.beginBroadcast();
+    for (int i = 0; i < count; i++) {
+      try {
+        mListeners.getBroadcastItem(i).onRecordingStopped(recording);
+      } catch (RemoteException e) {
+        // The RemoteCallbackList will take care of removing dead listeners.
+      }
+    }
+    mListeners.finishBroadcast();
+  }
+
   @Override
   public void onDestroy() {
     super.onDestroy();
+    mListeners.kill();
+    mFinalizeExecutor.shutdown();
     if (DBG) Log.d(TAG, "Destroying CallRecorderService");
   }
 
+  private static String getExtension(int outputFormat) {
+    return (outputFormat == OUTPUT_FORMAT_AAC_MPEG_4) ? ".m4a" : ".amr";
+  }
+
   private String generateFilename(String number, int outputFormat) {
     String timestamp = DATE_FORMAT.format(new Date());
-    String extension = (outputFormat == OUTPUT_FORMAT_AAC_MPEG_4) ? ".m4a" : ".amr";
+    String extension = getExtension(outputFormat);
 
     if (TextUtils.isEmpty(number)) {
       number = "unknown";
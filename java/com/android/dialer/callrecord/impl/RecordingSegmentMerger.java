@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.callrecord.impl;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Joins the independently decodable segments of a call recording into a single file.
+ *
+ * Both paths stream through one fixed-size buffer, so memory use does not depend on the length
+ * of the recording.
+ */
+final class RecordingSegmentMerger {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private static final byte[] AMR_WB_HEADER = "#!AMR-WB\n".getBytes(StandardCharsets.US_ASCII);
+
+  private RecordingSegmentMerger() {}
+
+  /** Writes the concatenation of {@code segments} to {@code output}. */
+  static void merge(List<File> segments, int outputFormat, FileDescriptor output)
+      throws IOException {
+    if (outputFormat == CallRecorderService.OUTPUT_FORMAT_AAC_MPEG_4) {
+      mergeMpeg4(segments, output);
+    } else if (outputFormat == CallRecorderService.OUTPUT_FORMAT_AMR_WB) {
+      mergeAmrWb(segments, output);
+    } else {
+      throw new IOException("unexpected output format " + outputFormat);
+    }
+  }
+
+  /** Remuxes the AAC track of each segment, shifting timestamps to follow the previous one. */
+  private static void mergeMpeg4(List<File> segments, FileDescriptor output) throws IOException {
+    MediaMuxer muxer = new MediaMuxer(output, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    int muxerTrack = -1;
+    long timeOffsetUs = 0;
+    try {
+      for (File segment : segments) {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+          try {
+            extractor.setDataSource(segment.getPath());
+          } catch (IOException e) {
+            // E.g. the last segment when stopping the recorder failed; drop just that segment.
+            continue;
+          }
+          if (extractor.getTrackCount() == 0) {
+            continue;
+          }
+          extractor.selectTrack(0);
+          if (muxerTrack < 0) {
+            MediaFormat format = extractor.getTrackFormat(0);
+            muxerTrack = muxer.addTrack(format);
+            muxer.start();
+          }
+          long lastSampleTimeUs = -1;
+          long sampleDurationUs = 0;
+          while ((info.size = extractor.readSampleData(buffer, 0)) >= 0) {
+            long sampleTimeUs = extractor.getSampleTime();
+            if (lastSampleTimeUs >= 0) {
+              sampleDurationUs = sampleTimeUs - lastSampleTimeUs;
+            }
+            lastSampleTimeUs = sampleTimeUs;
+            info.offset = 0;
+            info.presentationTimeUs = timeOffsetUs + sampleTimeUs;
+            info.flags = extractor.getSampleFlags() & MediaCodec.BUFFER_FLAG_KEY_FRAME;
+            muxer.writeSampleData(muxerTrack, buffer, info);
+            extractor.advance();
+          }
+          if (lastSampleTimeUs >= 0) {
+            timeOffsetUs += lastSampleTimeUs + sampleDurationUs;
+          }
+        } finally {
+          extractor.release();
+        }
+      }
+      if (muxerTrack >= 0) {
+        muxer.stop();
+      }
+    } catch (IllegalStateException | IllegalArgumentException e) {
+      throw new IOException("Failed to remux recording segments", e);
+    } finally {
+      muxer.release();
+    }
+  }
+
+  /** AMR-WB files are a header followed by self-contained frames, so segments just concatenate. */
+  private static void mergeAmrWb(List<File> segments, FileDescriptor output) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    // Not closed here: the descriptor is owned by the caller.
+    OutputStream out = new FileOutputStream(output);
+    out.write(AMR_WB_HEADER);
+    for (File segment : segments) {
+      try (InputStream in = new FileInputStream(segment)) {
+        long skipped = in.skip(AMR_WB_HEADER.length);
+        if (skipped != AMR_WB_HEADER.length) {
+          continue;
+        }
+        int read;
+        while ((read = in.read(buffer)) > 0) {
+          out.write(buffer, 0, read);
+        }
+      }
+    }
+    out.flush();
+  }
+}
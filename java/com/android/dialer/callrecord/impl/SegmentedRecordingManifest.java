@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.callrecord.impl;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Small append-only manifest describing a call recording that is written in segments.
+ *
+ * Every recording gets its own directory holding the segment files and a "manifest" text file.
+ * The manifest starts with the MediaStore id and output format of the final recording, and a
+ * segment line is appended (and synced) each time a segment has been finalized by the
+ * MediaRecorder. Segments not listed in the manifest were still being written when the recording
+ * was interrupted and are discarded on recovery.
+ */
+final class SegmentedRecordingManifest {
+  private static final String TAG = "SegmentedRecordingManifest";
+
+  private static final String MANIFEST_FILE_NAME = "manifest";
+  private static final String KEY_MEDIA_ID = "mediaId";
+  private static final String KEY_OUTPUT_FORMAT = "outputFormat";
+  private static final String KEY_SEGMENT = "segment";
+
+  private final File mDirectory;
+  private final long mMediaId;
+  private final int mOutputFormat;
+  private final List<File> mSegments = new ArrayList<>();
+  private int mNextSegmentIndex;
+
+  private SegmentedRecordingManifest(File directory, long mediaId, int outputFormat) {
+    mDirectory = directory;
+    mMediaId = mediaId;
+    mOutputFormat = outputFormat;
+  }
+
+  /** Creates the directory and manifest for a new recording below {@code root}. */
+  static SegmentedRecordingManifest create(File root, long mediaId, int outputFormat)
+      throws IOException {
+    File directory = new File(root, Long.toString(mediaId));
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create " + directory);
+    }
+    SegmentedRecordingManifest manifest =
+        new SegmentedRecordingManifest(directory, mediaId, outputFormat);
+    manifest.append(KEY_MEDIA_ID + " " + mediaId + "\n"
+        + KEY_OUTPUT_FORMAT + " " + outputFormat + "\n", false);
+    return manifest;
+  }
+
+  /** Returns the manifests of all recordings below {@code root} that were never finalized. */
+  static List<SegmentedRecordingManifest> findUnfinished(File root) {
+    File[] directories = root.listFiles(File::isDirectory);
+    if (directories == null) {
+      return Collections.emptyList();
+    }
+    List<SegmentedRecordingManifest> result = new ArrayList<>();
+    for (File directory : directories) {
+      try {
+        result.add(read(directory));
+      } catch (IOException | NumberFormatException e) {
+        Log.w(TAG, "Discarding unreadable recording in " + directory, e);
+        deleteDirectory(directory);
+      }
+    }
+    return result;
+  }
+
+  private static SegmentedRecordingManifest read(File directory) throws IOException {
+    long mediaId = -1;
+    int outputFormat = -1;
+    List<File> segments = new ArrayList<>();
+    try (BufferedReader reader =
+        new BufferedReader(new FileReader(new File(directory, MANIFEST_FILE_NAME)))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        int separator = line.indexOf(' ');
+        if (separator < 0) {
+          // Torn last line, written while the process died.
+          continue;
+        }
+        String key = line.substring(0, separator);
+        String value = line.substring(separator + 1);
+        if (KEY_MEDIA_ID.equals(key)) {
+          mediaId = Long.parseLong(value);
+        } else if (KEY_OUTPUT_FORMAT.equals(key)) {
+          outputFormat = Integer.parseInt(value);
+        } else if (KEY_SEGMENT.equals(key)) {
+          segments.add(new File(directory, value));
+        }
+      }
+    }
+    if (mediaId < 0 || outputFormat < 0) {
+      throw new IOException("Incomplete manifest header in " + directory);
+    }
+    SegmentedRecordingManifest manifest =
+        new SegmentedRecordingManifest(directory, mediaId, outputFormat);
+    manifest.mSegments.addAll(segments);
+    return manifest;
+  }
+
+  long getMediaId() {
+    return mMediaId;
+  }
+
+  int getOutputFormat() {
+    return mOutputFormat;
+  }
+
+  /** Returns the finalized segments, in recording order. */
+  List<File> getSegments() {
+    return Collections.unmodifiableList(mSegments);
+  }
+
+  /** Returns the file the next segment should be recorded to. */
+  File newSegmentFile(String extension) {
+    return new File(mDirectory,
+        String.format(Locale.US, "segment-%04d%s", mNextSegmentIndex++, extension));
+  }
+
+  /** Records {@code segment} as finalized, so it survives a crash of the recorder. */
+  void appendSegment(File segment) throws IOException {
+    append(KEY_SEGMENT + " " + segment.getName() + "\n", true);
+    mSegments.add(segment);
+  }
+
+  /** Removes the manifest together with all segments. */
+  void delete() {
+    deleteDirectory(mDirectory);
+  }
+
+  private void append(String lines, boolean append) throws IOException {
+    try (FileOutputStream out =
+        new FileOutputStream(new File(mDirectory, MANIFEST_FILE_NAME), append)) {
+      out.write(lines.getBytes(StandardCharsets.UTF_8));
+      out.getFD().sync();
+    }
+  }
+
+  private static void deleteDirectory(File directory) {
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (!file.delete()) {
+          Log.w(TAG, "Could not delete " + file);
+        }
+      }
+    }
+    if (!directory.delete()) {
+      Log.w(TAG, "Could not delete " + directory);
+    }
+  }
+}
@@ -21,12 +21,14 @@ import android.content.Context;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.common.concurrent.Annotations.LightweightExecutor;
 import com.android.dialer.common.concurrent.Annotations.NonUiParallel;
+import com.android.dialer.common.concurrent.Annotations.NonUiSerial;
 import com.android.dialer.common.concurrent.Annotations.Ui;
 import com.android.dialer.inject.HasRootComponent;
 import com.android.dialer.inject.IncludeInDialerRoot;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import dagger.Subcomponent;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
 
 /** Dagger component which provides a {@link DialerExecutorFactory}. */
 @Subcomponent
@@ -37,6 +39,9 @@ public abstract class DialerExecutorComponent {
   @NonUiParallel
   public abstract ExecutorService lowPriorityThreadPool();
 
+  @NonUiSerial
+  public abstract ScheduledExecutorService nonUiSerialScheduledExecutor();
+
   @Ui
   public abstract ListeningExecutorService uiExecutor();
 
@@ -38,11 +38,13 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 import android.support.annotation.WorkerThread;
 import android.support.v4.graphics.drawable.RoundedBitmapDrawable;
@@ -58,6 +60,7 @@ import com.android.dialer.constants.TrafficStatsTags;
 import com.android.dialer.util.PermissionsUtil;
 import com.android.dialer.util.UriUtils;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.ref.Reference;
@@ -65,9 +68,11 @@ import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -77,6 +82,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
 
+  private static final String REMOTE_LOADER_THREAD_NAME = "ContactPhotoRemoteLoader";
+
   private static final int FADE_TRANSITION_DURATION = 200;
 
   /**
@@ -91,6 +98,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String[] COLUMNS = new String[] {Photo._ID, Photo.PHOTO};
 
+  private static final String[] VERSION_COLUMNS = new String[] {Photo._ID, Data.DATA_VERSION};
+
   /**
    * Placeholder object used to indicate that a bitmap for a given key could not be stored in the
    * cache.
@@ -100,6 +109,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private static final int HOLDER_CACHE_SIZE = 2000000;
   /** Cache size for {@link #bitmapCache} for devices with "large" RAM. */
   private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
+  /** Size of {@link #thumbnailDiskCache} for devices with "large" RAM. */
+  private static final int DISK_CACHE_SIZE = 36864 * 200; // 7200K
   /** Height/width of a thumbnail image */
   private static int thumbnailSize;
 
@@ -122,12 +133,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
    * #bitmapHolderCache}.
    */
   private final LruCache<Object, Bitmap> bitmapCache;
+  /**
+   * Level 3 cache of decoded thumbnails on disk, which survives process restarts. Only used by the
+   * loader thread, for photos loaded by ID.
+   */
+  private final ThumbnailDiskCache thumbnailDiskCache;
   /**
    * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request. The
    * request may swapped out before the photo loading request is started.
    */
   private final ConcurrentHashMap<ImageView, Request> pendingRequests =
       new ConcurrentHashMap<ImageView, Request>();
+  /**
+   * How many views of {@link #pendingRequests} wait for each URI request, so that the loader
+   * threads can check whether a URI is still needed without scanning all pending requests. Only
+   * changed on the main thread, through the methods updating {@link #pendingRequests}.
+   */
+  private final ConcurrentHashMap<Request, Integer> pendingUriRequestCounts =
+      new ConcurrentHashMap<>();
   /** Handler for messages sent to the UI thread. */
   private final Handler mainThreadHandler = new Handler(this);
   /** For debug: How many times we had to reload cached photo for a stale entry */
@@ -138,6 +161,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private volatile boolean bitmapHolderCacheAllUnfresh = true;
   /** Thread responsible for loading photos from the database. Created upon the first request. */
   private LoaderThread loaderThread;
+  /**
+   * Thread responsible for loading photos from the network, so that a slow server doesn't hold up
+   * photos from the database. Created upon the first request.
+   */
+  private LoaderThread remoteLoaderThread;
   /** A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time. */
   private boolean loadingRequested;
   /** Flag indicating if the image loading is paused. */
@@ -174,7 +202,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         new LruCache<Object, BitmapHolder>(holderCacheSize) {
           @Override
           protected int sizeOf(Object key, BitmapHolder value) {
-            return value.bytes != null ? value.bytes.length : 0;
+            // Holders of disk cached thumbnails have no bytes, count their decoded thumbnail.
+            return value.bytes != null ? value.bytes.length : value.diskCachedByteCount;
           }
 
           @Override
@@ -186,6 +215,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           }
         };
     bitmapHolderCacheRedZoneBytes = (int) (holderCacheSize * 0.75);
+    thumbnailDiskCache =
+        new ThumbnailDiskCache(
+            new File(context.getCacheDir(), "contact_thumbnails"),
+            (long) (cacheSizeAdjustment * DISK_CACHE_SIZE));
     LogUtil.i(
         "ContactPhotoManagerImpl.ContactPhotoManagerImpl", "cache adj: " + cacheSizeAdjustment);
     if (DEBUG) {
@@ -362,6 +395,23 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
               + btk(safeDiv(bitmapBytes, numBitmaps)));
       // We don't get from L2 cache, so L2 stats is meaningless.
     }
+
+    logLoaderStats();
+  }
+
+  /**
+   * Logs the queue depth and latency of the local and remote loader threads. Unlike {@link
+   * #dumpStats()} this also logs in release builds, so that slow photo loading shows up in bug
+   * reports.
+   */
+  private void logLoaderStats() {
+    if (loaderThread != null) {
+      LogUtil.i(
+          "ContactPhotoManagerImpl.logLoaderStats",
+          "local: %s, remote: %s",
+          loaderThread.getStats(),
+          remoteLoaderThread.getStats());
+    }
   }
 
   @Override
@@ -369,6 +419,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (DEBUG) {
       LogUtil.d("ContactPhotoManagerImpl.onTrimMemory", "onTrimMemory: " + level);
     }
+    if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      // Once per time the app leaves the foreground.
+      logLoaderStats();
+    }
     if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
       // Clear the caches.  Note all pending requests will be removed too.
       clear();
@@ -392,7 +446,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (photoId == 0) {
       // No photo is needed
       defaultProvider.applyDefaultImage(view, -1, darkTheme, defaultImageRequest);
-      pendingRequests.remove(view);
+      removePendingRequest(view);
     } else {
       if (DEBUG) {
         LogUtil.d("ContactPhotoManagerImpl.loadThumbnail", "loadPhoto request: " + photoId);
@@ -414,12 +468,12 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (photoUri == null) {
       // No photo is needed
       defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme, defaultImageRequest);
-      pendingRequests.remove(view);
+      removePendingRequest(view);
       return;
     }
     if (isDrawableUri(photoUri)) {
       view.setImageURI(photoUri);
-      pendingRequests.remove(view);
+      removePendingRequest(view);
       return;
     }
     if (DEBUG) {
@@ -458,9 +512,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   private void loadPhotoByIdOrUri(ImageView view, Request request) {
     boolean loaded = loadCachedPhoto(view, request, false);
     if (loaded) {
-      pendingRequests.remove(view);
+      removePendingRequest(view);
     } else {
-      pendingRequests.put(view, request);
+      putPendingRequest(view, request);
       if (!paused) {
         // Send a request to start loading photos
         requestLoading();
@@ -468,10 +522,33 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
+  private void putPendingRequest(ImageView view, Request request) {
+    onPendingRequestRemoved(pendingRequests.put(view, request));
+    if (request.isUriRequest()) {
+      pendingUriRequestCounts.merge(request, 1, Integer::sum);
+    }
+  }
+
+  private void removePendingRequest(ImageView view) {
+    onPendingRequestRemoved(pendingRequests.remove(view));
+  }
+
+  private void clearPendingRequests() {
+    pendingRequests.clear();
+    pendingUriRequestCounts.clear();
+  }
+
+  private void onPendingRequestRemoved(@Nullable Request request) {
+    if (request != null && request.isUriRequest()) {
+      pendingUriRequestCounts.computeIfPresent(
+          request, (key, count) -> count > 1 ? count - 1 : null);
+    }
+  }
+
   @Override
   public void removePhoto(ImageView view) {
     view.setImageDrawable(null);
-    pendingRequests.remove(view);
+    removePendingRequest(view);
   }
 
   /**
@@ -481,16 +558,18 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   @Override
   public void cancelPendingRequests(View fragmentRootView) {
     if (fragmentRootView == null) {
-      pendingRequests.clear();
+      clearPendingRequests();
       return;
     }
     final Iterator<Entry<ImageView, Request>> iterator = pendingRequests.entrySet().iterator();
     while (iterator.hasNext()) {
-      final ImageView imageView = iterator.next().getKey();
+      final Entry<ImageView, Request> entry = iterator.next();
+      final ImageView imageView = entry.getKey();
       // If an ImageView is orphaned (currently scrap) or a child of fragmentRootView, then
       // we can safely remove its request.
       if (imageView.getParent() == null || isChildView(fragmentRootView, imageView)) {
         iterator.remove();
+        onPendingRequestRemoved(entry.getValue());
       }
     }
   }
@@ -528,7 +607,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       return false;
     }
 
-    if (holder.bytes == null) {
+    if (!holder.hasPhoto()) {
       request.applyDefaultImage(view, request.isCircular);
       return holder.fresh;
     }
@@ -590,7 +669,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (DEBUG) {
       LogUtil.d("ContactPhotoManagerImpl.clear", "clear");
     }
-    pendingRequests.clear();
+    clearPendingRequests();
     bitmapHolderCache.evictAll();
     bitmapCache.evictAll();
   }
@@ -633,6 +712,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           if (!paused) {
             ensureLoaderThread();
             loaderThread.requestLoading();
+            remoteLoaderThread.requestLoading();
           }
           return true;
         }
@@ -654,8 +734,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   public void ensureLoaderThread() {
     if (loaderThread == null) {
-      loaderThread = new LoaderThread(context.getContentResolver());
+      loaderThread = new LoaderThread(context.getContentResolver(), false /* isRemote */);
       loaderThread.start();
+      remoteLoaderThread = new LoaderThread(context.getContentResolver(), true /* isRemote */);
+      remoteLoaderThread.start();
     }
   }
 
@@ -672,6 +754,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       final boolean loaded = loadCachedPhoto(entry.getKey(), entry.getValue(), false);
       if (loaded) {
         iterator.remove();
+        onPendingRequestRemoved(entry.getValue());
       }
     }
 
@@ -693,7 +776,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   }
 
   /** Stores the supplied bitmap in cache. */
-  private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+  private BitmapHolder cacheBitmap(
+      Object key, byte[] bytes, boolean preloading, int requestedExtent) {
     if (DEBUG) {
       BitmapHolder prev = bitmapHolderCache.get(key);
       if (prev != null && prev.bytes != null) {
@@ -730,14 +814,29 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     bitmapHolderCacheAllUnfresh = false;
+    return holder;
+  }
+
+  /** Stores a thumbnail read from {@link #thumbnailDiskCache} in cache. */
+  private void cacheDiskCachedBitmap(Long photoId, int dataVersion, Bitmap bitmap) {
+    BitmapHolder holder = new BitmapHolder(null, -1);
+    holder.dataVersion = dataVersion;
+    holder.diskCachedByteCount = bitmap.getByteCount();
+    holder.bitmap = bitmap;
+    holder.bitmapRef = new SoftReference<>(bitmap);
+    bitmapHolderCache.put(photoId, holder);
+    bitmapHolderCacheAllUnfresh = false;
   }
 
   /**
    * Populates an array of photo IDs that need to be loaded. Also decodes bitmaps that we have
    * already loaded
+   *
+   * @param isRemote whether to only collect URIs that are loaded from the network, which is done
+   *     by the remote loader thread, or everything else
    */
   private void obtainPhotoIdsAndUrisToLoad(
-      Set<Long> photoIds, Set<String> photoIdsAsStrings, Set<Request> uris) {
+      Set<Long> photoIds, Set<String> photoIdsAsStrings, Set<Request> uris, boolean isRemote) {
     photoIds.clear();
     photoIdsAsStrings.clear();
     uris.clear();
@@ -759,16 +858,39 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       if (holder == BITMAP_UNAVAILABLE) {
         continue;
       }
+      if (isRemote) {
+        if ((holder == null || !holder.fresh) && request.isRemoteUriRequest()) {
+          uris.add(request);
+        }
+        continue;
+      }
       if (holder != null
-          && holder.bytes != null
+          && holder.hasPhoto()
           && holder.fresh
           && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
         // This was previously loaded but we don't currently have the inflated Bitmap
-        inflateBitmap(holder, request.getRequestedExtent());
+        if (!holder.isDiskCached()) {
+          inflateBitmap(holder, request.getRequestedExtent());
+          if (holder.bitmap != null && holder.dataVersion >= 0) {
+            // Preloaded photos are only decoded now.
+            thumbnailDiskCache.putIfAbsent(request.getId(), holder.dataVersion, holder.bitmap);
+          }
+        } else {
+          Bitmap bitmap = thumbnailDiskCache.get(request.getId(), holder.dataVersion);
+          if (bitmap == null) {
+            // Evicted from disk as well, reload it from the database.
+            holder.fresh = false;
+          } else {
+            holder.bitmap = bitmap;
+            holder.bitmapRef = new SoftReference<>(bitmap);
+          }
+        }
         jpegsDecoded = true;
       } else {
         if (holder == null || !holder.fresh) {
-          if (request.isUriRequest()) {
+          if (request.isRemoteUriRequest()) {
+            // Loaded by the remote loader thread.
+          } else if (request.isUriRequest()) {
             uris.add(request);
           } else {
             photoIds.add(request.getId());
@@ -793,12 +915,31 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     Bitmap bitmap;
     Reference<Bitmap> bitmapRef;
     int decodedSampleSize;
+    /**
+     * Version of the data row the photo was loaded from, -1 if unknown. Used as key into {@link
+     * #thumbnailDiskCache}.
+     */
+    int dataVersion = -1;
+    /** Size of the thumbnail of a holder that {@link #isDiskCached()}, for the LRU cache. */
+    int diskCachedByteCount;
 
     public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
       this.bytes = bytes;
       this.fresh = true;
       this.originalSmallerExtent = originalSmallerExtent;
     }
+
+    /**
+     * Whether this holds a thumbnail read from {@link #thumbnailDiskCache}. Such a holder has no
+     * {@link #bytes}, its bitmap is read from disk again when needed.
+     */
+    boolean isDiskCached() {
+      return bytes == null && dataVersion >= 0;
+    }
+
+    boolean hasPhoto() {
+      return bytes != null || isDiskCached();
+    }
   }
 
   /**
@@ -849,6 +990,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       return uri != null;
     }
 
+    /** Whether the photo has to be downloaded. */
+    boolean isRemoteUriRequest() {
+      if (uri == null) {
+        return false;
+      }
+      String scheme = uri.getScheme();
+      return "http".equals(scheme) || "https".equals(scheme);
+    }
+
     public Uri getUri() {
       return uri;
     }
@@ -929,7 +1079,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
   }
 
-  /** The thread that performs loading of photos from the database. */
+  /**
+   * The thread that performs loading of photos. There is one for photos from the database and
+   * other local sources, which also preloads photos, and one for photos from the network.
+   */
   private class LoaderThread extends HandlerThread implements Callback {
 
     private static final int BUFFER_SIZE = 1024 * 16;
@@ -952,6 +1105,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private static final int PRELOAD_STATUS_IN_PROGRESS = 1;
     private static final int PRELOAD_STATUS_DONE = 2;
     private final ContentResolver resolver;
+    private final boolean isRemote;
     private final StringBuilder stringBuilder = new StringBuilder();
     private final Set<Long> photoIds = new HashSet<>();
     private final Set<String> photoIdsAsStrings = new HashSet<>();
@@ -961,9 +1115,34 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private byte[] buffer;
     private int preloadStatus = PRELOAD_STATUS_NOT_STARTED;
 
-    public LoaderThread(ContentResolver resolver) {
-      super(LOADER_THREAD_NAME);
+    /** Number of photos that needed loading in the last pass. */
+    private volatile int queueDepth;
+    /** Number of passes that loaded any photo, and how long they took in total and at most. */
+    private volatile int loadCount;
+    private volatile long totalLoadMillis;
+    private volatile long maxLoadMillis;
+
+    public LoaderThread(ContentResolver resolver, boolean isRemote) {
+      super(isRemote ? REMOTE_LOADER_THREAD_NAME : LOADER_THREAD_NAME);
       this.resolver = resolver;
+      this.isRemote = isRemote;
+      if (isRemote) {
+        preloadStatus = PRELOAD_STATUS_DONE;
+      }
+    }
+
+    /** Returns the queue depth and latency of this thread, for logging. */
+    String getStats() {
+      int count = loadCount;
+      return "queue: "
+          + queueDepth
+          + ", loads: "
+          + count
+          + ", avg: "
+          + (count == 0 ? 0 : totalLoadMillis / count)
+          + "ms, max: "
+          + maxLoadMillis
+          + "ms";
     }
 
     public void ensureHandler() {
@@ -998,6 +1177,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     public void requestLoading() {
       ensureHandler();
       loaderThreadHandler.removeMessages(MESSAGE_PRELOAD_PHOTOS);
+      // A single pass picks up all pending requests.
+      loaderThreadHandler.removeMessages(MESSAGE_LOAD_PHOTOS);
       loaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
     }
 
@@ -1115,9 +1296,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       if (!PermissionsUtil.hasPermission(context, android.Manifest.permission.READ_CONTACTS)) {
         return;
       }
-      obtainPhotoIdsAndUrisToLoad(photoIds, photoIdsAsStrings, photoUris);
+      obtainPhotoIdsAndUrisToLoad(photoIds, photoIdsAsStrings, photoUris, isRemote);
+      queueDepth = photoIds.size() + photoUris.size();
+      if (queueDepth == 0) {
+        requestPreloading();
+        return;
+      }
+      long startTime = SystemClock.elapsedRealtime();
       loadThumbnails(false);
       loadUriBasedPhotos();
+      long loadMillis = SystemClock.elapsedRealtime() - startTime;
+      loadCount++;
+      totalLoadMillis += loadMillis;
+      maxLoadMillis = Math.max(maxLoadMillis, loadMillis);
+      if (DEBUG) {
+        LogUtil.d(
+            "ContactPhotoManagerImpl.loadPhotosInBackground",
+            (isRemote ? "remote" : "local") + " loaded " + queueDepth + " in " + loadMillis + "ms");
+      }
       requestPreloading();
     }
 
@@ -1139,15 +1335,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
       }
 
-      stringBuilder.setLength(0);
-      stringBuilder.append(Photo._ID + " IN(");
-      for (int i = 0; i < photoIds.size(); i++) {
-        if (i != 0) {
-          stringBuilder.append(',');
-        }
-        stringBuilder.append('?');
+      Map<Long, Integer> dataVersions = loadThumbnailsFromDiskCache();
+      if (photoIds.isEmpty()) {
+        mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        return;
       }
-      stringBuilder.append(')');
 
       Cursor cursor = null;
       try {
@@ -1160,7 +1352,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
             resolver.query(
                 Data.CONTENT_URI,
                 COLUMNS,
-                stringBuilder.toString(),
+                buildPhotoIdSelection(),
                 photoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
                 null);
 
@@ -1168,7 +1360,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           while (cursor.moveToNext()) {
             Long id = cursor.getLong(0);
             byte[] bytes = cursor.getBlob(1);
-            cacheBitmap(id, bytes, preloading, -1);
+            BitmapHolder holder = cacheBitmap(id, bytes, preloading, -1);
+            Integer dataVersion = dataVersions.get(id);
+            if (bytes != null && dataVersion != null) {
+              holder.dataVersion = dataVersion;
+              if (holder.bitmap != null) {
+                thumbnailDiskCache.putIfAbsent(id, dataVersion, holder.bitmap);
+              }
+            }
             photoIds.remove(id);
           }
         }
@@ -1200,12 +1399,63 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         } else {
           // Not a profile photo and not found - mark the cache accordingly
           cacheBitmap(id, null, preloading, -1);
+          thumbnailDiskCache.remove(id);
         }
       }
 
       mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
     }
 
+    /**
+     * Looks up the current data version of the photos in {@link #photoIds} and takes the ones with
+     * an up to date thumbnail in {@link #thumbnailDiskCache} from disk instead of the database.
+     * Those are removed from {@link #photoIds}.
+     *
+     * @return the data version of the remaining photos that were found
+     */
+    @WorkerThread
+    private Map<Long, Integer> loadThumbnailsFromDiskCache() {
+      Map<Long, Integer> dataVersions = new HashMap<>();
+      try (Cursor cursor =
+          resolver.query(
+              Data.CONTENT_URI,
+              VERSION_COLUMNS,
+              buildPhotoIdSelection(),
+              photoIdsAsStrings.toArray(EMPTY_STRING_ARRAY),
+              null)) {
+        if (cursor == null) {
+          return dataVersions;
+        }
+        while (cursor.moveToNext()) {
+          Long id = cursor.getLong(0);
+          int dataVersion = cursor.getInt(1);
+          Bitmap bitmap = thumbnailDiskCache.get(id, dataVersion);
+          if (bitmap == null) {
+            dataVersions.put(id, dataVersion);
+          } else {
+            cacheDiskCachedBitmap(id, dataVersion, bitmap);
+            photoIds.remove(id);
+            photoIdsAsStrings.remove(String.valueOf(id));
+          }
+        }
+      }
+      return dataVersions;
+    }
+
+    /** Returns a selection matching the IDs in {@link #photoIdsAsStrings}. */
+    private String buildPhotoIdSelection() {
+      stringBuilder.setLength(0);
+      stringBuilder.append(Photo._ID + " IN(");
+      for (int i = 0; i < photoIdsAsStrings.size(); i++) {
+        if (i != 0) {
+          stringBuilder.append(',');
+        }
+        stringBuilder.append('?');
+      }
+      stringBuilder.append(')');
+      return stringBuilder.toString();
+    }
+
     /**
      * Loads photos referenced with Uris. Those can be remote thumbnails (from directory searches),
      * display photos etc
@@ -1213,6 +1463,10 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     @WorkerThread
     private void loadUriBasedPhotos() {
       for (Request uriRequest : photoUris) {
+        if (!pendingUriRequestCounts.containsKey(uriRequest)) {
+          // The view was recycled or cleared while earlier photos were loading.
+          continue;
+        }
         // Keep the original URI and use this to key into the cache.  Failure to do so will
         // result in an image being continually reloaded into cache if the original URI
         // has a contact type encodedFragment (eg nearby places business photo URLs).
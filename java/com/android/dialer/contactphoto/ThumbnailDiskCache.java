@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.contactphoto;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import com.android.dialer.common.LogUtil;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Disk cache for decoded contact thumbnails, so that they don't have to be read from CP2 and
+ * decoded again after the process restarts.
+ *
+ * <p>Each thumbnail is one file named after the photo ID and the {@link
+ * android.provider.ContactsContract.Data#DATA_VERSION} of the row it was decoded from, holding the
+ * raw ARGB_8888 pixels. Files are read back through a memory map. A thumbnail whose photo changed
+ * is never returned since the version no longer matches. The least recently used files are removed
+ * once the cache grows over its maximum size.
+ */
+final class ThumbnailDiskCache {
+
+  private static final int MAGIC = 0x54484d42; // "THMB"
+  private static final int HEADER_SIZE = 3 * Integer.BYTES;
+
+  private final File directory;
+  private final long maxSizeBytes;
+
+  /** Cached thumbnails by photo ID, least recently used first. Loaded on first use. */
+  private LinkedHashMap<Long, Entry> entries;
+
+  private long sizeBytes;
+
+  ThumbnailDiskCache(File directory, long maxSizeBytes) {
+    this.directory = directory;
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  /** Returns the thumbnail of {@code photoId} decoded from {@code dataVersion}, if it is cached. */
+  @WorkerThread
+  @Nullable
+  synchronized Bitmap get(long photoId, int dataVersion) {
+    ensureEntriesLoaded();
+    Entry entry = entries.get(photoId);
+    if (entry == null) {
+      return null;
+    }
+    File file = getFile(photoId, entry.dataVersion);
+    if (entry.dataVersion != dataVersion) {
+      // The photo changed since it was cached.
+      remove(photoId);
+      return null;
+    }
+
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        FileChannel channel = randomAccessFile.getChannel()) {
+      MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+        throw new IOException("invalid header");
+      }
+      int width = buffer.getInt();
+      int height = buffer.getInt();
+      if (width <= 0 || height <= 0 || buffer.remaining() != width * height * 4) {
+        throw new IOException("invalid size " + width + "x" + height);
+      }
+      Bitmap bitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+      bitmap.copyPixelsFromBuffer(buffer);
+      // Remember the access across restarts for eviction.
+      file.setLastModified(System.currentTimeMillis());
+      return bitmap;
+    } catch (IOException | OutOfMemoryError e) {
+      LogUtil.w("ThumbnailDiskCache.get", "failed to read thumbnail: " + e);
+      remove(photoId);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the thumbnail of {@code photoId} decoded from {@code dataVersion}, unless it is stored
+   * already.
+   */
+  @WorkerThread
+  synchronized void putIfAbsent(long photoId, int dataVersion, Bitmap bitmap) {
+    if (bitmap.getConfig() != Config.ARGB_8888) {
+      return;
+    }
+    ensureEntriesLoaded();
+    Entry existing = entries.get(photoId);
+    if (existing != null && existing.dataVersion == dataVersion) {
+      return;
+    }
+    int pixelBytes = bitmap.getWidth() * bitmap.getHeight() * 4;
+    if (HEADER_SIZE + pixelBytes > maxSizeBytes) {
+      return;
+    }
+    remove(photoId);
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + pixelBytes);
+    buffer.putInt(MAGIC).putInt(bitmap.getWidth()).putInt(bitmap.getHeight());
+    bitmap.copyPixelsToBuffer(buffer);
+    buffer.flip();
+
+    File file = getFile(photoId, dataVersion);
+    File tempFile = new File(directory, file.getName() + ".tmp");
+    try (FileOutputStream outputStream = new FileOutputStream(tempFile)) {
+      FileChannel channel = outputStream.getChannel();
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      LogUtil.w("ThumbnailDiskCache.putIfAbsent", "failed to write thumbnail: " + e);
+      tempFile.delete();
+      return;
+    }
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      return;
+    }
+
+    entries.put(photoId, new Entry(dataVersion, file.length()));
+    sizeBytes += file.length();
+    trimToSize();
+  }
+
+  /** Removes the thumbnail of {@code photoId}, e.g. because the photo was deleted. */
+  @WorkerThread
+  synchronized void remove(long photoId) {
+    ensureEntriesLoaded();
+    Entry entry = entries.remove(photoId);
+    if (entry != null) {
+      sizeBytes -= entry.sizeBytes;
+      getFile(photoId, entry.dataVersion).delete();
+    }
+  }
+
+  private void trimToSize() {
+    Iterator<Map.Entry<Long, Entry>> iterator = entries.entrySet().iterator();
+    while (sizeBytes > maxSizeBytes && iterator.hasNext()) {
+      Map.Entry<Long, Entry> eldest = iterator.next();
+      iterator.remove();
+      sizeBytes -= eldest.getValue().sizeBytes;
+      getFile(eldest.getKey(), eldest.getValue().dataVersion).delete();
+    }
+  }
+
+  private void ensureEntriesLoaded() {
+    if (entries != null) {
+      return;
+    }
+    entries = new LinkedHashMap<>(16, 0.75f, /* accessOrder= */ true);
+    sizeBytes = 0;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      LogUtil.w("ThumbnailDiskCache.ensureEntriesLoaded", "cannot create " + directory);
+      return;
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    Arrays.sort(files, (file1, file2) -> Long.compare(file1.lastModified(), file2.lastModified()));
+    for (File file : files) {
+      String[] parts = file.getName().split("_");
+      try {
+        if (parts.length != 2) {
+          throw new NumberFormatException();
+        }
+        long photoId = Long.parseLong(parts[0]);
+        int dataVersion = Integer.parseInt(parts[1]);
+        Entry previous = entries.put(photoId, new Entry(dataVersion, file.length()));
+        if (previous != null) {
+          sizeBytes -= previous.sizeBytes;
+          getFile(photoId, previous.dataVersion).delete();
+        }
+        sizeBytes += file.length();
+      } catch (NumberFormatException e) {
+        // Left over from an interrupted write.
+        file.delete();
+      }
+    }
+    trimToSize();
+  }
+
+  private File getFile(long photoId, int dataVersion) {
+    return new File(directory, photoId + "_" + dataVersion);
+  }
+
+  private static final class Entry {
+    final int dataVersion;
+    final long sizeBytes;
+
+    Entry(int dataVersion, long sizeBytes) {
+      this.dataVersion = dataVersion;
+      this.sizeBytes = sizeBytes;
+    }
+  }
+}
@@ -33,6 +33,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.telecom.TelecomManager;
 import android.text.TextUtils;
+import android.util.LruCache;
 import com.android.dialer.common.Assert;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -87,9 +88,28 @@ public class LetterTileDrawable extends Drawable {
   /** Default icon scale for vector drawable. */
   private static final float VECTOR_ICON_SCALE = 0.7f;
 
+  /** Tiles bigger than this in either dimension are drawn directly instead of being cached. */
+  private static final int MAX_CACHED_TILE_SIZE = 512;
+
+  /**
+   * Tiles rendered so far, shared by all instances. Lists show the same few letters and colors over
+   * and over, so drawing a tile is mostly a bitmap blit.
+   */
+  private static final LruCache<TileKey, Bitmap> tileCache =
+      new LruCache<TileKey, Bitmap>(2 * 1024 * 1024) {
+        @Override
+        protected int sizeOf(TileKey key, Bitmap value) {
+          return value.getByteCount();
+        }
+      };
+
   /** Reusable components to avoid new allocations */
   private final Paint paint = new Paint();
 
+  private final Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+  private final TileKey tileLookupKey = new TileKey();
+  private boolean hasColorFilter;
+
   private final Rect rect = new Rect();
   private final char[] firstChar = new char[1];
 
@@ -183,8 +203,35 @@ public class LetterTileDrawable extends Drawable {
     if (!isVisible() || bounds.isEmpty()) {
       return;
     }
-    // Draw letter tile.
-    drawLetterTile(canvas);
+    Bitmap tile = hasColorFilter ? null : getCachedTile(bounds);
+    if (tile != null) {
+      canvas.drawBitmap(tile, bounds.left, bounds.top, tilePaint);
+    } else {
+      // Draw letter tile.
+      drawLetterTile(canvas);
+    }
+  }
+
+  /** Returns the tile for the current state and bounds, rendering it if it isn't cached yet. */
+  @Nullable
+  private Bitmap getCachedTile(Rect bounds) {
+    if (bounds.width() > MAX_CACHED_TILE_SIZE || bounds.height() > MAX_CACHED_TILE_SIZE) {
+      return null;
+    }
+    if (letter == null) {
+      // Settles the scale of the icon before it becomes part of the key.
+      getDrawableForContactType(contactType);
+    }
+    tileLookupKey.set(this, bounds);
+    Bitmap tile = tileCache.get(tileLookupKey);
+    if (tile == null) {
+      tile = Bitmap.createBitmap(bounds.width(), bounds.height(), Config.ARGB_8888);
+      Canvas tileCanvas = new Canvas(tile);
+      tileCanvas.translate(-bounds.left, -bounds.top);
+      drawLetterTile(tileCanvas);
+      tileCache.put(tileLookupKey.copy(), tile);
+    }
+    return tile;
   }
 
   public Bitmap getBitmap(int width, int height) {
@@ -279,6 +326,7 @@ public class LetterTileDrawable extends Drawable {
   @Override
   public void setColorFilter(final ColorFilter cf) {
     paint.setColorFilter(cf);
+    hasColorFilter = cf != null;
   }
 
   @Override
@@ -436,4 +484,75 @@ public class LetterTileDrawable extends Drawable {
       return LetterTileDrawable.TYPE_DEFAULT;
     }
   }
+
+  /** Everything that affects how a tile looks. */
+  private static final class TileKey {
+    private char letter;
+    private int color;
+    private int fontColor;
+    private int contactType;
+    private boolean isCircle;
+    private float scale;
+    private float offset;
+    private int width;
+    private int height;
+
+    void set(LetterTileDrawable drawable, Rect bounds) {
+      letter = drawable.letter == null ? 0 : drawable.letter;
+      color = drawable.color;
+      fontColor = drawable.tileFontColor;
+      contactType = drawable.contactType;
+      isCircle = drawable.isCircle;
+      scale = drawable.scale;
+      offset = drawable.offset;
+      width = bounds.width();
+      height = bounds.height();
+    }
+
+    TileKey copy() {
+      TileKey copy = new TileKey();
+      copy.letter = letter;
+      copy.color = color;
+      copy.fontColor = fontColor;
+      copy.contactType = contactType;
+      copy.isCircle = isCircle;
+      copy.scale = scale;
+      copy.offset = offset;
+      copy.width = width;
+      copy.height = height;
+      return copy;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof TileKey)) {
+        return false;
+      }
+      TileKey that = (TileKey) obj;
+      return letter == that.letter
+          && color == that.color
+          && fontColor == that.fontColor
+          && contactType == that.contactType
+          && isCircle == that.isCircle
+          && Float.compare(scale, that.scale) == 0
+          && Float.compare(offset, that.offset) == 0
+          && width == that.width
+          && height == that.height;
+    }
+
+    @Override
+    public int hashCode() {
+      // Hand-rolled, since Objects.hash() would box every field on each draw.
+      int hash = letter;
+      hash = 31 * hash + color;
+      hash = 31 * hash + fontColor;
+      hash = 31 * hash + contactType;
+      hash = 31 * hash + (isCircle ? 1 : 0);
+      hash = 31 * hash + Float.floatToIntBits(scale);
+      hash = 31 * hash + Float.floatToIntBits(offset);
+      hash = 31 * hash + width;
+      hash = 31 * hash + height;
+      return hash;
+    }
+  }
 }
@@ -14,11 +14,15 @@
 
 package com.android.dialer.phonenumbercache;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteFullException;
 import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.CallLog;
 import android.provider.CallLog.Calls;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
@@ -30,11 +34,13 @@ import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.Pair;
 import com.android.contacts.common.ContactsUtils;
 import com.android.contacts.common.ContactsUtils.UserType;
 import com.android.contacts.common.util.Constants;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.logging.ContactSource;
 import com.android.dialer.oem.CequintCallerIdManager;
 import com.android.dialer.oem.CequintCallerIdManager.CequintCallerIdContact;
@@ -44,7 +50,10 @@ import com.android.dialer.telecom.TelecomUtil;
 import com.android.dialer.util.PermissionsUtil;
 import com.android.dialer.util.UriUtils;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.json.JSONException;
 import org.json.JSONObject;
 
@@ -53,10 +62,26 @@ public class ContactInfoHelper {
 
   private static final String TAG = ContactInfoHelper.class.getSimpleName();
 
+  /** Pending call log updates are written once there are this many of them... */
+  private static final int CALL_LOG_UPDATE_BATCH_SIZE = 50;
+
+  /** ...or once the oldest has been pending for this long. */
+  private static final long CALL_LOG_UPDATE_DELAY_MILLIS = 1_000;
+
   private final Context context;
   private final String currentCountryIso;
   private final CachedNumberLookupService cachedNumberLookupService;
 
+  /**
+   * Call log updates not written yet, by number and country ISO. Guarded by itself. A newer update
+   * of the same number is merged into the pending one.
+   */
+  private final Map<Pair<String, String>, ContentValues> pendingCallLogUpdates =
+      new LinkedHashMap<>();
+
+  /** Whether a write of {@link #pendingCallLogUpdates} is scheduled. Guarded by that map. */
+  private boolean callLogUpdateScheduled;
+
   public ContactInfoHelper(Context context, String currentCountryIso) {
     this.context = context;
     this.currentCountryIso = currentCountryIso;
@@ -462,6 +487,9 @@ public class ContactInfoHelper {
   /**
    * Stores differences between the updated contact info and the current call log contact info.
    *
+   * <p>The differences are written to the call log in batches, see {@link
+   * #flushCallLogContactInfoUpdates()}.
+   *
    * @param number The number of the contact.
    * @param countryIso The country associated with this number.
    * @param updatedInfo The updated contact info.
@@ -550,25 +578,79 @@ public class ContactInfoHelper {
       return;
     }
 
-    try {
-      if (countryIso == null) {
-        context
-            .getContentResolver()
-            .update(
-                TelecomUtil.getCallLogUri(context),
-                values,
-                Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL",
-                new String[] {number});
+    boolean writeNow;
+    synchronized (pendingCallLogUpdates) {
+      Pair<String, String> key = Pair.create(number, countryIso);
+      ContentValues pendingValues = pendingCallLogUpdates.get(key);
+      if (pendingValues != null) {
+        pendingValues.putAll(values);
       } else {
-        context
-            .getContentResolver()
-            .update(
-                TelecomUtil.getCallLogUri(context),
-                values,
-                Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
-                new String[] {number, countryIso});
+        pendingCallLogUpdates.put(key, values);
+      }
+      writeNow = pendingCallLogUpdates.size() >= CALL_LOG_UPDATE_BATCH_SIZE;
+      if (!writeNow && !callLogUpdateScheduled) {
+        callLogUpdateScheduled = true;
+        DialerExecutorComponent.get(context)
+            .nonUiSerialScheduledExecutor()
+            .schedule(
+                this::writePendingCallLogUpdates,
+                CALL_LOG_UPDATE_DELAY_MILLIS,
+                TimeUnit.MILLISECONDS);
       }
-    } catch (SQLiteFullException e) {
+    }
+    if (writeNow) {
+      writePendingCallLogUpdates();
+    }
+  }
+
+  /**
+   * Writes the call log updates stored by {@link #updateCallLogContactInfo(String, String,
+   * ContactInfo, ContactInfo)} that are still pending, on a background thread.
+   */
+  public void flushCallLogContactInfoUpdates() {
+    synchronized (pendingCallLogUpdates) {
+      if (pendingCallLogUpdates.isEmpty()) {
+        return;
+      }
+    }
+    DialerExecutorComponent.get(context)
+        .nonUiSerialScheduledExecutor()
+        .execute(this::writePendingCallLogUpdates);
+  }
+
+  /** Writes the pending call log updates with a single batch. */
+  @WorkerThread
+  private void writePendingCallLogUpdates() {
+    Uri callLogUri = TelecomUtil.getCallLogUri(context);
+    ArrayList<ContentProviderOperation> operations;
+    synchronized (pendingCallLogUpdates) {
+      callLogUpdateScheduled = false;
+      if (pendingCallLogUpdates.isEmpty()) {
+        return;
+      }
+      operations = new ArrayList<>(pendingCallLogUpdates.size());
+      for (Map.Entry<Pair<String, String>, ContentValues> entry :
+          pendingCallLogUpdates.entrySet()) {
+        String number = entry.getKey().first;
+        String countryIso = entry.getKey().second;
+        ContentProviderOperation.Builder builder =
+            ContentProviderOperation.newUpdate(callLogUri).withValues(entry.getValue());
+        if (countryIso == null) {
+          builder.withSelection(
+              Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " IS NULL", new String[] {number});
+        } else {
+          builder.withSelection(
+              Calls.NUMBER + " = ? AND " + Calls.COUNTRY_ISO + " = ?",
+              new String[] {number, countryIso});
+        }
+        operations.add(builder.build());
+      }
+      pendingCallLogUpdates.clear();
+    }
+
+    try {
+      context.getContentResolver().applyBatch(CallLog.AUTHORITY, operations);
+    } catch (SQLiteFullException | RemoteException | OperationApplicationException e) {
       LogUtil.e(TAG, "Unable to update contact info in call log db", e);
     }
   }
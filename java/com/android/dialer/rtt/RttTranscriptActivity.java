@@ -30,6 +30,8 @@ import com.android.dialer.common.concurrent.UiListener;
 import com.android.dialer.glidephotomanager.PhotoInfo;
 import com.android.dialer.protos.ProtoParsers;
 import com.android.dialer.widget.DialerToolbar;
+import com.google.common.collect.ImmutableList;
+import java.util.List;
 
 /** Activity holds RTT transcript. */
 public class RttTranscriptActivity extends AppCompatActivity {
@@ -38,9 +40,13 @@ public class RttTranscriptActivity extends AppCompatActivity {
   public static final String EXTRA_PRIMARY_TEXT = "extra_primary_text";
   public static final String EXTRA_PHOTO_INFO = "extra_photo_info";
 
+  private static final int PAGE_SIZE = 50;
+
   private RttTranscriptAdapter adapter;
-  private UiListener<RttTranscript> rttTranscriptUiListener;
+  private UiListener<ImmutableList<RttTranscriptMessage>> rttTranscriptUiListener;
   private DialerToolbar toolbar;
+  private String transcriptId;
+  private boolean isLoadingPage;
 
   public static Intent getIntent(
       Context context, String transcriptId, String primaryText, PhotoInfo photoInfo) {
@@ -63,7 +69,7 @@ public class RttTranscriptActivity extends AppCompatActivity {
     LinearLayoutManager layoutManager = new LinearLayoutManager(this);
     recyclerView.setLayoutManager(layoutManager);
     recyclerView.setHasFixedSize(true);
-    adapter = new RttTranscriptAdapter(this);
+    adapter = new RttTranscriptAdapter(this, this::loadPage);
     recyclerView.setAdapter(adapter);
 
     rttTranscriptUiListener =
@@ -77,14 +83,10 @@ public class RttTranscriptActivity extends AppCompatActivity {
     Assert.checkArgument(intent.hasExtra(EXTRA_PRIMARY_TEXT));
     Assert.checkArgument(intent.hasExtra(EXTRA_PHOTO_INFO));
 
-    String id = intent.getStringExtra(EXTRA_TRANSCRIPT_ID);
-    rttTranscriptUiListener.listen(
-        this,
-        RttTranscriptUtil.loadRttTranscript(this, id),
-        adapter::setRttTranscript,
-        throwable -> {
-          throw new RuntimeException(throwable);
-        });
+    transcriptId = intent.getStringExtra(EXTRA_TRANSCRIPT_ID);
+    isLoadingPage = false;
+    adapter.clearMessages();
+    loadPage(0);
 
     String primaryText = intent.getStringExtra(EXTRA_PRIMARY_TEXT);
     toolbar.setTitle(primaryText);
@@ -97,6 +99,30 @@ public class RttTranscriptActivity extends AppCompatActivity {
     adapter.setPhotoInfo(sanitizedPhotoInfo);
   }
 
+  private void loadPage(int offset) {
+    if (isLoadingPage) {
+      return;
+    }
+    isLoadingPage = true;
+    String id = transcriptId;
+    rttTranscriptUiListener.listen(
+        this,
+        RttTranscriptUtil.loadRttTranscriptMessages(this, id, offset, PAGE_SIZE),
+        messages -> onPageLoaded(id, messages),
+        throwable -> {
+          throw new RuntimeException(throwable);
+        });
+  }
+
+  private void onPageLoaded(String id, List<RttTranscriptMessage> messages) {
+    if (!id.equals(transcriptId)) {
+      // A page of a transcript that is no longer shown.
+      return;
+    }
+    isLoadingPage = false;
+    adapter.appendMessages(messages, messages.size() == PAGE_SIZE);
+  }
+
   @Override
   protected void onNewIntent(Intent intent) {
     super.onNewIntent(intent);
@@ -21,20 +21,38 @@ import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import com.android.dialer.common.LogUtil;
 import com.android.dialer.glidephotomanager.PhotoInfo;
+import java.util.ArrayList;
+import java.util.List;
 
-/** Adapter class for holding RTT chat data. */
+/**
+ * Adapter class for holding RTT chat data.
+ *
+ * <p>Messages are appended a page at a time. Binding one of the last {@link #LOAD_AHEAD_COUNT}
+ * loaded messages asks the {@link OnLoadMoreListener} for the next page.
+ */
 public class RttTranscriptAdapter extends RecyclerView.Adapter<RttTranscriptMessageViewHolder> {
 
+  /** Listener for when more messages should be loaded. */
+  interface OnLoadMoreListener {
+
+    /** Called when the messages from position {@code offset} on are about to be shown. */
+    void onLoadMore(int offset);
+  }
+
+  private static final int LOAD_AHEAD_COUNT = 10;
+
   private PhotoInfo photoInfo;
 
   private final Context context;
-  private RttTranscript rttTranscript;
+  private final OnLoadMoreListener onLoadMoreListener;
+  private final List<RttTranscriptMessage> messages = new ArrayList<>();
+  private boolean hasMoreMessages;
   private int firstPositionToShowTimestamp;
 
-  RttTranscriptAdapter(Context context) {
+  RttTranscriptAdapter(Context context, OnLoadMoreListener onLoadMoreListener) {
     this.context = context;
+    this.onLoadMoreListener = onLoadMoreListener;
   }
 
   @Override
@@ -53,14 +71,12 @@ public class RttTranscriptAdapter extends RecyclerView.Adapter<RttTranscriptMess
   public void onBindViewHolder(RttTranscriptMessageViewHolder rttChatMessageViewHolder, int i) {
     boolean isSameGroup = false;
     boolean hasMoreInSameGroup = false;
-    RttTranscriptMessage rttTranscriptMessage = rttTranscript.getMessages(i);
+    RttTranscriptMessage rttTranscriptMessage = messages.get(i);
     if (i > 0) {
-      isSameGroup =
-          rttTranscriptMessage.getIsRemote() == rttTranscript.getMessages(i - 1).getIsRemote();
+      isSameGroup = rttTranscriptMessage.getIsRemote() == messages.get(i - 1).getIsRemote();
     }
     if (i + 1 < getItemCount()) {
-      hasMoreInSameGroup =
-          rttTranscriptMessage.getIsRemote() == rttTranscript.getMessages(i + 1).getIsRemote();
+      hasMoreInSameGroup = rttTranscriptMessage.getIsRemote() == messages.get(i + 1).getIsRemote();
     }
     rttChatMessageViewHolder.setMessage(rttTranscriptMessage, isSameGroup, photoInfo);
     if (hasMoreInSameGroup) {
@@ -71,36 +87,56 @@ public class RttTranscriptAdapter extends RecyclerView.Adapter<RttTranscriptMess
           rttTranscriptMessage.getIsRemote(),
           i == firstPositionToShowTimestamp);
     }
+    if (hasMoreMessages && i >= messages.size() - LOAD_AHEAD_COUNT) {
+      onLoadMoreListener.onLoadMore(messages.size());
+    }
   }
 
   @Override
   public int getItemCount() {
-    if (rttTranscript == null) {
-      return 0;
-    }
-    return rttTranscript.getMessagesCount();
+    return messages.size();
   }
 
-  void setRttTranscript(RttTranscript rttTranscript) {
-    if (rttTranscript == null) {
-      LogUtil.w("RttTranscriptAdapter.setRttTranscript", "null RttTranscript");
+  /** Removes all messages, before the messages of another transcript are appended. */
+  void clearMessages() {
+    messages.clear();
+    hasMoreMessages = false;
+    firstPositionToShowTimestamp = 0;
+    notifyDataSetChanged();
+  }
+
+  /**
+   * Appends a page of messages after the ones already loaded.
+   *
+   * @param hasMoreMessages whether the transcript continues after this page
+   */
+  void appendMessages(List<RttTranscriptMessage> page, boolean hasMoreMessages) {
+    this.hasMoreMessages = hasMoreMessages;
+    if (page.isEmpty()) {
       return;
     }
-    this.rttTranscript = rttTranscript;
-    firstPositionToShowTimestamp = findFirstPositionToShowTimestamp(rttTranscript);
+    int oldSize = messages.size();
+    messages.addAll(page);
+    firstPositionToShowTimestamp =
+        findFirstPositionToShowTimestamp(messages, firstPositionToShowTimestamp);
 
-    notifyDataSetChanged();
+    notifyItemRangeInserted(oldSize, page.size());
+    if (oldSize > 0) {
+      // The last message of the previous page may now be followed by more in its group.
+      notifyItemChanged(oldSize - 1);
+    }
   }
 
   /**
    * Returns first position of message that should show time stamp. This is usually the last one of
-   * first grouped messages.
+   * first grouped messages. The search starts at {@code start}, which must not be past that
+   * position.
    */
-  protected static int findFirstPositionToShowTimestamp(RttTranscript rttTranscript) {
-    int i = 0;
-    while (i + 1 < rttTranscript.getMessagesCount()
-        && rttTranscript.getMessages(i).getIsRemote()
-            == rttTranscript.getMessages(i + 1).getIsRemote()) {
+  private static int findFirstPositionToShowTimestamp(
+      List<RttTranscriptMessage> messages, int start) {
+    int i = start;
+    while (i + 1 < messages.size()
+        && messages.get(i).getIsRemote() == messages.get(i + 1).getIsRemote()) {
       i++;
     }
     return i;
@@ -37,4 +37,53 @@ public final class RttTranscriptContract {
      */
     static final String TRANSCRIPT_DATA = "transcript_data";
   }
+
+  /**
+   * Columns for a single message of an RTT transcript. Messages are written as they arrive during
+   * the call, so only the changed tail of a transcript is ever rewritten.
+   */
+  static final class RttTranscriptMessageColumn {
+
+    /**
+     * ID of the transcript the message belongs to, see {@link RttTranscriptColumn#TRANSCRIPT_ID}.
+     *
+     * <p>TYPE: INTEGER
+     */
+    static final String TRANSCRIPT_ID = "rtt_transcript_id";
+
+    /**
+     * Position of the message inside the transcript, starting at 0.
+     *
+     * <p>TYPE: INTEGER
+     */
+    static final String MESSAGE_INDEX = "message_index";
+
+    /**
+     * Text of the message.
+     *
+     * <p>TYPE: TEXT
+     */
+    static final String CONTENT = "content";
+
+    /**
+     * Time the message was started, in milliseconds since epoch.
+     *
+     * <p>TYPE: INTEGER
+     */
+    static final String TIMESTAMP = "timestamp";
+
+    /**
+     * 1 if the message was received from the remote party, 0 if it was sent from this device.
+     *
+     * <p>TYPE: INTEGER
+     */
+    static final String IS_REMOTE = "is_remote";
+
+    /**
+     * 1 if the message is complete, 0 if it was still being typed.
+     *
+     * <p>TYPE: INTEGER
+     */
+    static final String IS_FINISHED = "is_finished";
+  }
 }
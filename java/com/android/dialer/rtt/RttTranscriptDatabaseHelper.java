@@ -22,12 +22,18 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.os.SystemClock;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.rtt.RttTranscriptContract.RttTranscriptColumn;
+import com.android.dialer.rtt.RttTranscriptContract.RttTranscriptMessageColumn;
 
 /** Database helper class for RTT transcript. */
 final class RttTranscriptDatabaseHelper extends SQLiteOpenHelper {
 
   static final String TABLE = "rtt_transcript";
 
+  /** Table with one row per message, written while the call is in progress. */
+  static final String MESSAGE_TABLE = "rtt_transcript_message";
+
+  private static final int VERSION = 3;
+
   private static final String CREATE_TABLE_SQL =
       "create table if not exists "
           + TABLE
@@ -36,8 +42,26 @@ final class RttTranscriptDatabaseHelper extends SQLiteOpenHelper {
           + (RttTranscriptColumn.TRANSCRIPT_DATA + " blob not null")
           + ");";
 
+  // The primary key doubles as the index used to page through a transcript.
+  private static final String CREATE_MESSAGE_TABLE_SQL =
+      "create table if not exists "
+          + MESSAGE_TABLE
+          + " ("
+          + (RttTranscriptMessageColumn.TRANSCRIPT_ID + " text not null, ")
+          + (RttTranscriptMessageColumn.MESSAGE_INDEX + " integer not null, ")
+          + (RttTranscriptMessageColumn.CONTENT + " text not null, ")
+          + (RttTranscriptMessageColumn.TIMESTAMP + " integer not null, ")
+          + (RttTranscriptMessageColumn.IS_REMOTE + " integer not null, ")
+          + (RttTranscriptMessageColumn.IS_FINISHED + " integer not null, ")
+          + ("primary key ("
+              + RttTranscriptMessageColumn.TRANSCRIPT_ID
+              + ", "
+              + RttTranscriptMessageColumn.MESSAGE_INDEX
+              + ")")
+          + ");";
+
   RttTranscriptDatabaseHelper(Context context) {
-    super(context, "rtt_transcript.db", null, 1);
+    super(context, "rtt_transcript.db", null, VERSION);
   }
 
   @Override
@@ -45,6 +69,7 @@ final class RttTranscriptDatabaseHelper extends SQLiteOpenHelper {
     LogUtil.enterBlock("RttTranscriptDatabaseHelper.onCreate");
     long startTime = SystemClock.elapsedRealtime();
     db.execSQL(CREATE_TABLE_SQL);
+    db.execSQL(CREATE_MESSAGE_TABLE_SQL);
     LogUtil.i(
         "RttTranscriptDatabaseHelper.onCreate",
         "took: %dms",
@@ -52,5 +77,16 @@ final class RttTranscriptDatabaseHelper extends SQLiteOpenHelper {
   }
 
   @Override
-  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+  public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    if (oldVersion < 2) {
+      db.execSQL(CREATE_MESSAGE_TABLE_SQL);
+    } else if (oldVersion < 3) {
+      // Version 2 declared the transcript ID of messages as an integer, so recreate the table with
+      // the text type the IDs have everywhere else.
+      db.execSQL("alter table " + MESSAGE_TABLE + " rename to " + MESSAGE_TABLE + "_old");
+      db.execSQL(CREATE_MESSAGE_TABLE_SQL);
+      db.execSQL("insert into " + MESSAGE_TABLE + " select * from " + MESSAGE_TABLE + "_old");
+      db.execSQL("drop table " + MESSAGE_TABLE + "_old");
+    }
+  }
 }
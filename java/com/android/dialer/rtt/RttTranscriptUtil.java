@@ -19,18 +19,46 @@ package com.android.dialer.rtt;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.AnyThread;
 import android.support.annotation.WorkerThread;
+import android.util.ArraySet;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.concurrent.DialerExecutorComponent;
-import com.android.dialer.common.database.Selection;
+import com.android.dialer.common.concurrent.DialerFutureSerializer;
 import com.android.dialer.rtt.RttTranscriptContract.RttTranscriptColumn;
+import com.android.dialer.rtt.RttTranscriptContract.RttTranscriptMessageColumn;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.List;
+import java.util.Set;
 
-/** Util class to save and load RTT transcript. */
+/**
+ * Util class to save and load RTT transcript.
+ *
+ * <p>Transcripts are stored one row per message, so a call in progress only rewrites the messages
+ * that changed since its last save, and a saved transcript can be read back page by page. The IDs
+ * of all stored transcripts are kept in memory, so checking whether a call has a transcript
+ * doesn't need a query once they are loaded.
+ */
 public final class RttTranscriptUtil {
 
+  // Keeps writes for the same transcript in the order they were issued.
+  private static final DialerFutureSerializer writeSerializer = new DialerFutureSerializer();
+
+  // IDs of all stored transcripts, null until first loaded. Replaced rather than modified, so it
+  // can be read without a lock. Only written while holding RttTranscriptUtil.class.
+  private static volatile ImmutableSet<String> availableTranscriptIds;
+
+  // Incremented on every change to the stored transcripts, so that IDs loaded while a save was in
+  // progress are not published. Guarded by RttTranscriptUtil.class.
+  private static int availableTranscriptIdsVersion;
+
+  // How often to query the IDs if saves keep changing them, before giving up on keeping them.
+  private static final int MAX_LOAD_ATTEMPTS = 3;
+
   public static ListenableFuture<ImmutableSet<String>> getAvailableRttTranscriptIds(
       Context context, ImmutableSet<String> transcriptIds) {
     return DialerExecutorComponent.get(context)
@@ -38,48 +66,185 @@ public final class RttTranscriptUtil {
         .submit(() -> checkRttTranscriptAvailability(context, transcriptIds));
   }
 
+  /**
+   * Returns whether the IDs of stored transcripts are in memory, i.e. {@link
+   * #hasRttTranscript(String)} can be used instead of {@link #getAvailableRttTranscriptIds(Context,
+   * ImmutableSet)}.
+   */
+  @AnyThread
+  public static boolean areRttTranscriptIdsLoaded() {
+    return availableTranscriptIds != null;
+  }
+
+  /**
+   * Returns whether a transcript is stored for {@code transcriptId}, without querying the
+   * database. Returns false until the stored IDs have been loaded by {@link
+   * #getAvailableRttTranscriptIds(Context, ImmutableSet)}.
+   */
+  @AnyThread
+  public static boolean hasRttTranscript(String transcriptId) {
+    Set<String> ids = availableTranscriptIds;
+    return ids != null && ids.contains(transcriptId);
+  }
+
   @WorkerThread
   private static ImmutableSet<String> checkRttTranscriptAvailability(
       Context context, ImmutableSet<String> transcriptIds) {
     Assert.isWorkerThread();
-    RttTranscriptDatabaseHelper databaseHelper = new RttTranscriptDatabaseHelper(context);
+    Set<String> availableIds = loadAvailableTranscriptIds(context);
     ImmutableSet.Builder<String> builder = ImmutableSet.builder();
-    Selection selection =
-        Selection.builder()
-            .and(Selection.column(RttTranscriptColumn.TRANSCRIPT_ID).in(transcriptIds))
-            .build();
+    for (String transcriptId : transcriptIds) {
+      if (availableIds.contains(transcriptId)) {
+        builder.add(transcriptId);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Returns the IDs of all stored transcripts, querying them without holding a lock if needed. */
+  @WorkerThread
+  private static ImmutableSet<String> loadAvailableTranscriptIds(Context context) {
+    for (int attempt = 1; ; attempt++) {
+      ImmutableSet<String> ids = availableTranscriptIds;
+      if (ids != null) {
+        return ids;
+      }
+      int version;
+      synchronized (RttTranscriptUtil.class) {
+        version = availableTranscriptIdsVersion;
+      }
+      ImmutableSet<String> queriedIds = queryAllTranscriptIds(context);
+      synchronized (RttTranscriptUtil.class) {
+        if (availableTranscriptIds == null && version == availableTranscriptIdsVersion) {
+          availableTranscriptIds = queriedIds;
+          return queriedIds;
+        }
+      }
+      // A transcript was saved during the query, or another thread loaded the IDs.
+      if (attempt == MAX_LOAD_ATTEMPTS) {
+        return queriedIds;
+      }
+    }
+  }
 
+  @WorkerThread
+  private static ImmutableSet<String> queryAllTranscriptIds(Context context) {
+    ImmutableSet.Builder<String> ids = ImmutableSet.builder();
+    RttTranscriptDatabaseHelper databaseHelper = new RttTranscriptDatabaseHelper(context);
     try (Cursor cursor =
         databaseHelper
             .getReadableDatabase()
-            .query(
-                RttTranscriptDatabaseHelper.TABLE,
-                new String[] {RttTranscriptColumn.TRANSCRIPT_ID},
-                selection.getSelection(),
-                selection.getSelectionArgs(),
-                null,
-                null,
+            .rawQuery(
+                "select "
+                    + RttTranscriptColumn.TRANSCRIPT_ID
+                    + " from "
+                    + RttTranscriptDatabaseHelper.TABLE
+                    + " union select "
+                    + RttTranscriptMessageColumn.TRANSCRIPT_ID
+                    + " from "
+                    + RttTranscriptDatabaseHelper.MESSAGE_TABLE,
                 null)) {
       if (cursor != null) {
         while (cursor.moveToNext()) {
-          builder.add(cursor.getString(0));
+          ids.add(cursor.getString(0));
         }
       }
+    } finally {
+      databaseHelper.close();
     }
-    databaseHelper.close();
-    return builder.build();
+    return ids.build();
   }
 
-  static ListenableFuture<RttTranscript> loadRttTranscript(Context context, String transcriptId) {
+  private static synchronized void updateAvailableTranscriptId(
+      String transcriptId, boolean isAvailable) {
+    availableTranscriptIdsVersion++;
+    ImmutableSet<String> ids = availableTranscriptIds;
+    if (ids == null || ids.contains(transcriptId) == isAvailable) {
+      return;
+    }
+    Set<String> updated = new ArraySet<>(ids);
+    if (isAvailable) {
+      updated.add(transcriptId);
+    } else {
+      updated.remove(transcriptId);
+    }
+    availableTranscriptIds = ImmutableSet.copyOf(updated);
+  }
+
+  /**
+   * Loads up to {@code limit} messages of a transcript, starting with the message at {@code
+   * offset}. Fewer messages than {@code limit} are returned once the end is reached.
+   */
+  static ListenableFuture<ImmutableList<RttTranscriptMessage>> loadRttTranscriptMessages(
+      Context context, String transcriptId, int offset, int limit) {
     return DialerExecutorComponent.get(context)
         .lightweightExecutor()
-        .submit(() -> getRttTranscript(context, transcriptId));
+        .submit(() -> getRttTranscriptMessages(context, transcriptId, offset, limit));
   }
 
   @WorkerThread
-  private static RttTranscript getRttTranscript(Context context, String transcriptId) {
+  private static ImmutableList<RttTranscriptMessage> getRttTranscriptMessages(
+      Context context, String transcriptId, int offset, int limit) {
     Assert.isWorkerThread();
     RttTranscriptDatabaseHelper databaseHelper = new RttTranscriptDatabaseHelper(context);
+    try {
+      ImmutableList<RttTranscriptMessage> messages =
+          queryRttTranscriptMessages(databaseHelper, transcriptId, offset, limit);
+      if (!messages.isEmpty() || offset > 0) {
+        return messages;
+      }
+      // Transcripts saved before messages were stored separately are a single blob.
+      RttTranscript legacyTranscript = getLegacyRttTranscript(databaseHelper, transcriptId);
+      return legacyTranscript == null
+          ? ImmutableList.of()
+          : ImmutableList.copyOf(legacyTranscript.getMessagesList());
+    } finally {
+      databaseHelper.close();
+    }
+  }
+
+  @WorkerThread
+  private static ImmutableList<RttTranscriptMessage> queryRttTranscriptMessages(
+      RttTranscriptDatabaseHelper databaseHelper, String transcriptId, int offset, int limit) {
+    ImmutableList.Builder<RttTranscriptMessage> builder = ImmutableList.builder();
+    try (Cursor cursor =
+        databaseHelper
+            .getReadableDatabase()
+            .query(
+                RttTranscriptDatabaseHelper.MESSAGE_TABLE,
+                new String[] {
+                  RttTranscriptMessageColumn.CONTENT,
+                  RttTranscriptMessageColumn.TIMESTAMP,
+                  RttTranscriptMessageColumn.IS_REMOTE,
+                  RttTranscriptMessageColumn.IS_FINISHED
+                },
+                RttTranscriptMessageColumn.TRANSCRIPT_ID
+                    + " = ? AND "
+                    + RttTranscriptMessageColumn.MESSAGE_INDEX
+                    + " >= ?",
+                new String[] {transcriptId, String.valueOf(offset)},
+                null,
+                null,
+                RttTranscriptMessageColumn.MESSAGE_INDEX,
+                String.valueOf(limit))) {
+      if (cursor != null) {
+        while (cursor.moveToNext()) {
+          builder.add(
+              RttTranscriptMessage.newBuilder()
+                  .setContent(cursor.getString(0))
+                  .setTimestamp(cursor.getLong(1))
+                  .setIsRemote(cursor.getInt(2) != 0)
+                  .setIsFinished(cursor.getInt(3) != 0)
+                  .build());
+        }
+      }
+    }
+    return builder.build();
+  }
+
+  @WorkerThread
+  private static RttTranscript getLegacyRttTranscript(
+      RttTranscriptDatabaseHelper databaseHelper, String transcriptId) {
     try (Cursor cursor =
         databaseHelper
             .getReadableDatabase()
@@ -100,34 +265,61 @@ public final class RttTranscriptUtil {
       } else {
         return null;
       }
-    } finally {
-      databaseHelper.close();
     }
   }
 
-  public static ListenableFuture<Void> saveRttTranscript(
-      Context context, RttTranscript rttTranscript) {
-    return DialerExecutorComponent.get(context)
-        .backgroundExecutor()
-        .submit(
-            () -> {
-              save(context, rttTranscript);
-              return null;
-            });
+  /**
+   * Replaces the messages of a transcript from position {@code fromIndex} on with {@code
+   * messages}. Messages before {@code fromIndex} are left untouched, so saving what changed while
+   * the call is in progress costs only the size of the change.
+   */
+  public static ListenableFuture<Void> saveRttTranscriptMessages(
+      Context context, String transcriptId, int fromIndex, List<RttTranscriptMessage> messages) {
+    ImmutableList<RttTranscriptMessage> messagesCopy = ImmutableList.copyOf(messages);
+    return writeSerializer.submit(
+        () -> {
+          save(context, transcriptId, fromIndex, messagesCopy);
+          return null;
+        },
+        DialerExecutorComponent.get(context).backgroundExecutor());
   }
 
   @WorkerThread
-  private static void save(Context context, RttTranscript rttTranscript) {
+  private static void save(
+      Context context,
+      String transcriptId,
+      int fromIndex,
+      List<RttTranscriptMessage> messages) {
     Assert.isWorkerThread();
     RttTranscriptDatabaseHelper databaseHelper = new RttTranscriptDatabaseHelper(context);
-    ContentValues value = new ContentValues();
-    value.put(RttTranscriptColumn.TRANSCRIPT_ID, rttTranscript.getId());
-    value.put(RttTranscriptColumn.TRANSCRIPT_DATA, rttTranscript.toByteArray());
-    long id =
-        databaseHelper.getWritableDatabase().insert(RttTranscriptDatabaseHelper.TABLE, null, value);
-    databaseHelper.close();
-    if (id < 0) {
-      throw new RuntimeException("Failed to save RTT transcript");
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    database.beginTransaction();
+    try {
+      database.delete(
+          RttTranscriptDatabaseHelper.MESSAGE_TABLE,
+          RttTranscriptMessageColumn.TRANSCRIPT_ID
+              + " = ? AND "
+              + RttTranscriptMessageColumn.MESSAGE_INDEX
+              + " >= ?",
+          new String[] {transcriptId, String.valueOf(fromIndex)});
+      ContentValues value = new ContentValues();
+      for (int i = 0; i < messages.size(); i++) {
+        RttTranscriptMessage message = messages.get(i);
+        value.put(RttTranscriptMessageColumn.TRANSCRIPT_ID, transcriptId);
+        value.put(RttTranscriptMessageColumn.MESSAGE_INDEX, fromIndex + i);
+        value.put(RttTranscriptMessageColumn.CONTENT, message.getContent());
+        value.put(RttTranscriptMessageColumn.TIMESTAMP, message.getTimestamp());
+        value.put(RttTranscriptMessageColumn.IS_REMOTE, message.getIsRemote() ? 1 : 0);
+        value.put(RttTranscriptMessageColumn.IS_FINISHED, message.getIsFinished() ? 1 : 0);
+        if (database.insert(RttTranscriptDatabaseHelper.MESSAGE_TABLE, null, value) < 0) {
+          throw new RuntimeException("Failed to save RTT transcript");
+        }
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      databaseHelper.close();
     }
+    updateAvailableTranscriptId(transcriptId, fromIndex + messages.size() > 0);
   }
 }
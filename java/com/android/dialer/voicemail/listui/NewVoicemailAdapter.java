@@ -16,9 +16,11 @@
 package com.android.dialer.voicemail.listui;
 
 import android.app.FragmentManager;
+import android.content.ComponentCallbacks2;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.res.Configuration;
 import android.database.Cursor;
 import android.media.MediaPlayer;
 import android.media.MediaPlayer.OnCompletionListener;
@@ -64,6 +66,9 @@ final class NewVoicemailAdapter extends RecyclerView.Adapter<ViewHolder>
 
   private static final int VOICEMAIL_DELETE_DELAY_MS = 3000;
 
+  /** How many of the latest voicemails are looked at for unread ones to prepare ahead. */
+  private static final int PREPARE_AHEAD_SCAN_LIMIT = 10;
+
   /** IntDef for the different types of rows that can be shown in the call log. */
   @Retention(RetentionPolicy.SOURCE)
   @IntDef({RowType.HEADER, RowType.VOICEMAIL_ENTRY, RowType.VOICEMAIL_ALERT})
@@ -119,6 +124,29 @@ final class NewVoicemailAdapter extends RecyclerView.Adapter<ViewHolder>
   private final NewVoicemailMediaPlayer mediaPlayer =
       new NewVoicemailMediaPlayer(new MediaPlayer());
 
+  /** Null while the adapter is not attached to a {@link RecyclerView}. */
+  @Nullable private VoicemailPlaybackPreparer playbackPreparer;
+
+  @Nullable private Uri expandedVoicemailUri;
+
+  private final ComponentCallbacks2 memoryCallbacks =
+      new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+          if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            mediaPlayer.releasePreparedAhead();
+          }
+        }
+
+        @Override
+        public void onLowMemory() {
+          mediaPlayer.releasePreparedAhead();
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {}
+      };
+
   /** @param cursor whose projection is {@link VoicemailCursorLoader#VOICEMAIL_COLUMNS} */
   NewVoicemailAdapter(Cursor cursor, Clock clock, FragmentManager fragmentManager) {
     LogUtil.enterBlock("NewVoicemailAdapter");
@@ -209,6 +237,59 @@ final class NewVoicemailAdapter extends RecyclerView.Adapter<ViewHolder>
     this.cursor = updatedCursor;
     updateHeaderPositions();
     notifyDataSetChanged();
+    prepareLikelyNextVoicemails();
+  }
+
+  @Override
+  public void onAttachedToRecyclerView(RecyclerView recyclerView) {
+    super.onAttachedToRecyclerView(recyclerView);
+    Context context = recyclerView.getContext();
+    playbackPreparer = new VoicemailPlaybackPreparer(context, mediaPlayer);
+    context.getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+    prepareLikelyNextVoicemails();
+  }
+
+  @Override
+  public void onDetachedFromRecyclerView(RecyclerView recyclerView) {
+    super.onDetachedFromRecyclerView(recyclerView);
+    recyclerView.getContext().getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+    if (playbackPreparer != null) {
+      playbackPreparer.release();
+      playbackPreparer = null;
+    }
+    mediaPlayer.releasePreparedAhead();
+  }
+
+  /**
+   * Gets the expanded voicemail and the latest unread ones ready to be played, as those are the
+   * ones most likely to be played next.
+   */
+  private void prepareLikelyNextVoicemails() {
+    if (playbackPreparer == null) {
+      return;
+    }
+    ImmutableList.Builder<Uri> uris = ImmutableList.builder();
+    int count = 0;
+    if (expandedVoicemailUri != null) {
+      uris.add(expandedVoicemailUri);
+      count++;
+    }
+    int scanLimit = Math.min(cursor.getCount(), PREPARE_AHEAD_SCAN_LIMIT);
+    for (int position = 0;
+        position < scanLimit && count < NewVoicemailMediaPlayer.MAX_PREPARED_AHEAD;
+        position++) {
+      cursor.moveToPosition(position);
+      String voicemailUri = VoicemailCursorLoader.getVoicemailUri(cursor);
+      if (VoicemailCursorLoader.isRead(cursor) || voicemailUri == null) {
+        continue;
+      }
+      Uri uri = Uri.parse(voicemailUri);
+      if (!uri.equals(expandedVoicemailUri)) {
+        uris.add(uri);
+        count++;
+      }
+    }
+    playbackPreparer.prepare(uris.build());
   }
 
   @Override
@@ -541,6 +622,9 @@ final class NewVoicemailAdapter extends RecyclerView.Adapter<ViewHolder>
 
     // There should be nothing playing when we expand a viewholder for the first time
     Assert.checkArgument(!mediaPlayer.isPlaying());
+
+    expandedVoicemailUri = viewHolderRequestedToExpand.getViewHolderVoicemailUri();
+    prepareLikelyNextVoicemails();
   }
 
   /**
@@ -565,6 +649,9 @@ final class NewVoicemailAdapter extends RecyclerView.Adapter<ViewHolder>
           "the voicemail being played should have been of the recently collapsed view holder.");
       mediaPlayer.reset();
     }
+
+    expandedVoicemailUri = null;
+    prepareLikelyNextVoicemails();
   }
 
   @Override
@@ -27,13 +27,31 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.ThreadUtil;
 import com.android.dialer.strictmode.StrictModeUtils;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
-/** A wrapper around {@link MediaPlayer} */
+/**
+ * A wrapper around {@link MediaPlayer}
+ *
+ * <p>Besides the player that plays, it keeps a few spare players preparing the voicemails that are
+ * likely to be played next (see {@link #prepareAhead(Context, Uri)}). Playing one of those swaps
+ * its spare player in, so that it starts without waiting for the audio to be prepared.
+ */
 public class NewVoicemailMediaPlayer {
 
-  private final MediaPlayer mediaPlayer;
+  /** The maximum number of voicemails prepared ahead of being played. */
+  static final int MAX_PREPARED_AHEAD = 2;
+
+  private MediaPlayer mediaPlayer;
+
+  /** Spare players by the voicemail they prepare, least recently requested first. */
+  private final Map<Uri, PreparedAheadPlayer> preparedAheadPlayers = new LinkedHashMap<>();
+
   private Uri voicemailLastPlayedOrPlayingUri;
   private Uri voicemailUriLastPreparedOrPreparingToPlay;
 
@@ -55,6 +73,11 @@ public class NewVoicemailMediaPlayer {
         "NewVoicemailMediaPlayer",
         "trying to prepare playing voicemail uri: %s",
         String.valueOf(uri));
+    PreparedAheadPlayer preparedAheadPlayer = preparedAheadPlayers.remove(uri);
+    if (preparedAheadPlayer != null) {
+      playPreparedAhead(context, uri, preparedAheadPlayer);
+      return;
+    }
     try {
       reset();
       voicemailUriLastPreparedOrPreparingToPlay = uri;
@@ -88,6 +111,112 @@ public class NewVoicemailMediaPlayer {
     }
   }
 
+  /** Swaps in the spare player that prepared {@code uri} ahead. */
+  private void playPreparedAhead(
+      Context context, Uri uri, PreparedAheadPlayer preparedAheadPlayer) {
+    LogUtil.i(
+        "NewVoicemailMediaPlayer.playPreparedAhead",
+        "uri: %s, prepared: %b",
+        String.valueOf(uri),
+        preparedAheadPlayer.prepared);
+    reset();
+    verifyListenersNotNull();
+    MediaPlayer previous = mediaPlayer;
+    mediaPlayer = preparedAheadPlayer.player;
+    previous.release();
+    mediaPlayer.setOnErrorListener(newVoicemailMediaPlayerOnErrorListener);
+    mediaPlayer.setOnCompletionListener(newVoicemailMediaPlayerOnCompletionListener);
+    mediaPlayer.setOnPreparedListener(newVoicemailMediaPlayerOnPreparedListener);
+    voicemailUriLastPreparedOrPreparingToPlay = uri;
+    setAudioManagerToNonSpeakerMode(context);
+    if (preparedAheadPlayer.prepared) {
+      // Still report it asynchronously, like a player prepared on demand.
+      MediaPlayer preparedPlayer = mediaPlayer;
+      ThreadUtil.postOnUiThread(
+          () -> {
+            if (mediaPlayer == preparedPlayer
+                && uri.equals(voicemailUriLastPreparedOrPreparingToPlay)) {
+              newVoicemailMediaPlayerOnPreparedListener.onPrepared(preparedPlayer);
+            }
+          });
+    }
+  }
+
+  /**
+   * Starts preparing {@code uri} in a spare player, so that it plays right away if it is played
+   * next. Only call this for voicemails whose audio is on the device. If {@link
+   * #MAX_PREPARED_AHEAD} voicemails are prepared already, the least recently requested one is
+   * dropped.
+   */
+  public void prepareAhead(Context context, Uri uri) {
+    PreparedAheadPlayer existing = preparedAheadPlayers.remove(uri);
+    if (existing != null) {
+      preparedAheadPlayers.put(uri, existing);
+      return;
+    }
+    if (uri.equals(voicemailUriLastPreparedOrPreparingToPlay)) {
+      return;
+    }
+    if (preparedAheadPlayers.size() >= MAX_PREPARED_AHEAD) {
+      Iterator<PreparedAheadPlayer> iterator = preparedAheadPlayers.values().iterator();
+      iterator.next().player.release();
+      iterator.remove();
+    }
+
+    LogUtil.i("NewVoicemailMediaPlayer.prepareAhead", "uri: %s", String.valueOf(uri));
+    PreparedAheadPlayer preparedAheadPlayer = new PreparedAheadPlayer(new MediaPlayer());
+    MediaPlayer player = preparedAheadPlayer.player;
+    player.setOnPreparedListener(mp -> preparedAheadPlayer.prepared = true);
+    player.setOnErrorListener(
+        (mp, what, extra) -> {
+          LogUtil.i(
+              "NewVoicemailMediaPlayer.prepareAhead", "error, what:%d, extra:%d", what, extra);
+          if (preparedAheadPlayers.get(uri) == preparedAheadPlayer) {
+            preparedAheadPlayers.remove(uri);
+          }
+          mp.release();
+          return true;
+        });
+    boolean preparing =
+        StrictModeUtils.bypass(
+            () -> {
+              try {
+                player.setDataSource(context, uri);
+                player.prepareAsync();
+                return true;
+              } catch (IOException | IllegalStateException e) {
+                LogUtil.i("NewVoicemailMediaPlayer.prepareAhead", "failed to prepare " + e);
+                return false;
+              }
+            });
+    if (preparing) {
+      preparedAheadPlayers.put(uri, preparedAheadPlayer);
+    } else {
+      player.release();
+    }
+  }
+
+  /** Releases the spare players of voicemails other than {@code uris}. */
+  public void retainPreparedAhead(Collection<Uri> uris) {
+    Iterator<Map.Entry<Uri, PreparedAheadPlayer>> iterator =
+        preparedAheadPlayers.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Uri, PreparedAheadPlayer> entry = iterator.next();
+      if (!uris.contains(entry.getKey())) {
+        entry.getValue().player.release();
+        iterator.remove();
+      }
+    }
+  }
+
+  /** Releases all spare players, e.g. when memory is low. */
+  public void releasePreparedAhead() {
+    for (PreparedAheadPlayer preparedAheadPlayer : preparedAheadPlayers.values()) {
+      preparedAheadPlayer.player.release();
+    }
+    preparedAheadPlayers.clear();
+  }
+
   /** We should never start playing voicemails from the speaker mode */
   private void setAudioManagerToNonSpeakerMode(Context context) {
     AudioManager audioManager = context.getSystemService(AudioManager.class);
@@ -230,4 +359,13 @@ public class NewVoicemailMediaPlayer {
   public boolean isPaused() {
     return pausedUri != null;
   }
+
+  private static final class PreparedAheadPlayer {
+    final MediaPlayer player;
+    boolean prepared;
+
+    PreparedAheadPlayer(MediaPlayer player) {
+      this.player = player;
+    }
+  }
 }
@@ -19,6 +19,7 @@ package com.android.dialer.voicemail.listui;
 import android.content.Context;
 import android.database.Cursor;
 import android.provider.CallLog.Calls;
+import android.support.annotation.Nullable;
 import android.support.v4.content.CursorLoader;
 import android.text.TextUtils;
 import com.android.dialer.DialerPhoneNumber;
@@ -147,4 +148,13 @@ final class VoicemailCursorLoader extends CursorLoader {
   static long getTimestamp(Cursor cursor) {
     return cursor.getLong(TIMESTAMP);
   }
+
+  static boolean isRead(Cursor cursor) {
+    return cursor.getInt(IS_READ) == 1;
+  }
+
+  @Nullable
+  static String getVoicemailUri(Cursor cursor) {
+    return cursor.getString(VOICEMAIL_URI);
+  }
 }
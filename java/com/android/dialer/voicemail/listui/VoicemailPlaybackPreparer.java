@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.voicemail.listui;
+
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.provider.VoicemailContract;
+import android.provider.VoicemailContract.Voicemails;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.ArraySet;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Gets the voicemails that are likely to be played next ready before the user taps play. Those
+ * whose audio is on the device are prepared ahead by the {@link NewVoicemailMediaPlayer}. The audio
+ * of the others is fetched from the server if the network is unmetered, after which they can be
+ * prepared too.
+ */
+final class VoicemailPlaybackPreparer {
+
+  private static final String[] PROJECTION =
+      new String[] {Voicemails.HAS_CONTENT, Voicemails.SOURCE_PACKAGE};
+
+  private final Context context;
+  private final NewVoicemailMediaPlayer mediaPlayer;
+
+  /** Voicemails whose audio was requested already, so that it isn't fetched again and again. */
+  private final Set<Uri> fetchRequestedUris = new ArraySet<>();
+
+  private ImmutableList<Uri> latestUris = ImmutableList.of();
+
+  @Nullable private ListenableFuture<ImmutableList<VoicemailContent>> pendingQuery;
+
+  /** Whether {@link #release()} was called, after which nothing is prepared or fetched anymore. */
+  private boolean released;
+
+  VoicemailPlaybackPreparer(Context context, NewVoicemailMediaPlayer mediaPlayer) {
+    this.context = context;
+    this.mediaPlayer = mediaPlayer;
+  }
+
+  /**
+   * Gets {@code uris} ready to be played, and drops the voicemails prepared for a previous call.
+   *
+   * @param uris the voicemails most likely to be played next, at most {@link
+   *     NewVoicemailMediaPlayer#MAX_PREPARED_AHEAD}
+   */
+  @MainThread
+  void prepare(ImmutableList<Uri> uris) {
+    if (released) {
+      return;
+    }
+    latestUris = uris;
+    cancelPendingQuery();
+    mediaPlayer.retainPreparedAhead(uris);
+    if (uris.isEmpty()) {
+      return;
+    }
+    pendingQuery =
+        DialerExecutorComponent.get(context).backgroundExecutor().submit(() -> queryContent(uris));
+    Futures.addCallback(
+        pendingQuery,
+        new FutureCallback<ImmutableList<VoicemailContent>>() {
+          @Override
+          public void onSuccess(ImmutableList<VoicemailContent> contents) {
+            if (released || uris != latestUris) {
+              // Released or superseded while querying.
+              return;
+            }
+            pendingQuery = null;
+            for (VoicemailContent content : contents) {
+              if (content.hasContent) {
+                mediaPlayer.prepareAhead(context, content.uri);
+              } else if (content.sourcePackage != null
+                  && isNetworkUnmetered()
+                  && fetchRequestedUris.add(content.uri)) {
+                LogUtil.i(
+                    "VoicemailPlaybackPreparer.onSuccess",
+                    "fetching uri: %s",
+                    String.valueOf(content.uri));
+                Intent intent = new Intent(VoicemailContract.ACTION_FETCH_VOICEMAIL, content.uri);
+                intent.setPackage(content.sourcePackage);
+                context.sendBroadcast(intent);
+              }
+            }
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            if (throwable instanceof CancellationException) {
+              return;
+            }
+            LogUtil.e("VoicemailPlaybackPreparer.onFailure", "failed to query content", throwable);
+          }
+        },
+        DialerExecutorComponent.get(context).uiExecutor());
+  }
+
+  /**
+   * Stops preparing and fetching voicemails, e.g. because the list went away. Voicemails prepared
+   * already are released by the owner of the {@link NewVoicemailMediaPlayer}.
+   */
+  @MainThread
+  void release() {
+    released = true;
+    latestUris = ImmutableList.of();
+    cancelPendingQuery();
+  }
+
+  private void cancelPendingQuery() {
+    if (pendingQuery != null) {
+      pendingQuery.cancel(false);
+      pendingQuery = null;
+    }
+  }
+
+  @WorkerThread
+  private ImmutableList<VoicemailContent> queryContent(ImmutableList<Uri> uris) {
+    ImmutableList.Builder<VoicemailContent> contents = ImmutableList.builder();
+    for (Uri uri : uris) {
+      try (Cursor cursor = context.getContentResolver().query(uri, PROJECTION, null, null, null)) {
+        if (cursor != null && cursor.moveToFirst()) {
+          contents.add(new VoicemailContent(uri, cursor.getInt(0) == 1, cursor.getString(1)));
+        }
+      }
+    }
+    return contents.build();
+  }
+
+  private boolean isNetworkUnmetered() {
+    ConnectivityManager connectivityManager = context.getSystemService(ConnectivityManager.class);
+    NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+    return networkInfo != null
+        && networkInfo.isConnected()
+        && !connectivityManager.isActiveNetworkMetered();
+  }
+
+  private static final class VoicemailContent {
+    final Uri uri;
+    final boolean hasContent;
+    @Nullable final String sourcePackage;
+
+    VoicemailContent(Uri uri, boolean hasContent, @Nullable String sourcePackage) {
+      this.uri = uri;
+      this.hasContent = hasContent;
+      this.sourcePackage = sourcePackage;
+    }
+  }
+}
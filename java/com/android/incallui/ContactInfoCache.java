@@ -38,7 +38,6 @@ import android.telecom.TelecomManager;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.ArrayMap;
-import android.util.ArraySet;
 import com.android.contacts.common.ContactsUtils;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.concurrent.DialerExecutor;
@@ -59,30 +58,57 @@ import com.android.incallui.ContactsAsyncHelper.OnImageLoadCompleteListener;
 import com.android.incallui.bindings.PhoneNumberService;
 import com.android.incallui.call.DialerCall;
 import com.android.incallui.incall.protocol.ContactPhotoType;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
  * Class responsible for querying Contact Information for DialerCall objects. Can perform
  * asynchronous requests to the Contact Provider for information as well as respond synchronously
- * for any data that it currently has cached from previous queries. This class always gets called
- * from the UI thread so it does not need thread protection.
+ * for any data that it currently has cached from previous queries.
+ *
+ * <p>Lookups are started from the UI thread, but results arrive on worker threads, so the cache
+ * and the callback registry are both thread-safe. Only one local lookup is kept in flight per call
+ * and normalized number, and remote lookups for the same normalized number are shared between
+ * calls. Entries for disconnected calls are evicted after {@link #DISCONNECTED_ENTRY_TTL_MILLIS}
+ * or once more than {@link #MAX_DISCONNECTED_ENTRIES} disconnected calls are cached.
  */
 public class ContactInfoCache implements OnImageLoadCompleteListener {
 
   private static final String TAG = ContactInfoCache.class.getSimpleName();
   private static final int TOKEN_UPDATE_PHOTO_FOR_CALL_STATE = 0;
+
+  /** How long the entry of a disconnected call is kept around for the UI to finish with it. */
+  private static final long DISCONNECTED_ENTRY_TTL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  /** Maximum number of disconnected calls whose entries are kept, oldest evicted first. */
+  private static final int MAX_DISCONNECTED_ENTRIES = 8;
+
   private static ContactInfoCache cache = null;
   private final Context context;
   private final PhoneNumberService phoneNumberService;
   // Cache info map needs to be thread-safe since it could be modified by both main thread and
   // worker thread.
   private final ConcurrentHashMap<String, ContactCacheEntry> infoMap = new ConcurrentHashMap<>();
-  private final Map<String, Set<ContactInfoCacheCallback>> callBacks = new ArrayMap<>();
+  private final ConcurrentHashMap<String, Set<ContactInfoCacheCallback>> callBacks =
+      new ConcurrentHashMap<>();
+  // Normalized number of the local lookup in flight for each call id. Entries live as long as the
+  // call's callbacks do, i.e. until the lookup pipeline for the call is done.
+  private final ConcurrentHashMap<String, String> pendingLocalLookups = new ConcurrentHashMap<>();
+  // Listeners waiting on a remote lookup, keyed by normalized number. Guarded by itself.
+  private final Map<String, List<PhoneNumberServiceListener>> pendingRemoteLookups =
+      new ArrayMap<>();
+  // Disconnect time of the calls whose entries are still cached, oldest first. Guarded by itself.
+  private final LinkedHashMap<String, Long> disconnectedCalls = new LinkedHashMap<>();
   private int queryId;
   private final DialerExecutor<CnapInformationWrapper> cachedNumberLookupExecutor;
 
@@ -352,11 +378,17 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
 
     Trace.beginSection("prepare callback");
     final String callId = call.getId();
+    evictExpiredEntries(SystemClock.elapsedRealtime());
     final ContactCacheEntry cacheEntry = infoMap.get(callId);
     Set<ContactInfoCacheCallback> callBacks = this.callBacks.get(callId);
-
-    // We need to force a new query if phone number has changed.
-    boolean forceQuery = needForceQuery(call, cacheEntry);
+    final String normalizedNumber = normalize(call.getNumber());
+
+    // We need to force a new query if phone number has changed, unless a query for the same
+    // number is already in flight for this call.
+    boolean forceQuery =
+        needForceQuery(call, cacheEntry)
+            && !(callBacks != null
+                && normalizedNumber.equals(pendingLocalLookups.get(callId)));
     Trace.endSection();
     Log.d(TAG, "findInfo: callId = " + callId + "; forceQuery = " + forceQuery);
 
@@ -387,10 +419,11 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     } else {
       Log.d(TAG, "Contact lookup. In memory cache miss; searching provider.");
       // New lookup
-      callBacks = new ArraySet<>();
+      callBacks = new CopyOnWriteArraySet<>();
       callBacks.add(callback);
       this.callBacks.put(callId, callBacks);
     }
+    pendingLocalLookups.put(callId, normalizedNumber);
 
     Trace.beginSection("prepare query");
     /**
@@ -616,9 +649,60 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
   public void clearCache() {
     infoMap.clear();
     callBacks.clear();
+    pendingLocalLookups.clear();
+    synchronized (pendingRemoteLookups) {
+      pendingRemoteLookups.clear();
+    }
+    synchronized (disconnectedCalls) {
+      disconnectedCalls.clear();
+    }
     queryId = 0;
   }
 
+  /**
+   * Marks the entry of a disconnected call for eviction. The entry stays available for {@link
+   * #DISCONNECTED_ENTRY_TTL_MILLIS} so the UI can keep showing the call while it goes away.
+   */
+  @MainThread
+  public void onCallDisconnected(@NonNull String callId) {
+    Assert.isMainThread();
+    long now = SystemClock.elapsedRealtime();
+    synchronized (disconnectedCalls) {
+      disconnectedCalls.remove(callId);
+      disconnectedCalls.put(callId, now);
+    }
+    evictExpiredEntries(now);
+  }
+
+  /** Removes entries of calls that disconnected too long ago or exceed the size cap. */
+  private void evictExpiredEntries(long now) {
+    List<String> evictedCallIds = null;
+    synchronized (disconnectedCalls) {
+      Iterator<Map.Entry<String, Long>> iterator = disconnectedCalls.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, Long> entry = iterator.next();
+        if (disconnectedCalls.size() <= MAX_DISCONNECTED_ENTRIES
+            && now - entry.getValue() < DISCONNECTED_ENTRY_TTL_MILLIS) {
+          // Entries are ordered by disconnect time, so the rest are fresh as well.
+          break;
+        }
+        iterator.remove();
+        if (evictedCallIds == null) {
+          evictedCallIds = new ArrayList<>();
+        }
+        evictedCallIds.add(entry.getKey());
+      }
+    }
+    if (evictedCallIds == null) {
+      return;
+    }
+    for (String callId : evictedCallIds) {
+      Log.d(TAG, "evicting entry for disconnected call: " + callId);
+      infoMap.remove(callId);
+      clearCallbacks(callId);
+    }
+  }
+
   private ContactCacheEntry buildEntry(Context context, CallerInfo info, int presentation) {
     final ContactCacheEntry cce = new ContactCacheEntry();
     populateCacheEntry(context, info, cce, presentation);
@@ -683,6 +767,50 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
 
   private void clearCallbacks(String callId) {
     callBacks.remove(callId);
+    pendingLocalLookups.remove(callId);
+  }
+
+  /**
+   * Looks up {@code number} with the {@link PhoneNumberService}. If a lookup for the same
+   * normalized number is already running, the listener joins it instead of starting another one.
+   */
+  @MainThread
+  private void lookupRemotely(String number, PhoneNumberServiceListener listener) {
+    final String normalizedNumber = normalize(number);
+    if (normalizedNumber.isEmpty()) {
+      phoneNumberService.getPhoneNumberInfo(number, listener);
+      return;
+    }
+    synchronized (pendingRemoteLookups) {
+      List<PhoneNumberServiceListener> listeners = pendingRemoteLookups.get(normalizedNumber);
+      if (listeners != null) {
+        Log.d(TAG, "Remote lookup already in progress, joining it.");
+        listeners.add(listener);
+        return;
+      }
+      listeners = new ArrayList<>();
+      listeners.add(listener);
+      pendingRemoteLookups.put(normalizedNumber, listeners);
+    }
+    phoneNumberService.getPhoneNumberInfo(
+        number,
+        info -> {
+          List<PhoneNumberServiceListener> listeners;
+          synchronized (pendingRemoteLookups) {
+            listeners = pendingRemoteLookups.remove(normalizedNumber);
+          }
+          // The cache was cleared while the lookup was running.
+          if (listeners == null) {
+            return;
+          }
+          for (PhoneNumberServiceListener waitingListener : listeners) {
+            waitingListener.onPhoneNumberInfoComplete(info);
+          }
+        });
+  }
+
+  private static String normalize(@Nullable String number) {
+    return TextUtils.isEmpty(number) ? "" : PhoneNumberUtils.normalizeNumber(number);
   }
 
   /** Callback interface for the contact query. */
@@ -836,7 +964,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
         final PhoneNumberServiceListener listener =
             new PhoneNumberServiceListener(callId, queryToken.queryId);
         cacheEntry.hasPendingQuery = true;
-        phoneNumberService.getPhoneNumberInfo(cacheEntry.number, listener);
+        lookupRemotely(cacheEntry.number, listener);
       }
       sendInfoNotifications(callId, cacheEntry);
       if (!cacheEntry.hasPendingQuery) {
@@ -892,17 +1020,21 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
         entry.label = typeStr == null ? null : typeStr.toString();
       }
       final ContactCacheEntry oldEntry = infoMap.get(callId);
-      if (oldEntry != null) {
-        // Location is only obtained from local lookup so persist
-        // the value for remote lookups. Once we have a name this
-        // field is no longer used; it is persisted here in case
-        // the UI is ever changed to use it.
-        entry.location = oldEntry.location;
-        entry.shouldShowLocation = oldEntry.shouldShowLocation;
-        // Contact specific ringtone is obtained from local lookup.
-        entry.contactRingtoneUri = oldEntry.contactRingtoneUri;
-        entry.originalPhoneNumber = oldEntry.originalPhoneNumber;
+      if (oldEntry == null) {
+        // The entry was evicted while looking up remotely, don't bring it back.
+        Log.d(TAG, "Contact lookup done, but cache entry is not found.");
+        clearCallbacks(callId);
+        return;
       }
+      // Location is only obtained from local lookup so persist
+      // the value for remote lookups. Once we have a name this
+      // field is no longer used; it is persisted here in case
+      // the UI is ever changed to use it.
+      entry.location = oldEntry.location;
+      entry.shouldShowLocation = oldEntry.shouldShowLocation;
+      // Contact specific ringtone is obtained from local lookup.
+      entry.contactRingtoneUri = oldEntry.contactRingtoneUri;
+      entry.originalPhoneNumber = oldEntry.originalPhoneNumber;
 
       // If no image and it's a business, switch to using the default business avatar.
       if (info.getImageUrl() == null && info.isBusiness()) {
@@ -960,9 +1092,9 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     final ContactCacheEntry existingCacheEntry = infoMap.get(callId);
     if (existingCacheEntry == null) {
       // This might happen if lookup on background thread comes back before the initial entry is
-      // created.
+      // created. Once the lookup is over, e.g. because the entry was evicted, the result is stale.
       Log.d(TAG, "Cached entry is null.");
-      return true;
+      return callBacks.containsKey(callId);
     } else {
       int waitingQueryId = existingCacheEntry.queryId;
       Log.d(TAG, "waitingQueryId = " + waitingQueryId + "; queryId = " + queryId);
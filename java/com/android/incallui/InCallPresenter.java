@@ -1037,6 +1037,10 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
       FilteredNumbersUtil.recordLastEmergencyCallTime(context);
     }
 
+    if (contactInfoCache != null) {
+      contactInfoCache.onCallDisconnected(call.getId());
+    }
+
     if (!callList.hasLiveCall()
         && !call.getLogState().isIncoming
         && !isSecretCode(call.getNumber())
@@ -24,6 +24,7 @@ import android.telecom.Call.RttCall;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.ThreadUtil;
 import com.android.dialer.rtt.RttTranscript;
+import com.android.dialer.rtt.RttTranscriptMessage;
 import com.android.incallui.InCallPresenter.InCallState;
 import com.android.incallui.InCallPresenter.InCallStateListener;
 import com.android.incallui.call.CallList;
@@ -31,6 +32,7 @@ import com.android.incallui.call.DialerCall;
 import com.android.incallui.rtt.protocol.RttCallScreen;
 import com.android.incallui.rtt.protocol.RttCallScreenDelegate;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Logic related to the {@link RttCallScreen} and for managing changes to the RTT calling surfaces
@@ -78,6 +80,14 @@ public class RttCallPresenter implements RttCallScreenDelegate, InCallStateListe
     }
   }
 
+  @Override
+  public void onSaveRttTranscriptMessages(int fromIndex, List<RttTranscriptMessage> messages) {
+    DialerCall call = CallList.getInstance().getCallById(rttCallScreen.getCallId());
+    if (call != null) {
+      call.saveRttTranscriptMessages(fromIndex, messages);
+    }
+  }
+
   @Override
   public void onRttCallScreenUiUnready() {
     LogUtil.enterBlock("RttCallPresenter.onRttCallScreenUiUnready");
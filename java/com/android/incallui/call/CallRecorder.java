@@ -32,6 +32,7 @@ import android.widget.Toast;
 
 import com.android.dialer.R;
 import com.android.dialer.callrecord.CallRecording;
+import com.android.dialer.callrecord.ICallRecorderListener;
 import com.android.dialer.callrecord.ICallRecorderService;
 import com.android.dialer.callrecord.impl.CallRecorderService;
 import com.android.dialer.location.GeoUtil;
@@ -51,6 +52,9 @@ import java.util.Locale;
  *
  * Manages the call recorder service lifecycle.  We bind to the service whenever an active call
  * is established, and unbind when all calls have been disconnected.
+ *
+ * Recording state is pushed by the service through an {@link ICallRecorderListener}; the elapsed
+ * time shown to progress listeners is computed locally, without calls into the service.
  */
 public class CallRecorder implements CallList.Listener {
   public static final String TAG = "CallRecorder";
@@ -65,20 +69,68 @@ public class CallRecorder implements CallList.Listener {
   private Context context;
   private boolean initialized = false;
   private ICallRecorderService service = null;
+  // Last recording reported by the service, null while not recording. Main thread only.
+  private CallRecording activeRecording = null;
 
   private HashSet<RecordingProgressListener> progressListeners =
       new HashSet<RecordingProgressListener>();
-  private Handler handler = new Handler();
+  private Handler handler = new Handler(Looper.getMainLooper());
+
+  private final ICallRecorderListener recorderListener = new ICallRecorderListener.Stub() {
+    @Override
+    public void onRecordingStarted(final CallRecording recording) {
+      handler.post(() -> {
+        if (isActiveRecording(recording)) {
+          // Already known, e.g. started through startRecording().
+          return;
+        }
+        activeRecording = recording;
+        for (RecordingProgressListener l : progressListeners) {
+          l.onStartRecording();
+        }
+        scheduleProgressUpdates();
+      });
+    }
+
+    @Override
+    public void onRecordingProgress(final long elapsedTimeMs) {
+      handler.post(() -> {
+        for (RecordingProgressListener l : progressListeners) {
+          l.onRecordingTimeProgress(elapsedTimeMs);
+        }
+      });
+    }
+
+    @Override
+    public void onRecordingStopped(final CallRecording recording) {
+      handler.post(() -> {
+        // Ignore late events of a previous recording; only stops by the service itself, e.g.
+        // because the recorder failed, still need to be reported.
+        if (isActiveRecording(recording)) {
+          activeRecording = null;
+          notifyRecordingStopped();
+        }
+      });
+    }
+  };
 
   private ServiceConnection connection = new ServiceConnection() {
     @Override
     public void onServiceConnected(ComponentName name, IBinder service) {
       CallRecorder.this.service = ICallRecorderService.Stub.asInterface(service);
+      try {
+        CallRecorder.this.service.registerListener(recorderListener);
+        activeRecording = CallRecorder.this.service.getActiveRecording();
+      } catch (RemoteException e) {
+        Log.w(TAG, "Failed to register recorder listener", e);
+      }
+      scheduleProgressUpdates();
     }
 
     @Override
     public void onServiceDisconnected(ComponentName name) {
       CallRecorder.this.service = null;
+      activeRecording = null;
     }
   };
 
@@ -107,8 +159,18 @@ public class CallRecorder implements CallList.Listener {
 
   private void uninitialize() {
     if (initialized) {
+      if (service != null) {
+        try {
+          service.unregisterListener(recorderListener);
+        } catch (RemoteException e) {
+          Log.w(TAG, "Failed to unregister recorder listener", e);
+        }
+      }
       context.unbindService(connection);
       initialized = false;
+      service = null;
+      activeRecording = null;
+      handler.removeCallbacks(updateRecordingProgressTask);
     }
   }
 
@@ -119,10 +181,11 @@ public class CallRecorder implements CallList.Listener {
 
     try {
       if (service.startRecording(phoneNumber, creationTime)) {
+        activeRecording = service.getActiveRecording();
         for (RecordingProgressListener l : progressListeners) {
           l.onStartRecording();
         }
-        updateRecordingProgressTask.run();
+        scheduleProgressUpdates();
         return true;
       } else {
         Toast.makeText(context, R.string.call_recording_failed_message, Toast.LENGTH_SHORT)
@@ -136,29 +199,11 @@ public class CallRecorder implements CallList.Listener {
   }
 
   public boolean isRecording() {
-    if (service == null) {
-      return false;
-    }
-
-    try {
-      return service.isRecording();
-    } catch (RemoteException e) {
-      Log.w(TAG, "Exception checking recording status", e);
-    }
-    return false;
+    return activeRecording != null;
   }
 
   public CallRecording getActiveRecording() {
-    if (service == null) {
-      return null;
-    }
-
-    try {
-      return service.getActiveRecording();
-    } catch (RemoteException e) {
-      Log.w("Exception getting active recording", e);
-    }
-    return null;
+    return activeRecording;
   }
 
   public void finishRecording() {
@@ -176,6 +221,17 @@ public class CallRecorder implements CallList.Listener {
       }
     }
 
+    activeRecording = null;
+    notifyRecordingStopped();
+  }
+
+  private boolean isActiveRecording(CallRecording recording) {
+    return activeRecording != null
+        && recording != null
+        && activeRecording.mediaId == recording.mediaId;
+  }
+
+  private void notifyRecordingStopped() {
     for (RecordingProgressListener l : progressListeners) {
       l.onStopRecording();
     }
@@ -246,21 +302,31 @@ public class CallRecorder implements CallList.Listener {
 
   public void addRecordingProgressListener(RecordingProgressListener listener) {
     progressListeners.add(listener);
+    scheduleProgressUpdates();
   }
 
   public void removeRecordingProgressListener(RecordingProgressListener listener) {
     progressListeners.remove(listener);
   }
 
+  // Ticks only while something is recorded and someone is listening.
+  private void scheduleProgressUpdates() {
+    handler.removeCallbacks(updateRecordingProgressTask);
+    if (activeRecording != null && !progressListeners.isEmpty()) {
+      updateRecordingProgressTask.run();
+    }
+  }
+
   private Runnable updateRecordingProgressTask = new Runnable() {
     @Override
     public void run() {
-      CallRecording active = getActiveRecording();
-      if (active != null) {
-        long elapsed = System.currentTimeMillis() - active.startRecordingTime;
-        for (RecordingProgressListener l : progressListeners) {
-          l.onRecordingTimeProgress(elapsed);
-        }
+      CallRecording active = activeRecording;
+      if (active == null || progressListeners.isEmpty()) {
+        return;
+      }
+      long elapsed = System.currentTimeMillis() - active.startRecordingTime;
+      for (RecordingProgressListener l : progressListeners) {
+        l.onRecordingTimeProgress(elapsed);
       }
       handler.postDelayed(this, UPDATE_INTERVAL);
     }
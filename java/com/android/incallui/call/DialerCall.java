@@ -76,6 +76,7 @@ import com.android.dialer.logging.DialerImpression;
 import com.android.dialer.logging.Logger;
 import com.android.dialer.preferredsim.PreferredAccountRecorder;
 import com.android.dialer.rtt.RttTranscript;
+import com.android.dialer.rtt.RttTranscriptMessage;
 import com.android.dialer.rtt.RttTranscriptUtil;
 import com.android.dialer.spam.status.SpamStatus;
 import com.android.dialer.telecom.TelecomCallUtil;
@@ -233,6 +234,24 @@ public class DialerCall implements VideoTechListener, StateChangedListener, Capa
 
   private RttTranscript rttTranscript;
 
+  // Number of leading messages of the RTT transcript that are already saved.
+  private int savedRttTranscriptMessageCount;
+
+  /**
+   * Saves the messages of the RTT transcript from position {@code fromIndex} on, replacing the ones
+   * saved before from that position.
+   */
+  public void saveRttTranscriptMessages(int fromIndex, List<RttTranscriptMessage> messages) {
+    if (fromIndex <= savedRttTranscriptMessageCount) {
+      savedRttTranscriptMessageCount = fromIndex + messages.size();
+    }
+    Futures.addCallback(
+        RttTranscriptUtil.saveRttTranscriptMessages(
+            context, String.valueOf(getCreationTimeMillis()), fromIndex, messages),
+        new DefaultFutureCallback<>(),
+        MoreExecutors.directExecutor());
+  }
+
   private final Call.Callback telecomCallCallback =
       new Call.Callback() {
         @Override
@@ -1143,27 +1162,40 @@ public class DialerCall implements VideoTechListener, StateChangedListener, Capa
     if (!BuildCompat.isAtLeastP()) {
       return;
     }
+    // Messages before this position are saved already.
+    int firstUnsavedIndex = savedRttTranscriptMessageCount;
     if (getRttCall() != null) {
       // Save any remaining text in the buffer that's not shown by UI yet.
       // This may happen when the call is switched to background before disconnect.
       try {
         String messageLeft = getRttCall().readImmediately();
         if (!TextUtils.isEmpty(messageLeft)) {
+          List<RttChatMessage> messageList = RttChatMessage.fromTranscript(rttTranscript);
+          firstUnsavedIndex =
+              Math.min(
+                  firstUnsavedIndex,
+                  RttChatMessage.updateRemoteRttChatMessage(messageList, messageLeft));
           rttTranscript =
-              RttChatMessage.getRttTranscriptWithNewRemoteMessage(rttTranscript, messageLeft);
+              rttTranscript
+                  .toBuilder()
+                  .clearMessages()
+                  .addAllMessages(RttChatMessage.toTranscriptMessageList(messageList))
+                  .build();
         }
       } catch (IOException e) {
         LogUtil.e("DialerCall.saveRttTranscript", "error when reading remaining message", e);
       }
     }
-    // Don't save transcript if it's empty.
-    if (rttTranscript.getMessagesCount() == 0) {
+    int messageCount = rttTranscript.getMessagesCount();
+    // Don't save transcript if it's empty, or if all of it is saved already.
+    if (messageCount == 0
+        || (firstUnsavedIndex >= messageCount && savedRttTranscriptMessageCount == messageCount)) {
       return;
     }
-    Futures.addCallback(
-        RttTranscriptUtil.saveRttTranscript(context, rttTranscript),
-        new DefaultFutureCallback<>(),
-        MoreExecutors.directExecutor());
+    firstUnsavedIndex = Math.min(firstUnsavedIndex, messageCount);
+    saveRttTranscriptMessages(
+        firstUnsavedIndex,
+        rttTranscript.getMessagesList().subList(firstUnsavedIndex, messageCount));
   }
 
   public boolean hasReceivedVideoUpgradeRequest() {
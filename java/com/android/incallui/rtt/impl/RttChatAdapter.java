@@ -54,6 +54,14 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
 
   private static final int POSITION_ADVISORY = 0;
 
+  /**
+   * Payload for a message whose text changed but whose position and sender did not, so only the
+   * text needs to be bound again.
+   */
+  private static final Object PAYLOAD_CONTENT = new Object();
+
+  static final int NO_UNSAVED_MESSAGE = Integer.MAX_VALUE;
+
   private Drawable avatarDrawable;
 
   interface MessageListener {
@@ -65,6 +73,8 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
   private final Context context;
   private List<RttChatMessage> rttMessages = new ArrayList<>();
   private int lastIndexOfLocalMessage = -1;
+  // Position of the first message changed since the transcript was last saved.
+  private int firstUnsavedMessagePosition = NO_UNSAVED_MESSAGE;
   private final MessageListener messageListener;
   private boolean shouldShowAdvisory;
 
@@ -119,6 +129,22 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
     }
   }
 
+  @Override
+  public void onBindViewHolder(ViewHolder viewHolder, int itemPosition, List<Object> payloads) {
+    if (payloads.isEmpty() || getItemViewType(itemPosition) != RowType.MESSAGE) {
+      onBindViewHolder(viewHolder, itemPosition);
+      return;
+    }
+    for (Object payload : payloads) {
+      if (payload != PAYLOAD_CONTENT) {
+        onBindViewHolder(viewHolder, itemPosition);
+        return;
+      }
+    }
+    ((RttChatMessageViewHolder) viewHolder)
+        .setMessageContent(rttMessages.get(toMessagePosition(itemPosition)));
+  }
+
   @Override
   public int getItemCount() {
     return shouldShowAdvisory ? rttMessages.size() + 1 : rttMessages.size();
@@ -134,16 +160,18 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
       rttChatMessage.append(newMessage);
       rttMessages.add(rttChatMessage);
       lastIndexOfLocalMessage = rttMessages.size() - 1;
+      markUnsaved(lastIndexOfLocalMessage);
       notifyItemInserted(toItemPosition(lastIndexOfLocalMessage));
     } else {
       rttChatMessage.append(newMessage);
+      markUnsaved(lastIndexOfLocalMessage);
       // Clear empty message bubble.
       if (TextUtils.isEmpty(rttChatMessage.getContent())) {
         rttMessages.remove(lastIndexOfLocalMessage);
         notifyItemRemoved(toItemPosition(lastIndexOfLocalMessage));
         lastIndexOfLocalMessage = -1;
       } else {
-        notifyItemChanged(toItemPosition(lastIndexOfLocalMessage));
+        notifyItemChanged(toItemPosition(lastIndexOfLocalMessage), PAYLOAD_CONTENT);
       }
     }
   }
@@ -169,9 +197,33 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
   }
 
   private void updateCurrentRemoteMessage(String newMessage) {
-    RttChatMessage.updateRemoteRttChatMessage(rttMessages, newMessage);
+    if (RttChatMessage.isPlainText(newMessage)) {
+      // Most remote updates are a few more characters of the message being typed.
+      int index = RttChatMessage.getLastIndexUnfinishedRemoteMessage(rttMessages);
+      if (index >= 0) {
+        rttMessages.get(index).append(newMessage);
+        markUnsaved(index);
+        notifyItemChanged(toItemPosition(index), PAYLOAD_CONTENT);
+        return;
+      }
+    }
+    int oldSize = rttMessages.size();
+    int firstChangedIndex = RttChatMessage.updateRemoteRttChatMessage(rttMessages, newMessage);
+    int newSize = rttMessages.size();
+    markUnsaved(firstChangedIndex);
     lastIndexOfLocalMessage = RttChatMessage.getLastIndexLocalMessage(rttMessages);
-    notifyDataSetChanged();
+    // Messages may have been removed and added, so everything from the first change on is bound
+    // again.
+    int changedEnd = Math.min(oldSize, newSize);
+    if (firstChangedIndex < changedEnd) {
+      notifyItemRangeChanged(
+          toItemPosition(firstChangedIndex), changedEnd - firstChangedIndex);
+    }
+    if (newSize > oldSize) {
+      notifyItemRangeInserted(toItemPosition(oldSize), newSize - oldSize);
+    } else if (newSize < oldSize) {
+      notifyItemRangeRemoved(toItemPosition(newSize), oldSize - newSize);
+    }
   }
 
   void addLocalMessage(String message) {
@@ -184,6 +236,7 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
   void submitLocalMessage() {
     LogUtil.enterBlock("RttChatAdapater.submitLocalMessage");
     rttMessages.get(lastIndexOfLocalMessage).finish();
+    markUnsaved(lastIndexOfLocalMessage);
     notifyItemChanged(toItemPosition(lastIndexOfLocalMessage));
     lastIndexOfLocalMessage = -1;
   }
@@ -231,6 +284,7 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
     if (lastIndexOfLocalMessage >= 0) {
       RttChatMessage rttChatMessage = rttMessages.get(lastIndexOfLocalMessage);
       rttChatMessage.unfinish();
+      markUnsaved(lastIndexOfLocalMessage);
       return rttChatMessage.getContent();
     } else {
       return null;
@@ -252,6 +306,8 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
   String onRestoreRttChat(RttTranscript rttTranscript) {
     LogUtil.enterBlock("RttChatAdapater.onRestoreRttChat");
     rttMessages = RttChatMessage.fromTranscript(rttTranscript);
+    // The restored messages are the ones saved before.
+    firstUnsavedMessagePosition = NO_UNSAVED_MESSAGE;
     lastIndexOfLocalMessage = RttChatMessage.getLastIndexLocalMessage(rttMessages);
     notifyDataSetChanged();
     if (lastIndexOfLocalMessage < 0) {
@@ -268,4 +324,29 @@ public class RttChatAdapter extends RecyclerView.Adapter<ViewHolder> {
   List<RttTranscriptMessage> getRttTranscriptMessageList() {
     return RttChatMessage.toTranscriptMessageList(rttMessages);
   }
+
+  /**
+   * Returns position of the first message changed since {@link #onUnsavedMessagesSaved()}, or
+   * {@link #NO_UNSAVED_MESSAGE} if there is none.
+   */
+  int getFirstUnsavedMessagePosition() {
+    return firstUnsavedMessagePosition;
+  }
+
+  /** Returns messages from {@link #getFirstUnsavedMessagePosition()} to the end. */
+  List<RttTranscriptMessage> getUnsavedRttTranscriptMessageList() {
+    if (firstUnsavedMessagePosition >= rttMessages.size()) {
+      return new ArrayList<>();
+    }
+    return RttChatMessage.toTranscriptMessageList(
+        rttMessages.subList(firstUnsavedMessagePosition, rttMessages.size()));
+  }
+
+  void onUnsavedMessagesSaved() {
+    firstUnsavedMessagePosition = NO_UNSAVED_MESSAGE;
+  }
+
+  private void markUnsaved(int messagePosition) {
+    firstUnsavedMessagePosition = Math.min(firstUnsavedMessagePosition, messagePosition);
+  }
 }
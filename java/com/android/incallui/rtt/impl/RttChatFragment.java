@@ -48,6 +48,7 @@ import com.android.dialer.common.Assert;
 import com.android.dialer.common.FragmentUtils;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.UiUtil;
+import com.android.dialer.common.concurrent.ThreadUtil;
 import com.android.dialer.lettertile.LetterTileDrawable;
 import com.android.dialer.logging.DialerImpression;
 import com.android.dialer.logging.Logger;
@@ -87,6 +88,9 @@ public class RttChatFragment extends Fragment
 
   private static final String ARG_CALL_ID = "call_id";
 
+  /** Delay between a message change and saving the changed messages. */
+  private static final long SAVE_TRANSCRIPT_DELAY_MILLIS = 1000;
+
   private RecyclerView recyclerView;
   private RttChatAdapter adapter;
   private EditText editText;
@@ -108,6 +112,8 @@ public class RttChatFragment extends Fragment
   private boolean isUserScrolling;
   private boolean shouldAutoScrolling;
   private AudioSelectMenu audioSelectMenu;
+  private boolean isSaveTranscriptScheduled;
+  private final Runnable saveTranscriptRunnable = this::saveUnsavedMessages;
 
   /**
    * Create a new instance of RttChatFragment.
@@ -188,6 +194,7 @@ public class RttChatFragment extends Fragment
             if (lastMessage != null) {
               resumeInput(lastMessage);
               rttCallScreenDelegate.onLocalMessage("\b");
+              scheduleSaveTranscript();
               return true;
             }
             return false;
@@ -227,6 +234,7 @@ public class RttChatFragment extends Fragment
         v -> {
           Logger.get(getContext()).logImpression(DialerImpression.Type.RTT_SEND_BUTTON_CLICKED);
           adapter.submitLocalMessage();
+          scheduleSaveTranscript();
           resumeInput("");
           rttCallScreenDelegate.onLocalMessage(Constants.BUBBLE_BREAKER);
           // Auto scrolling for new messages should be resumed since user has submit current
@@ -282,18 +290,45 @@ public class RttChatFragment extends Fragment
     if (!TextUtils.isEmpty(messageToAppend)) {
       adapter.addLocalMessage(messageToAppend);
       rttCallScreenDelegate.onLocalMessage(messageToAppend);
+      scheduleSaveTranscript();
     }
   }
 
   @Override
   public void onRemoteMessage(String message) {
     adapter.addRemoteMessage(message);
+    scheduleSaveTranscript();
+  }
+
+  /**
+   * Saves changed messages after {@link #SAVE_TRANSCRIPT_DELAY_MILLIS}. The delay is not restarted
+   * by later changes, so continuous typing still gets saved.
+   */
+  private void scheduleSaveTranscript() {
+    if (isSaveTranscriptScheduled) {
+      return;
+    }
+    isSaveTranscriptScheduled = true;
+    ThreadUtil.postDelayedOnUiThread(saveTranscriptRunnable, SAVE_TRANSCRIPT_DELAY_MILLIS);
+  }
+
+  private void saveUnsavedMessages() {
+    ThreadUtil.getUiThreadHandler().removeCallbacks(saveTranscriptRunnable);
+    isSaveTranscriptScheduled = false;
+    int firstUnsavedMessagePosition = adapter.getFirstUnsavedMessagePosition();
+    if (firstUnsavedMessagePosition == RttChatAdapter.NO_UNSAVED_MESSAGE) {
+      return;
+    }
+    rttCallScreenDelegate.onSaveRttTranscriptMessages(
+        firstUnsavedMessagePosition, adapter.getUnsavedRttTranscriptMessageList());
+    adapter.onUnsavedMessagesSaved();
   }
 
   @Override
   public void onDestroyView() {
     super.onDestroyView();
     LogUtil.enterBlock("RttChatFragment.onDestroyView");
+    saveUnsavedMessages();
     inCallButtonUiDelegate.onInCallButtonUiUnready();
     inCallScreenDelegate.onInCallScreenUnready();
   }
@@ -374,6 +409,7 @@ public class RttChatFragment extends Fragment
     Window window = getActivity().getWindow();
     window.setStatusBarColor(activity.getColor(android.R.color.transparent));
     window.setNavigationBarColor(activity.getColor(android.R.color.transparent));
+    saveUnsavedMessages();
     rttCallScreenDelegate.onRttCallScreenUiUnready();
   }
 
@@ -479,6 +515,7 @@ public class RttChatFragment extends Fragment
       hideWaitingForJoinBanner();
     }
     if (primaryCallState.state() == DialerCallState.DISCONNECTED) {
+      saveUnsavedMessages();
       rttCallScreenDelegate.onSaveRttTranscript();
     }
   }
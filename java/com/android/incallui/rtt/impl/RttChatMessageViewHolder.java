@@ -44,7 +44,7 @@ public class RttChatMessageViewHolder extends ViewHolder {
   }
 
   void setMessage(RttChatMessage message, boolean isSameGroup, Drawable imageDrawable) {
-    messageTextView.setText(message.getContent());
+    setMessageContent(message);
     LinearLayout.LayoutParams params = (LayoutParams) container.getLayoutParams();
     params.gravity = message.isRemote ? Gravity.START : Gravity.END;
     params.topMargin =
@@ -64,4 +64,9 @@ public class RttChatMessageViewHolder extends ViewHolder {
       avatarImageView.setVisibility(View.GONE);
     }
   }
+
+  /** Updates only the text of the bubble, for a message that was bound before. */
+  void setMessageContent(RttChatMessage message) {
+    messageTextView.setText(message.getContent());
+  }
 }
@@ -16,6 +16,9 @@
 
 package com.android.incallui.rtt.protocol;
 
+import com.android.dialer.rtt.RttTranscriptMessage;
+import java.util.List;
+
 /** Callbacks from the module out to the container. */
 public interface RttCallScreenDelegate {
 
@@ -28,4 +31,10 @@ public interface RttCallScreenDelegate {
   void onLocalMessage(String message);
 
   void onSaveRttTranscript();
+
+  /**
+   * Saves the messages changed since the last call, which are all messages from position {@code
+   * fromIndex} on.
+   */
+  void onSaveRttTranscriptMessages(int fromIndex, List<RttTranscriptMessage> messages);
 }
@@ -47,7 +47,11 @@ public final class RttChatMessage {
     isFinished = false;
   }
 
-  public void append(String text) {
+  /**
+   * Appends text to the message. A backspace removes the last character, which is O(1) on the
+   * underlying {@link StringBuilder} since RTT edits only ever happen at the end of a message.
+   */
+  public void append(CharSequence text) {
     for (int i = 0; i < text.length(); i++) {
       char c = text.charAt(i);
       if (c == '\b' && content.length() > 0 && content.charAt(content.length() - 1) != '\b') {
@@ -62,6 +66,14 @@ public final class RttChatMessage {
     return content.toString();
   }
 
+  /**
+   * Returns whether {@code text} only adds characters, i.e. it contains neither backspaces nor
+   * bubble breakers.
+   */
+  public static boolean isPlainText(@NonNull String text) {
+    return text.indexOf('\b') < 0 && !text.contains(Constants.BUBBLE_BREAKER);
+  }
+
   /**
    * Computes delta change of two string.
    *
@@ -90,22 +102,16 @@ public final class RttChatMessage {
     return modify.toString();
   }
 
-  public static RttTranscript getRttTranscriptWithNewRemoteMessage(
-      RttTranscript rttTranscript, @NonNull String text) {
-    List<RttChatMessage> messageList = fromTranscript(rttTranscript);
-    updateRemoteRttChatMessage(messageList, text);
-    return RttTranscript.newBuilder()
-        .setId(rttTranscript.getId())
-        .setNumber(rttTranscript.getNumber())
-        .setTimestamp(rttTranscript.getTimestamp())
-        .addAllMessages(toTranscriptMessageList(messageList))
-        .build();
-  }
-
-  /** Update list of {@code RttChatMessage} based on given remote text. */
-  public static void updateRemoteRttChatMessage(
+  /**
+   * Update list of {@code RttChatMessage} based on given remote text.
+   *
+   * @return position of the first message that was added, changed or removed, or the original
+   *     size of the list if nothing changed.
+   */
+  public static int updateRemoteRttChatMessage(
       List<RttChatMessage> messageList, @NonNull String text) {
     Assert.isNotNull(messageList);
+    int firstChangedIndex = messageList.size();
     Iterator<String> splitText = SPLITTER.split(text).iterator();
 
     while (splitText.hasNext()) {
@@ -120,9 +126,11 @@ public final class RttChatMessage {
           message.finish();
         }
         if (message.content.length() != 0) {
+          firstChangedIndex = Math.min(firstChangedIndex, messageList.size());
           messageList.add(message);
         }
       } else {
+        firstChangedIndex = Math.min(firstChangedIndex, index);
         message = messageList.get(index);
         message.append(singleMessageContent);
         if (splitText.hasNext()) {
@@ -135,39 +143,51 @@ public final class RttChatMessage {
       StringBuilder content = message.content;
       // Delete previous messages.
       while (content.length() > 0 && content.charAt(0) == '\b') {
-        messageList.remove(message);
+        int removedIndex = messageList.lastIndexOf(message);
+        if (removedIndex >= 0) {
+          firstChangedIndex = Math.min(firstChangedIndex, removedIndex);
+          messageList.remove(removedIndex);
+        }
         content.delete(0, 1);
         int previous = getLastIndexRemoteMessage(messageList);
         // There are more backspaces than existing characters.
         if (previous < 0) {
-          while (content.length() > 0 && content.charAt(0) == '\b') {
-            content.deleteCharAt(0);
+          int backspaceCount = 0;
+          while (backspaceCount < content.length() && content.charAt(backspaceCount) == '\b') {
+            backspaceCount++;
           }
+          content.delete(0, backspaceCount);
           // Add message if there are still characters after backspaces.
           if (content.length() > 0) {
             message = new RttChatMessage();
-            message.append(content.toString());
+            message.append(content);
             message.isRemote = true;
             if (splitText.hasNext()) {
               message.finish();
             }
+            firstChangedIndex = Math.min(firstChangedIndex, messageList.size());
             messageList.add(message);
           }
           break;
         }
+        firstChangedIndex = Math.min(firstChangedIndex, previous);
         message = messageList.get(previous);
         message.unfinish();
-        message.append(content.toString());
+        message.append(content);
         content = message.content;
       }
     }
     if (text.endsWith(Constants.BUBBLE_BREAKER)) {
       int lastIndexRemoteMessage = getLastIndexRemoteMessage(messageList);
-      messageList.get(lastIndexRemoteMessage).finish();
+      if (!messageList.get(lastIndexRemoteMessage).isFinished()) {
+        firstChangedIndex = Math.min(firstChangedIndex, lastIndexRemoteMessage);
+        messageList.get(lastIndexRemoteMessage).finish();
+      }
     }
+    return firstChangedIndex;
   }
 
-  private static int getLastIndexUnfinishedRemoteMessage(List<RttChatMessage> messageList) {
+  public static int getLastIndexUnfinishedRemoteMessage(List<RttChatMessage> messageList) {
     int i = messageList.size() - 1;
     while (i >= 0 && (!messageList.get(i).isRemote || messageList.get(i).isFinished)) {
       i--;
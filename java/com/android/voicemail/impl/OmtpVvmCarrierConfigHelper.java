@@ -89,6 +89,12 @@ public class OmtpVvmCarrierConfigHelper {
       "vvm_disabled_capabilities_string_array";
 
   public static final String KEY_VVM_CLIENT_PREFIX_STRING = "vvm_client_prefix_string";
+
+  /** @see #getImapConnectionKeepAliveMillis() */
+  public static final String KEY_VVM_IMAP_CONNECTION_KEEP_ALIVE_MILLIS_INT =
+      "vvm_imap_connection_keep_alive_millis_int";
+
+  private static final int DEFAULT_IMAP_CONNECTION_KEEP_ALIVE_MILLIS = 5 * 60 * 1000;
   private static final String KEY_IGNORE_TRANSCRIPTION_BOOL = "vvm_ignore_transcription";
 
   @Nullable private static PersistableBundle overrideConfigForTest;
@@ -523,6 +529,18 @@ public class OmtpVvmCarrierConfigHelper {
     return false;
   }
 
+  /**
+   * How long the authenticated IMAP connection is kept open after a task, so that the next task can
+   * reuse it instead of connecting and logging in again. 0 disables reuse.
+   */
+  public int getImapConnectionKeepAliveMillis() {
+    Assert.checkArgument(isValid());
+    return (int)
+        getValue(
+            KEY_VVM_IMAP_CONNECTION_KEEP_ALIVE_MILLIS_INT,
+            DEFAULT_IMAP_CONNECTION_KEEP_ALIVE_MILLIS);
+  }
+
   /**
    * Suppress the behavior of treating any text attachment with MIME "text/*" as transcription,
    * default to false.
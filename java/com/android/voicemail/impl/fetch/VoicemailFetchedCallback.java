@@ -79,12 +79,10 @@ public class VoicemailFetchedCallback {
 
     try {
       outputStream = contentResolver.openOutputStream(uri);
-      byte[] inputBytes = voicemailPayload.getBytes();
-      if (inputBytes != null) {
-        outputStream.write(inputBytes);
-      }
+      long byteCount = voicemailPayload.writeTo(outputStream);
+      VvmLog.i(TAG, String.format("Wrote %d bytes of voicemail content", byteCount));
     } catch (IOException e) {
-      VvmLog.w(TAG, String.format("File not found for %s", uri));
+      VvmLog.w(TAG, String.format("Failed to write content for %s: %s", uri, e));
       return;
     } finally {
       IOUtils.closeQuietly(outputStream);
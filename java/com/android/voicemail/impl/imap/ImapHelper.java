@@ -21,6 +21,7 @@ import android.net.Network;
 import android.net.NetworkInfo;
 import android.support.annotation.Nullable;
 import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
 import android.util.Base64;
 import com.android.voicemail.PinChanger;
 import com.android.voicemail.PinChanger.ChangePinResult;
@@ -51,10 +52,12 @@ import com.android.voicemail.impl.mail.store.imap.ImapConstants;
 import com.android.voicemail.impl.mail.store.imap.ImapResponse;
 import com.android.voicemail.impl.mail.utils.LogUtils;
 import com.android.voicemail.impl.sync.OmtpVvmSyncService.TranscriptionFetchedCallback;
+import com.android.voicemail.impl.sync.SyncTask;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -136,7 +139,12 @@ public class ImapHelper implements Closeable {
 
   @Override
   public void close() {
-    imapStore.closeConnection();
+    // Keep the connection for the next task of this account. If the server reports new voicemails
+    // in the meantime, sync them right away. A network requested for cellular data only is released
+    // after the task and then torn down, so a connection on it can't be kept.
+    long keepAliveMillis =
+        config.isCellularDataRequired() ? 0 : config.getImapConnectionKeepAliveMillis();
+    imapStore.releaseConnection(keepAliveMillis, () -> SyncTask.start(context, phoneAccount));
   }
 
   public boolean isRoaming() {
@@ -215,12 +223,12 @@ public class ImapHelper implements Closeable {
       // This method retrieves lightweight messages containing only the uid of the message.
       messages = folder.getMessages(null);
 
-      for (Message message : messages) {
-        // Get the voicemail details (message structure).
-        MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
-        if (messageStructureWrapper != null) {
-          result.add(getVoicemailFromMessageStructure(messageStructureWrapper));
-        }
+      // Get the voicemail details (message structure) of all messages with a single command.
+      List<MessageStructureWrapper> messageStructureWrappers = fetchMessageStructures(messages);
+      TranscriptionFetchedListener transcriptionListener =
+          fetchTranscriptions(messageStructureWrappers);
+      for (MessageStructureWrapper messageStructureWrapper : messageStructureWrappers) {
+        result.add(getVoicemailFromMessageStructure(messageStructureWrapper, transcriptionListener));
       }
       return result;
     } catch (MessagingException e) {
@@ -232,20 +240,38 @@ public class ImapHelper implements Closeable {
   }
 
   /**
-   * Extract voicemail details from the message structure. Also fetch transcription if a
-   * transcription exists.
+   * Fetches the transcriptions of all messages that have one. The fetches are pipelined so they
+   * take about one round trip in total.
+   *
+   * @return the listener holding the fetched transcriptions
    */
-  private Voicemail getVoicemailFromMessageStructure(
-      MessageStructureWrapper messageStructureWrapper) throws MessagingException {
-    Message messageDetails = messageStructureWrapper.messageStructure;
-
+  private TranscriptionFetchedListener fetchTranscriptions(
+      List<MessageStructureWrapper> messageStructureWrappers) throws MessagingException {
+    List<Message> messages = new ArrayList<>();
+    List<BodyPart> transcriptionBodyParts = new ArrayList<>();
+    for (MessageStructureWrapper messageStructureWrapper : messageStructureWrappers) {
+      if (messageStructureWrapper.transcriptionBodyPart != null) {
+        messages.add(messageStructureWrapper.messageStructure);
+        transcriptionBodyParts.add(messageStructureWrapper.transcriptionBodyPart);
+      }
+    }
     TranscriptionFetchedListener listener = new TranscriptionFetchedListener();
-    if (messageStructureWrapper.transcriptionBodyPart != null) {
-      FetchProfile fetchProfile = new FetchProfile();
-      fetchProfile.add(messageStructureWrapper.transcriptionBodyPart);
+    folder.fetchParts(
+        messages.toArray(Message.EMPTY_ARRAY),
+        transcriptionBodyParts.toArray(new BodyPart[transcriptionBodyParts.size()]),
+        listener);
+    return listener;
+  }
 
-      folder.fetch(new Message[] {messageDetails}, fetchProfile, listener);
-    }
+  /**
+   * Extract voicemail details from the message structure, along with the transcription in {@code
+   * transcriptionListener} if one was fetched.
+   */
+  private Voicemail getVoicemailFromMessageStructure(
+      MessageStructureWrapper messageStructureWrapper,
+      TranscriptionFetchedListener transcriptionListener)
+      throws MessagingException {
+    Message messageDetails = messageStructureWrapper.messageStructure;
 
     // Found an audio attachment, this is a valid voicemail.
     long time = messageDetails.getSentDate().getTime();
@@ -258,7 +284,8 @@ public class ImapHelper implements Closeable {
             .setSourcePackage(context.getPackageName())
             .setSourceData(messageDetails.getUid())
             .setIsRead(isRead)
-            .setTranscription(listener.getVoicemailTranscription());
+            .setTranscription(
+                transcriptionListener.getVoicemailTranscription(messageDetails.getUid()));
     if (duration != null) {
       builder.setDuration(duration);
     }
@@ -295,7 +322,20 @@ public class ImapHelper implements Closeable {
    * @throws MessagingException if fetching the structure of the message fails
    */
   private MessageStructureWrapper fetchMessageStructure(Message message) throws MessagingException {
-    LogUtils.d(TAG, "Fetching message structure for " + message.getUid());
+    List<MessageStructureWrapper> messageStructureWrappers =
+        fetchMessageStructures(new Message[] {message});
+    return messageStructureWrappers.isEmpty() ? null : messageStructureWrappers.get(0);
+  }
+
+  /**
+   * Fetches the structure of the given messages with a single UID FETCH and returns the wrappers of
+   * the ones that are valid voicemails, in the order of {@code messages}.
+   *
+   * @throws MessagingException if fetching the structure of the messages fails
+   */
+  private List<MessageStructureWrapper> fetchMessageStructures(Message[] messages)
+      throws MessagingException {
+    LogUtils.d(TAG, "Fetching message structure for " + messages.length + " messages");
 
     MessageStructureFetchedListener listener = new MessageStructureFetchedListener();
 
@@ -304,10 +344,19 @@ public class ImapHelper implements Closeable {
         Arrays.asList(
             FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE, FetchProfile.Item.STRUCTURE));
 
-    // The IMAP folder fetch method will call "messageRetrieved" on the listener when the
+    // The IMAP folder fetch method will call "messageRetrieved" on the listener when each
     // message is successfully retrieved.
-    folder.fetch(new Message[] {message}, fetchProfile, listener);
-    return listener.getMessageStructure();
+    folder.fetch(messages, fetchProfile, listener);
+
+    List<MessageStructureWrapper> messageStructureWrappers = new ArrayList<>();
+    for (Message message : messages) {
+      MessageStructureWrapper messageStructureWrapper =
+          listener.getMessageStructure(message.getUid());
+      if (messageStructureWrapper != null) {
+        messageStructureWrappers.add(messageStructureWrapper);
+      }
+    }
+    return messageStructureWrappers;
   }
 
   public boolean fetchVoicemailPayload(VoicemailFetchedCallback callback, final String uid) {
@@ -321,8 +370,13 @@ public class ImapHelper implements Closeable {
       if (message == null) {
         return false;
       }
-      VoicemailPayload voicemailPayload = fetchVoicemailPayload(message);
-      callback.setVoicemailContent(voicemailPayload);
+      MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
+      if (messageStructureWrapper == null) {
+        LogUtils.e(TAG, "No audio attachment found on this voicemail");
+        callback.setVoicemailContent(null);
+        return true;
+      }
+      fetchVoicemailPayload(callback, message, messageStructureWrapper.audioBodyPart);
       return true;
     } catch (MessagingException e) {
     } finally {
@@ -332,20 +386,22 @@ public class ImapHelper implements Closeable {
   }
 
   /**
-   * Fetches the body of the given message and returns the parsed voicemail payload.
+   * Fetches the audio of the given message and passes it to {@code callback}. The audio is decoded
+   * while it is read from the IMAP response and written straight into the voicemail provider.
    *
-   * @throws MessagingException if fetching the body of the message fails
+   * @throws MessagingException if fetching the audio of the message fails
    */
-  private VoicemailPayload fetchVoicemailPayload(Message message) throws MessagingException {
-    LogUtils.d(TAG, "Fetching message body for " + message.getUid());
-
-    MessageBodyFetchedListener listener = new MessageBodyFetchedListener();
-
-    FetchProfile fetchProfile = new FetchProfile();
-    fetchProfile.add(FetchProfile.Item.BODY);
+  private void fetchVoicemailPayload(
+      VoicemailFetchedCallback callback, Message message, BodyPart audioBodyPart)
+      throws MessagingException {
+    LogUtils.d(TAG, "Fetching message audio for " + message.getUid());
 
-    folder.fetch(new Message[] {message}, fetchProfile, listener);
-    return listener.getVoicemailPayload();
+    VoicemailPayloadStreamListener listener =
+        new VoicemailPayloadStreamListener(callback, audioBodyPart.getMimeType().toLowerCase());
+    folder.fetchPartStream(message, audioBodyPart, listener);
+    if (!listener.isRetrieved()) {
+      callback.setVoicemailContent(null);
+    }
   }
 
   public boolean fetchTranscription(TranscriptionFetchedCallback callback, String uid) {
@@ -371,7 +427,7 @@ public class ImapHelper implements Closeable {
           // This method is called synchronously so the transcription will be populated
           // in the listener once the next method is called.
           folder.fetch(new Message[] {message}, fetchProfile, listener);
-          callback.setVoicemailTranscription(listener.getVoicemailTranscription());
+          callback.setVoicemailTranscription(listener.getVoicemailTranscription(message.getUid()));
         }
       }
       return true;
@@ -515,6 +571,7 @@ public class ImapHelper implements Closeable {
   public static class MessageStructureWrapper {
 
     public Message messageStructure;
+    public BodyPart audioBodyPart;
     public BodyPart transcriptionBodyPart;
 
     public MessageStructureWrapper() {}
@@ -524,12 +581,14 @@ public class ImapHelper implements Closeable {
   private final class MessageStructureFetchedListener
       implements ImapFolder.MessageRetrievalListener {
 
-    private MessageStructureWrapper messageStructure;
+    private final ArrayMap<String, MessageStructureWrapper> messageStructures = new ArrayMap<>();
 
     public MessageStructureFetchedListener() {}
 
-    public MessageStructureWrapper getMessageStructure() {
-      return messageStructure;
+    /** Returns the structure of the message with {@code uid}, or null if it is not a voicemail. */
+    @Nullable
+    public MessageStructureWrapper getMessageStructure(String uid) {
+      return messageStructures.get(uid);
     }
 
     @Override
@@ -537,14 +596,15 @@ public class ImapHelper implements Closeable {
       LogUtils.d(TAG, "Fetched message structure for " + message.getUid());
       LogUtils.d(TAG, "Message retrieved: " + message);
       try {
-        messageStructure = getMessageOrNull(message);
-        if (messageStructure == null) {
+        MessageStructureWrapper messageStructure = getMessageOrNull(message);
+        if (messageStructure != null) {
+          messageStructures.put(message.getUid(), messageStructure);
+        } else {
           LogUtils.d(TAG, "This voicemail does not have an attachment...");
-          return;
         }
       } catch (MessagingException e) {
+        // Other messages of the same fetch are still being read, so only skip this one.
         LogUtils.e(TAG, e, "Messaging Exception");
-        closeImapFolder();
       }
     }
 
@@ -571,6 +631,7 @@ public class ImapHelper implements Closeable {
 
         if (bodyPartMimeType.startsWith("audio/")) {
           messageStructureWrapper.messageStructure = message;
+          messageStructureWrapper.audioBodyPart = bodyPart;
         } else if (!config.ignoreTranscription() && bodyPartMimeType.startsWith("text/")) {
           messageStructureWrapper.transcriptionBodyPart = bodyPart;
         } else {
@@ -587,63 +648,49 @@ public class ImapHelper implements Closeable {
     }
   }
 
-  /** Listener for the message body being fetched. */
-  private final class MessageBodyFetchedListener implements ImapFolder.MessageRetrievalListener {
+  /** Listener for the voicemail audio being streamed. */
+  private static final class VoicemailPayloadStreamListener
+      implements ImapFolder.PartStreamListener {
 
-    private VoicemailPayload voicemailPayload;
+    private final VoicemailFetchedCallback callback;
+    private final String mimeType;
+    private boolean retrieved;
 
-    /** Returns the fetch voicemail payload. */
-    public VoicemailPayload getVoicemailPayload() {
-      return voicemailPayload;
+    VoicemailPayloadStreamListener(VoicemailFetchedCallback callback, String mimeType) {
+      this.callback = callback;
+      this.mimeType = mimeType;
     }
 
-    @Override
-    public void messageRetrieved(Message message) {
-      LogUtils.d(TAG, "Fetched message body for " + message.getUid());
-      LogUtils.d(TAG, "Message retrieved: " + message);
-      try {
-        voicemailPayload = getVoicemailPayloadFromMessage(message);
-      } catch (MessagingException e) {
-        LogUtils.e(TAG, "Messaging Exception:", e);
-      } catch (IOException e) {
-        LogUtils.e(TAG, "IO Exception:", e);
-      }
+    /** Returns whether the audio was retrieved and passed to the callback. */
+    boolean isRetrieved() {
+      return retrieved;
     }
 
-    private VoicemailPayload getVoicemailPayloadFromMessage(Message message)
-        throws MessagingException, IOException {
-      Multipart multipart = (Multipart) message.getBody();
-      List<String> mimeTypes = new ArrayList<>();
-      for (int i = 0; i < multipart.getCount(); ++i) {
-        BodyPart bodyPart = multipart.getBodyPart(i);
-        String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
-        mimeTypes.add(bodyPartMimeType);
-        if (bodyPartMimeType.startsWith("audio/")) {
-          byte[] bytes = getDataFromBody(bodyPart.getBody());
-          LogUtils.d(TAG, String.format("Fetched %s bytes of data", bytes.length));
-          return new VoicemailPayload(bodyPartMimeType, bytes);
-        }
-      }
-      LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
-      return null;
+    @Override
+    public void partRetrieved(Message message, InputStream in) {
+      LogUtils.d(TAG, "Fetched message audio for " + message.getUid());
+      retrieved = true;
+      callback.setVoicemailContent(new VoicemailPayload(mimeType, in));
     }
   }
 
   /** Listener for the transcription being fetched. */
   private final class TranscriptionFetchedListener implements ImapFolder.MessageRetrievalListener {
 
-    private String voicemailTranscription;
+    private final ArrayMap<String, String> voicemailTranscriptions = new ArrayMap<>();
 
-    /** Returns the fetched voicemail transcription. */
-    public String getVoicemailTranscription() {
-      return voicemailTranscription;
+    /** Returns the fetched transcription of the voicemail with {@code uid}. */
+    @Nullable
+    public String getVoicemailTranscription(String uid) {
+      return voicemailTranscriptions.get(uid);
     }
 
     @Override
     public void messageRetrieved(Message message) {
       LogUtils.d(TAG, "Fetched transcription for " + message.getUid());
       try {
-        voicemailTranscription = new String(getDataFromBody(message.getBody()));
+        voicemailTranscriptions.put(
+            message.getUid(), new String(getDataFromBody(message.getBody())));
       } catch (MessagingException e) {
         LogUtils.e(TAG, "Messaging Exception:", e);
       } catch (IOException e) {
@@ -16,21 +16,51 @@
 
 package com.android.voicemail.impl.imap;
 
-/** The payload for a voicemail, usually audio data. */
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The payload for a voicemail, usually audio data. The data is streamed from the IMAP response
+ * while it is decoded, so it can only be written once.
+ */
 public class VoicemailPayload {
+  private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+  /** Reused for every payload written on the same thread. */
+  private static final ThreadLocal<byte[]> copyBuffer =
+      new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+          return new byte[COPY_BUFFER_SIZE];
+        }
+      };
+
   private final String mimeType;
-  private final byte[] bytes;
+  private final InputStream inputStream;
 
-  public VoicemailPayload(String mimeType, byte[] bytes) {
+  public VoicemailPayload(String mimeType, InputStream inputStream) {
     this.mimeType = mimeType;
-    this.bytes = bytes;
-  }
-
-  public byte[] getBytes() {
-    return bytes;
+    this.inputStream = inputStream;
   }
 
   public String getMimeType() {
     return mimeType;
   }
+
+  /**
+   * Writes the decoded payload to {@code out}.
+   *
+   * @return the number of bytes written
+   */
+  public long writeTo(OutputStream out) throws IOException {
+    byte[] buffer = copyBuffer.get();
+    long count = 0;
+    int n;
+    while ((n = inputStream.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+      count += n;
+    }
+    return count;
+  }
 }
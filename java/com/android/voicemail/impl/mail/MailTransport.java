@@ -53,7 +53,7 @@ public class MailTransport {
       HttpsURLConnection.getDefaultHostnameVerifier();
 
   private final Context context;
-  private final ImapHelper imapHelper;
+  private ImapHelper imapHelper;
   private final Network network;
   private final String host;
   private final int port;
@@ -296,6 +296,16 @@ public class MailTransport {
     return host;
   }
 
+  /** Sets the helper that receives the events of this transport, when it is reused by another. */
+  public void setImapHelper(ImapHelper imapHelper) {
+    this.imapHelper = imapHelper;
+  }
+
+  /** Sets the read timeout of the open socket, e.g. to wait longer for an IDLE response. */
+  public void setSoTimeout(int timeoutMillis) throws IOException {
+    socket.setSoTimeout(timeoutMillis);
+  }
+
   public InputStream getInputStream() {
     return in;
   }
@@ -15,6 +15,7 @@
  */
 package com.android.voicemail.impl.mail.store;
 
+import android.os.SystemClock;
 import android.util.ArraySet;
 import android.util.Base64;
 import com.android.voicemail.impl.OmtpEvents;
@@ -48,6 +49,14 @@ public class ImapConnection {
   private ImapResponseParser parser;
   private Set<String> capabilities = new ArraySet<>();
 
+  /** Commands sent whose tagged completion has not been read yet. */
+  private int unfinishedCommands;
+  /** Whether a command failed, so that the state of the connection is unknown. */
+  private boolean broken;
+  private String lastCommandTag;
+  /** {@link SystemClock#elapsedRealtime()} of the login. */
+  private long loginTimeMillis;
+
   static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
 
   /**
@@ -67,6 +76,27 @@ public class ImapConnection {
     // changed, the connection will not be reestablished.
     imapStore = store;
     loginPhrase = null;
+    if (transport != null) {
+      transport.setImapHelper(store.getImapHelper());
+    }
+  }
+
+  /** Returns whether the connection is still open, e.g. to be reused by another store. */
+  boolean isOpen() {
+    return transport != null && transport.isOpen();
+  }
+
+  /**
+   * Returns whether another store can use the connection: it is open, and every command sent on it
+   * completed without an error, so no response is left to be read.
+   */
+  boolean isReusable() {
+    return isOpen() && !broken && unfinishedCommands == 0;
+  }
+
+  /** Returns the {@link SystemClock#elapsedRealtime()} at which the connection logged in. */
+  long getLoginTimeMillis() {
+    return loginTimeMillis;
   }
 
   /**
@@ -96,6 +126,8 @@ public class ImapConnection {
       return;
     }
 
+    unfinishedCommands = 0;
+    broken = false;
     try {
       // copy configuration into a clean transport, if necessary
       if (transport == null) {
@@ -123,6 +155,7 @@ public class ImapConnection {
 
       // LOGIN
       doLogin();
+      loginTimeMillis = SystemClock.elapsedRealtime();
     } catch (SSLException e) {
       LogUtils.d(TAG, "SSLException ", e);
       imapStore.getImapHelper().handleEvent(OmtpEvents.DATA_SSL_EXCEPTION);
@@ -165,6 +198,66 @@ public class ImapConnection {
     imapStore = null;
   }
 
+  /** Closes the transport without logging out, e.g. when the server no longer responds. */
+  void disconnect() {
+    if (transport != null) {
+      transport.close();
+      transport = null;
+    }
+    destroyResponses();
+    parser = null;
+    imapStore = null;
+  }
+
+  /** Checks that the server still accepts commands on this connection. */
+  void noop() throws IOException, MessagingException {
+    try {
+      executeSimpleCommand(ImapConstants.NOOP);
+    } finally {
+      destroyResponses();
+    }
+  }
+
+  /** Returns whether the server supports IDLE and it is not disabled for the carrier. */
+  boolean canIdle() {
+    return hasCapability(ImapConstants.CAPABILITY_IDLE);
+  }
+
+  /**
+   * Starts an IDLE command and returns once the server accepted it. Untagged responses such as
+   * EXISTS are then read with {@link #readResponse()} until {@link #sendIdleDone()} is called,
+   * after which the tagged completion of the IDLE command is read.
+   *
+   * @param timeoutMillis how long to wait for each response before giving up on the connection
+   * @return the tag of the IDLE command
+   */
+  String startIdle(int timeoutMillis) throws IOException, MessagingException {
+    String tag = sendCommand(ImapConstants.IDLE, false);
+    try {
+      ImapResponse response = readResponse();
+      if (!response.isContinuationRequest()) {
+        throw new MessagingException("IDLE rejected: " + response);
+      }
+    } finally {
+      destroyResponses();
+    }
+    transport.setSoTimeout(timeoutMillis);
+    return tag;
+  }
+
+  /**
+   * Ends the current IDLE command. This may be called from another thread than the one reading the
+   * responses.
+   */
+  void sendIdleDone() throws IOException {
+    transport.writeLine(ImapConstants.DONE, null);
+  }
+
+  /** Restores the normal read timeout after an IDLE command completed. */
+  void endIdle() throws IOException {
+    transport.setSoTimeout(MailTransport.SOCKET_READ_TIMEOUT);
+  }
+
   /** Attempts to convert the connection into secure connection. */
   private void maybeDoStartTls() throws IOException, MessagingException {
     // STARTTLS is required in the OMTP standard but not every implementation support it.
@@ -325,7 +418,16 @@ public class ImapConnection {
   }
 
   public ImapResponse readResponse() throws IOException, MessagingException {
-    return parser.readResponse(false);
+    try {
+      ImapResponse response = parser.readResponse(false);
+      if (response.isTagged()) {
+        unfinishedCommands--;
+      }
+      return response;
+    } catch (IOException | MessagingException | RuntimeException e) {
+      broken = true;
+      throw e;
+    }
   }
 
   public List<ImapResponse> executeSimpleCommand(String command)
@@ -361,13 +463,25 @@ public class ImapConnection {
     }
     String tag = Integer.toString(nextCommandTag.incrementAndGet());
     String commandToSend = tag + " " + command;
-    transport.writeLine(commandToSend, (sensitive ? IMAP_REDACTED_LOG : command));
+    try {
+      transport.writeLine(commandToSend, (sensitive ? IMAP_REDACTED_LOG : command));
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    }
+    unfinishedCommands++;
+    lastCommandTag = tag;
     return tag;
   }
 
   List<ImapResponse> executeContinuationResponse(String response, boolean sensitive)
       throws IOException, MessagingException {
-    transport.writeLine(response, (sensitive ? IMAP_REDACTED_LOG : response));
+    try {
+      transport.writeLine(response, (sensitive ? IMAP_REDACTED_LOG : response));
+    } catch (IOException e) {
+      broken = true;
+      throw e;
+    }
     return getCommandResponses();
   }
 
@@ -382,11 +496,20 @@ public class ImapConnection {
     final List<ImapResponse> responses = new ArrayList<ImapResponse>();
     ImapResponse response;
     do {
-      response = parser.readResponse(false);
+      response = readResponse();
       responses.add(response);
     } while (!(response.isTagged() || response.isContinuationRequest()));
 
+    if (response.isTagged() && !response.getTag().equals(lastCommandTag)) {
+      // A response left over from an earlier command, the connection is out of sync.
+      broken = true;
+      final String toString = response.toString();
+      destroyResponses();
+      throw new MessagingException(
+          "Unexpected response to command " + lastCommandTag + ": " + toString);
+    }
     if (!(response.isOk() || response.isContinuationRequest())) {
+      broken = true;
       final String toString = response.toString();
       final String status = response.getStatusOrEmpty().getString();
       final String statusMessage = response.getStatusResponseTextOrEmpty().getString();
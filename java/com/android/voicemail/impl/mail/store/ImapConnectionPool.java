@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.voicemail.impl.mail.store;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.util.ArrayMap;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.voicemail.impl.VvmLog;
+import com.android.voicemail.impl.mail.MessagingException;
+import com.android.voicemail.impl.mail.store.imap.ImapConstants;
+import com.android.voicemail.impl.mail.store.imap.ImapResponse;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps authenticated {@link ImapConnection}s open for a while after a task is done with them, so
+ * that the next task of the same account can skip the TCP, TLS and login round trips.
+ *
+ * <p>If the server supports IDLE, a thread of the pool's own executor idles on the kept connection
+ * and reports new messages, so that they are synced without waiting for the carrier's SMS. IDLE
+ * blocks its thread for the whole keep-alive window, so it is kept off the shared dialer executors
+ * and only {@link #MAX_IDLE_WATCHERS} connections idle at a time. Other connections are just closed
+ * once they have not been taken back within their keep-alive window. Either way a connection is
+ * checked with NOOP before it is reused.
+ */
+final class ImapConnectionPool {
+
+  private static final String TAG = "ImapConnectionPool";
+
+  /** How long to wait for the server to complete IDLE after DONE. */
+  private static final long IDLE_DONE_TIMEOUT_MILLIS = 10_000;
+
+  /**
+   * How long a login is reused at most. Reused connections skip the login, so a problem with the
+   * account, such as a blocked user, is only reported by the next login.
+   */
+  private static final long MAX_LOGIN_AGE_MILLIS = 30 * 60 * 1000;
+
+  /** How many kept connections idle at most. Usually there is one per voicemail account. */
+  private static final int MAX_IDLE_WATCHERS = 2;
+
+  private static final ImapConnectionPool instance = new ImapConnectionPool();
+
+  /** Kept connections by {@link ImapStore#getConnectionKey()}. Guarded by this. */
+  private final ArrayMap<String, Entry> entries = new ArrayMap<>();
+
+  /** Runs the IDLE watchers, of which {@link #idlePermits} bounds the number. */
+  private final ExecutorService idleExecutor =
+      Executors.newCachedThreadPool(
+          runnable -> {
+            Thread thread = new Thread(runnable, "ImapConnectionPool-Idle");
+            // Java thread priority 4 corresponds to Process.THREAD_PRIORITY_BACKGROUND (10)
+            thread.setPriority(4);
+            return thread;
+          });
+
+  private final Semaphore idlePermits = new Semaphore(MAX_IDLE_WATCHERS);
+
+  private ImapConnectionPool() {}
+
+  static ImapConnectionPool get() {
+    return instance;
+  }
+
+  /**
+   * Returns whether {@code connection} can be kept: every command sent on it completed cleanly and
+   * its login is recent enough.
+   */
+  static boolean canKeep(ImapConnection connection) {
+    return connection.isReusable()
+        && SystemClock.elapsedRealtime() - connection.getLoginTimeMillis() < MAX_LOGIN_AGE_MILLIS;
+  }
+
+  /**
+   * Keeps {@code connection} for {@code keepAliveMillis}. Replaces any connection already kept for
+   * the same key.
+   *
+   * @param onNewMessages called on a background thread if the server reports new messages while
+   *     the connection is kept
+   */
+  void put(
+      Context context,
+      String key,
+      ImapConnection connection,
+      long keepAliveMillis,
+      @Nullable Runnable onNewMessages) {
+    DialerExecutorComponent executors = DialerExecutorComponent.get(context);
+    Entry entry =
+        new Entry(
+            key,
+            connection,
+            keepAliveMillis,
+            onNewMessages,
+            connection.canIdle() && idlePermits.tryAcquire(),
+            executors.lowPriorityThreadPool());
+    Entry previous;
+    synchronized (this) {
+      previous = entries.put(key, entry);
+    }
+    if (previous != null) {
+      previous.replaced = true;
+      stop(previous);
+      if (!previous.idles) {
+        previous.executor.execute(() -> closeConnection(previous));
+      }
+    }
+    if (entry.idles) {
+      // IDLE blocks on reading the socket, so it needs a thread for the whole window.
+      idleExecutor.execute(
+          () -> {
+            try {
+              watch(entry);
+            } finally {
+              idlePermits.release();
+            }
+          });
+    } else {
+      entry.finished.countDown();
+      entry.expiry =
+          executors
+              .nonUiSerialScheduledExecutor()
+              .schedule(
+                  () -> {
+                    if (remove(entry)) {
+                      entry.executor.execute(() -> closeConnection(entry));
+                    }
+                  },
+                  entry.keepAliveMillis,
+                  TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns the connection kept for {@code key} if it is still usable, or null if a new one has to
+   * be opened. The caller owns the returned connection.
+   */
+  @Nullable
+  ImapConnection take(String key) {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.remove(key);
+    }
+    if (entry == null) {
+      return null;
+    }
+    stop(entry);
+    try {
+      if (!entry.finished.await(IDLE_DONE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+        entry.broken = true;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      entry.broken = true;
+    }
+    if (entry.broken || !entry.connection.isReusable()) {
+      VvmLog.i(TAG, "kept connection is no longer usable");
+      entry.connection.disconnect();
+      return null;
+    }
+    // Proves that the server still knows the connection and answers it in order.
+    try {
+      entry.connection.noop();
+    } catch (IOException | MessagingException e) {
+      VvmLog.i(TAG, "kept connection failed NOOP: " + e);
+      entry.connection.disconnect();
+      return null;
+    }
+    VvmLog.i(TAG, "reusing kept connection");
+    return entry.connection;
+  }
+
+  /** Stops idling on or expiring {@code entry}. */
+  private static void stop(Entry entry) {
+    synchronized (entry) {
+      entry.stopped = true;
+      if (entry.idling) {
+        try {
+          entry.connection.sendIdleDone();
+        } catch (IOException | RuntimeException e) {
+          entry.broken = true;
+        }
+      }
+    }
+    Future<?> expiry = entry.expiry;
+    if (expiry != null) {
+      expiry.cancel(false);
+    }
+  }
+
+  private void watch(Entry entry) {
+    boolean expired = idle(entry);
+    if (entry.replaced || (expired && remove(entry))) {
+      closeConnection(entry);
+    }
+    entry.finished.countDown();
+  }
+
+  private static void closeConnection(Entry entry) {
+    VvmLog.i(TAG, "closing kept connection");
+    if (entry.idling || entry.broken) {
+      entry.connection.disconnect();
+    } else {
+      entry.connection.close();
+    }
+  }
+
+  /**
+   * Idles on the connection of {@code entry} until it is taken or the keep-alive window is over.
+   *
+   * @return whether the connection should be closed because it was not taken
+   */
+  private boolean idle(Entry entry) {
+    ImapConnection connection = entry.connection;
+    try {
+      long deadline = SystemClock.elapsedRealtime() + entry.keepAliveMillis;
+      String idleTag = connection.startIdle((int) entry.keepAliveMillis);
+      synchronized (entry) {
+        entry.idling = true;
+        if (entry.stopped) {
+          // Stopped while IDLE was being started, so DONE has not been sent yet.
+          connection.sendIdleDone();
+        }
+      }
+      boolean newMessagesReported = false;
+      while (true) {
+        try {
+          ImapResponse response = connection.readResponse();
+          if (response.isTagged()) {
+            if (!idleTag.equals(response.getTag()) || !response.isOk()) {
+              // Not the completion of IDLE, so the server may still be idling.
+              throw new MessagingException("unexpected response while idling: " + response);
+            }
+            break;
+          }
+          if (!entry.stopped && SystemClock.elapsedRealtime() >= deadline) {
+            // The server keeps the connection busy with untagged responses.
+            throw new IOException("keep-alive window is over");
+          }
+          if (response.isDataResponse(1, ImapConstants.EXISTS)
+              && !newMessagesReported
+              && entry.onNewMessages != null) {
+            VvmLog.i(TAG, "new message reported while idling");
+            newMessagesReported = true;
+            entry.onNewMessages.run();
+          }
+        } finally {
+          connection.destroyResponses();
+        }
+      }
+      connection.endIdle();
+      entry.idling = false;
+      return false;
+    } catch (IOException | MessagingException | RuntimeException e) {
+      // Also the end of the keep-alive window, through the read timeout.
+      VvmLog.i(TAG, "stopped idling: " + e);
+      entry.broken = true;
+      return true;
+    }
+  }
+
+  /** Removes {@code entry} if it is still kept. Whoever removes an entry owns its connection. */
+  private synchronized boolean remove(Entry entry) {
+    if (entries.get(entry.key) != entry) {
+      return false;
+    }
+    entries.remove(entry.key);
+    return true;
+  }
+
+  private static final class Entry {
+    final String key;
+    final ImapConnection connection;
+    final long keepAliveMillis;
+    @Nullable final Runnable onNewMessages;
+
+    /**
+     * Whether a task idles on the connection and holds one of the {@link #idlePermits}; otherwise
+     * the connection is closed by {@link #expiry}.
+     */
+    final boolean idles;
+
+    /** Closes the connection if it doesn't idle. */
+    final ExecutorService executor;
+
+    /** Closes the connection once the keep-alive window is over, if it doesn't idle. */
+    @Nullable volatile Future<?> expiry;
+
+    /** Whether the connection was taken back or replaced. Only set while holding this. */
+    volatile boolean stopped;
+
+    /** Counted down once the idling task no longer uses the connection. */
+    final CountDownLatch finished = new CountDownLatch(1);
+
+    /** Whether an IDLE command is in progress. Only set to true while holding this. */
+    volatile boolean idling;
+    volatile boolean broken;
+    volatile boolean replaced;
+
+    Entry(
+        String key,
+        ImapConnection connection,
+        long keepAliveMillis,
+        @Nullable Runnable onNewMessages,
+        boolean idles,
+        ExecutorService executor) {
+      this.key = key;
+      this.connection = connection;
+      this.keepAliveMillis = Math.min(keepAliveMillis, Integer.MAX_VALUE);
+      this.onNewMessages = onNewMessages;
+      this.idles = idles;
+      this.executor = executor;
+    }
+  }
+}
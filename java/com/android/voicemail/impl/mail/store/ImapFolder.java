@@ -15,7 +15,6 @@
  */
 package com.android.voicemail.impl.mail.store;
 
-import android.content.Context;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.text.TextUtils;
@@ -61,6 +60,7 @@ public class ImapFolder {
 
   private final ImapStore store;
   private final String name;
+  private byte[] copyBuffer;
   private int messageCount = -1;
   private ImapConnection connection;
   private String mode;
@@ -81,6 +81,15 @@ public class ImapFolder {
     public void messageRetrieved(Message message);
   }
 
+  /** Callback for a part whose content is streamed to the caller instead of being stored. */
+  public interface PartStreamListener {
+    /**
+     * Called with the content of the fetched part, with its content transfer encoding already
+     * removed while reading. The stream is only valid during this call.
+     */
+    public void partRetrieved(Message message, InputStream in);
+  }
+
   private void destroyResponses() {
     if (connection != null) {
       connection.destroyResponses();
@@ -251,6 +260,115 @@ public class ImapFolder {
       messageMap.put(m.getUid(), m);
     }
 
+    // TODO Why are we only fetching the first part given?
+    final Part fetchPart = fp.getFirstPart();
+    ArrayMap<String, Part> partMap = null;
+    String partId = null;
+    if (fetchPart != null) {
+      partMap = new ArrayMap<String, Part>();
+      for (Message m : messages) {
+        partMap.put(m.getUid(), fetchPart);
+      }
+      final String[] partIds = fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+      // TODO Why can a single part have more than one Id? And why should we only fetch
+      // the first id if there are more than one?
+      if (partIds != null) {
+        partId = partIds[0];
+      }
+    }
+
+    try {
+      connection.sendCommand(getFetchCommand(messages, fp, partId), false);
+      readFetchResponses(1, messageMap, fp, partMap, listener, null);
+    } catch (IOException ioe) {
+      store.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+      throw ioExceptionHandler(connection, ioe);
+    }
+  }
+
+  /**
+   * Fetches {@code parts[i]} of {@code messages[i]} for each message, e.g. the transcription of
+   * each voicemail. Messages whose parts have the same ID are fetched with a single UID FETCH, and
+   * the commands for different IDs are pipelined, so the whole batch costs about one round trip no
+   * matter how many messages there are. {@code listener} is called once for each fetched message,
+   * in the order the server responds.
+   */
+  public void fetchParts(Message[] messages, Part[] parts, MessageRetrievalListener listener)
+      throws MessagingException {
+    if (messages.length != parts.length) {
+      throw new IllegalArgumentException("Need exactly one part for each message");
+    }
+    if (messages.length == 0) {
+      return;
+    }
+    checkOpen();
+    ArrayMap<String, Message> messageMap = new ArrayMap<String, Message>();
+    ArrayMap<String, Part> partMap = new ArrayMap<String, Part>();
+    ArrayMap<String, List<Message>> messagesByPartId = new ArrayMap<String, List<Message>>();
+    for (int i = 0; i < messages.length; i++) {
+      final String[] partIds = parts[i].getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+      if (partIds == null) {
+        continue;
+      }
+      messageMap.put(messages[i].getUid(), messages[i]);
+      partMap.put(messages[i].getUid(), parts[i]);
+      List<Message> partMessages = messagesByPartId.get(partIds[0]);
+      if (partMessages == null) {
+        partMessages = new ArrayList<Message>();
+        messagesByPartId.put(partIds[0], partMessages);
+      }
+      partMessages.add(messages[i]);
+    }
+    if (messagesByPartId.isEmpty()) {
+      return;
+    }
+
+    FetchProfile fp = new FetchProfile();
+    try {
+      for (int i = 0; i < messagesByPartId.size(); i++) {
+        connection.sendCommand(
+            getFetchCommand(
+                messagesByPartId.valueAt(i).toArray(Message.EMPTY_ARRAY),
+                fp,
+                messagesByPartId.keyAt(i)),
+            false);
+      }
+      readFetchResponses(messagesByPartId.size(), messageMap, fp, partMap, listener, null);
+    } catch (IOException ioe) {
+      store.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+      throw ioExceptionHandler(connection, ioe);
+    }
+  }
+
+  /**
+   * Fetches {@code part} of {@code message} and hands its decoded content to {@code listener} while
+   * it is read from the response, so large parts such as the voicemail audio are not decoded into
+   * another temp file first.
+   */
+  public void fetchPartStream(Message message, Part part, PartStreamListener listener)
+      throws MessagingException {
+    checkOpen();
+    final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+    if (partIds == null) {
+      return;
+    }
+    ArrayMap<String, Message> messageMap = new ArrayMap<String, Message>();
+    messageMap.put(message.getUid(), message);
+    ArrayMap<String, Part> partMap = new ArrayMap<String, Part>();
+    partMap.put(message.getUid(), part);
+
+    FetchProfile fp = new FetchProfile();
+    try {
+      connection.sendCommand(getFetchCommand(new Message[] {message}, fp, partIds[0]), false);
+      readFetchResponses(1, messageMap, fp, partMap, null, listener);
+    } catch (IOException ioe) {
+      store.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+      throw ioExceptionHandler(connection, ioe);
+    }
+  }
+
+  private static String getFetchCommand(
+      Message[] messages, FetchProfile fp, @Nullable String partId) {
     /*
      * Figure out what command we are going to run:
      * FLAGS     - UID FETCH (FLAGS)
@@ -283,143 +401,176 @@ public class ImapFolder {
     if (fp.contains(FetchProfile.Item.BODY)) {
       fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK);
     }
+    if (partId != null) {
+      fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE + "[" + partId + "]");
+    }
 
-    // TODO Why are we only fetching the first part given?
-    final Part fetchPart = fp.getFirstPart();
-    if (fetchPart != null) {
-      final String[] partIds = fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
-      // TODO Why can a single part have more than one Id? And why should we only fetch
-      // the first id if there are more than one?
-      if (partIds != null) {
-        fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE + "[" + partIds[0] + "]");
+    return String.format(
+        Locale.US,
+        ImapConstants.UID_FETCH + " %s (%s)",
+        ImapStore.joinMessageUids(messages),
+        Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' '));
+  }
+
+  /**
+   * Reads the responses of {@code commandCount} pipelined UID FETCH commands until all of them are
+   * completed. Each FETCH response may be for any of the messages in {@code messageMap}.
+   *
+   * @param partMap the part to fetch by message UID, or null if no part was fetched
+   * @param partStreamListener if not null, receives the content of the fetched parts instead of
+   *     the messages
+   */
+  private void readFetchResponses(
+      int commandCount,
+      ArrayMap<String, Message> messageMap,
+      FetchProfile fp,
+      @Nullable ArrayMap<String, Part> partMap,
+      @Nullable MessageRetrievalListener listener,
+      @Nullable PartStreamListener partStreamListener)
+      throws IOException, MessagingException {
+    int remainingCommands = commandCount;
+    MessagingException failure = null;
+    do {
+      try {
+        ImapResponse response = connection.readResponse();
+        if (response.isTagged()) {
+          remainingCommands--;
+        } else if (failure == null) {
+          try {
+            handleFetchResponse(response, messageMap, fp, partMap, listener, partStreamListener);
+          } catch (MessagingException e) {
+            // Keep reading, so that no response of the batch is left for the next command.
+            failure = e;
+          }
+        }
+      } finally {
+        destroyResponses();
       }
+    } while (remainingCommands > 0);
+    if (failure != null) {
+      throw failure;
     }
+  }
 
-    try {
-      connection.sendCommand(
-          String.format(
-              Locale.US,
-              ImapConstants.UID_FETCH + " %s (%s)",
-              ImapStore.joinMessageUids(messages),
-              Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')),
-          false);
-      ImapResponse response;
-      do {
-        response = null;
-        try {
-          response = connection.readResponse();
+  private void handleFetchResponse(
+      ImapResponse response,
+      ArrayMap<String, Message> messageMap,
+      FetchProfile fp,
+      @Nullable ArrayMap<String, Part> partMap,
+      @Nullable MessageRetrievalListener listener,
+      @Nullable PartStreamListener partStreamListener)
+      throws MessagingException {
+    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+      return; // Ignore
+    }
+    final ImapList fetchList = response.getListOrEmpty(2);
+    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
+    if (TextUtils.isEmpty(uid)) {
+      return;
+    }
 
-          if (!response.isDataResponse(1, ImapConstants.FETCH)) {
-            continue; // Ignore
-          }
-          final ImapList fetchList = response.getListOrEmpty(2);
-          final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getString();
-          if (TextUtils.isEmpty(uid)) continue;
-
-          ImapMessage message = (ImapMessage) messageMap.get(uid);
-          if (message == null) continue;
-
-          if (fp.contains(FetchProfile.Item.FLAGS)) {
-            final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-            for (int i = 0, count = flags.size(); i < count; i++) {
-              final ImapString flag = flags.getStringOrEmpty(i);
-              if (flag.is(ImapConstants.FLAG_DELETED)) {
-                message.setFlagInternal(Flag.DELETED, true);
-              } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                message.setFlagInternal(Flag.ANSWERED, true);
-              } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                message.setFlagInternal(Flag.SEEN, true);
-              } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                message.setFlagInternal(Flag.FLAGGED, true);
-              }
-            }
-          }
-          if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-            final Date internalDate =
-                fetchList.getKeyedStringOrEmpty(ImapConstants.INTERNALDATE).getDateOrNull();
-            final int size =
-                fetchList.getKeyedStringOrEmpty(ImapConstants.RFC822_SIZE).getNumberOrZero();
-            final String header =
-                fetchList
-                    .getKeyedStringOrEmpty(ImapConstants.BODY_BRACKET_HEADER, true)
-                    .getString();
-
-            message.setInternalDate(internalDate);
-            message.setSize(size);
-            try {
-              message.parse(Utility.streamFromAsciiString(header));
-            } catch (Exception e) {
-              VvmLog.e(TAG, "Error parsing header %s", e);
-            }
-          }
-          if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-            ImapList bs = fetchList.getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
-            if (!bs.isEmpty()) {
-              try {
-                parseBodyStructure(bs, message, ImapConstants.TEXT);
-              } catch (MessagingException e) {
-                VvmLog.v(TAG, "Error handling message", e);
-                message.setBody(null);
-              }
-            }
-          }
-          if (fp.contains(FetchProfile.Item.BODY)
-                  || fp.contains(FetchProfile.Item.BODY_TRUNCATED)) {
-            // Body is keyed by "BODY[]...".
-            // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-            // TODO Should we accept "RFC822" as well??
-            ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-            InputStream bodyStream = body.getAsStream();
-            try {
-              message.parse(bodyStream);
-            } catch (Exception e) {
-              VvmLog.e(TAG, "Error parsing body %s", e);
-            }
-          }
-          if (fetchPart != null) {
-            InputStream bodyStream = fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-            String[] encodings = fetchPart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-            String contentTransferEncoding = null;
-            if (encodings != null && encodings.length > 0) {
-              contentTransferEncoding = encodings[0];
-            } else {
-              // According to http://tools.ietf.org/html/rfc2045#section-6.1
-              // "7bit" is the default.
-              contentTransferEncoding = "7bit";
-            }
-
-            try {
-              // TODO Don't create 2 temp files.
-              // decodeBody creates BinaryTempFileBody, but we could avoid this
-              // if we implement ImapStringBody.
-              // (We'll need to share a temp file.  Protect it with a ref-count.)
-              message.setBody(
-                  decodeBody(
-                      store.getContext(),
-                      bodyStream,
-                      contentTransferEncoding,
-                      fetchPart.getSize(),
-                      listener));
-            } catch (Exception e) {
-              // TODO: Figure out what kinds of exceptions might actually be thrown
-              // from here. This blanket catch-all is because we're not sure what to
-              // do if we don't have a contentTransferEncoding, and we don't have
-              // time to figure out what exceptions might be thrown.
-              VvmLog.e(TAG, "Error fetching body %s", e);
-            }
-          }
+    ImapMessage message = (ImapMessage) messageMap.get(uid);
+    if (message == null) {
+      return;
+    }
+    final Part fetchPart = partMap == null ? null : partMap.get(uid);
 
-          if (listener != null) {
-            listener.messageRetrieved(message);
-          }
-        } finally {
-          destroyResponses();
+    if (fp.contains(FetchProfile.Item.FLAGS)) {
+      final ImapList flags = fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+      for (int i = 0, count = flags.size(); i < count; i++) {
+        final ImapString flag = flags.getStringOrEmpty(i);
+        if (flag.is(ImapConstants.FLAG_DELETED)) {
+          message.setFlagInternal(Flag.DELETED, true);
+        } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+          message.setFlagInternal(Flag.ANSWERED, true);
+        } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+          message.setFlagInternal(Flag.SEEN, true);
+        } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+          message.setFlagInternal(Flag.FLAGGED, true);
         }
-      } while (!response.isTagged());
-    } catch (IOException ioe) {
-      store.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
-      throw ioExceptionHandler(connection, ioe);
+      }
+    }
+    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+      final Date internalDate =
+          fetchList.getKeyedStringOrEmpty(ImapConstants.INTERNALDATE).getDateOrNull();
+      final int size =
+          fetchList.getKeyedStringOrEmpty(ImapConstants.RFC822_SIZE).getNumberOrZero();
+      final String header =
+          fetchList
+              .getKeyedStringOrEmpty(ImapConstants.BODY_BRACKET_HEADER, true)
+              .getString();
+
+      message.setInternalDate(internalDate);
+      message.setSize(size);
+      try {
+        message.parse(Utility.streamFromAsciiString(header));
+      } catch (Exception e) {
+        VvmLog.e(TAG, "Error parsing header %s", e);
+      }
+    }
+    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+      ImapList bs = fetchList.getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
+      if (!bs.isEmpty()) {
+        try {
+          parseBodyStructure(bs, message, ImapConstants.TEXT);
+        } catch (MessagingException e) {
+          VvmLog.v(TAG, "Error handling message", e);
+          message.setBody(null);
+        }
+      }
+    }
+    if (fp.contains(FetchProfile.Item.BODY)
+            || fp.contains(FetchProfile.Item.BODY_TRUNCATED)) {
+      // Body is keyed by "BODY[]...".
+      // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+      // TODO Should we accept "RFC822" as well??
+      ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+      InputStream bodyStream = body.getAsStream();
+      try {
+        message.parse(bodyStream);
+      } catch (Exception e) {
+        VvmLog.e(TAG, "Error parsing body %s", e);
+      }
+    }
+    if (fetchPart != null) {
+      InputStream bodyStream = fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
+      String[] encodings = fetchPart.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+
+      String contentTransferEncoding = null;
+      if (encodings != null && encodings.length > 0) {
+        contentTransferEncoding = encodings[0];
+      } else {
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1
+        // "7bit" is the default.
+        contentTransferEncoding = "7bit";
+      }
+
+      if (partStreamListener != null) {
+        partStreamListener.partRetrieved(
+            message,
+            MimeUtility.getInputStreamForContentTransferEncoding(
+                bodyStream, contentTransferEncoding));
+        return;
+      }
+
+      try {
+        // TODO Don't create 2 temp files.
+        // decodeBody creates BinaryTempFileBody, but we could avoid this
+        // if we implement ImapStringBody.
+        // (We'll need to share a temp file.  Protect it with a ref-count.)
+        message.setBody(
+            decodeBody(bodyStream, contentTransferEncoding));
+      } catch (Exception e) {
+        // TODO: Figure out what kinds of exceptions might actually be thrown
+        // from here. This blanket catch-all is because we're not sure what to
+        // do if we don't have a contentTransferEncoding, and we don't have
+        // time to figure out what exceptions might be thrown.
+        VvmLog.e(TAG, "Error fetching body %s", e);
+      }
+    }
+
+    if (listener != null) {
+      listener.messageRetrieved(message);
     }
   }
 
@@ -427,24 +578,18 @@ public class ImapFolder {
    * Removes any content transfer encoding from the stream and returns a Body. This code is
    * taken/condensed from MimeUtility.decodeBody
    */
-  private static Body decodeBody(
-      Context context,
-      InputStream in,
-      String contentTransferEncoding,
-      int size,
-      MessageRetrievalListener listener)
-      throws IOException {
+  private Body decodeBody(InputStream in, String contentTransferEncoding) throws IOException {
     // Get a properly wrapped input stream
     in = MimeUtility.getInputStreamForContentTransferEncoding(in, contentTransferEncoding);
     BinaryTempFileBody tempBody = new BinaryTempFileBody();
     OutputStream out = tempBody.getOutputStream();
+    if (copyBuffer == null) {
+      copyBuffer = new byte[COPY_BUFFER_SIZE];
+    }
     try {
-      byte[] buffer = new byte[COPY_BUFFER_SIZE];
       int n = 0;
-      int count = 0;
-      while (-1 != (n = in.read(buffer))) {
-        out.write(buffer, 0, n);
-        count += n;
+      while (-1 != (n = in.read(copyBuffer))) {
+        out.write(copyBuffer, 0, n);
       }
     } catch (Base64DataException bde) {
       String warning = "\n\nThere was an error while decoding the message.";
@@ -18,6 +18,7 @@ package com.android.voicemail.impl.mail.store;
 
 import android.content.Context;
 import android.net.Network;
+import android.support.annotation.Nullable;
 import com.android.voicemail.impl.imap.ImapHelper;
 import com.android.voicemail.impl.mail.MailTransport;
 import com.android.voicemail.impl.mail.Message;
@@ -39,6 +40,7 @@ public class ImapStore {
   private final String username;
   private final String password;
   private final MailTransport transport;
+  private final String connectionKey;
   private ImapConnection connection;
 
   public static final int FLAG_NONE = 0x00; // No flags
@@ -63,6 +65,19 @@ public class ImapStore {
     this.username = username;
     this.password = password;
     transport = new MailTransport(context, this.getImapHelper(), network, serverName, port, flags);
+    // The password is part of the key so that a changed password is checked by a new login.
+    connectionKey =
+        network
+            + "/"
+            + serverName
+            + ":"
+            + port
+            + "/"
+            + flags
+            + "/"
+            + username
+            + "/"
+            + (password == null ? 0 : password.hashCode());
   }
 
   public Context getContext() {
@@ -86,20 +101,59 @@ public class ImapStore {
     return transport.clone();
   }
 
-  /** Returns UIDs of Messages joined with "," as the separator. */
+  /**
+   * Returns the UIDs of {@code messages} as an IMAP sequence set. Runs of consecutive numeric UIDs
+   * are collapsed into ranges such as "3:17", which keeps bulk commands short.
+   */
   static String joinMessageUids(Message[] messages) {
     StringBuilder sb = new StringBuilder();
-    boolean notFirst = false;
+    long rangeStart = -1;
+    long rangeEnd = -1;
     for (Message m : messages) {
-      if (notFirst) {
-        sb.append(',');
+      long uid = parseUid(m.getUid());
+      if (uid >= 0 && rangeEnd >= 0 && uid == rangeEnd + 1) {
+        rangeEnd = uid;
+        continue;
+      }
+      appendRange(sb, rangeStart, rangeEnd);
+      if (uid >= 0) {
+        rangeStart = uid;
+        rangeEnd = uid;
+      } else {
+        rangeStart = -1;
+        rangeEnd = -1;
+        if (sb.length() > 0) {
+          sb.append(',');
+        }
+        sb.append(m.getUid());
       }
-      sb.append(m.getUid());
-      notFirst = true;
     }
+    appendRange(sb, rangeStart, rangeEnd);
     return sb.toString();
   }
 
+  private static void appendRange(StringBuilder sb, long rangeStart, long rangeEnd) {
+    if (rangeStart < 0) {
+      return;
+    }
+    if (sb.length() > 0) {
+      sb.append(',');
+    }
+    sb.append(rangeStart);
+    if (rangeEnd > rangeStart) {
+      sb.append(':').append(rangeEnd);
+    }
+  }
+
+  /** Returns the numeric value of {@code uid}, or -1 if it is not a plain number. */
+  private static long parseUid(String uid) {
+    try {
+      return Long.parseLong(uid);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
   static class ImapMessage extends MimeMessage {
     private ImapFolder folder;
 
@@ -166,6 +220,14 @@ public class ImapStore {
     }
   }
 
+  /**
+   * Identifies the server, account and network of this store. Connections are only reused between
+   * stores with the same key.
+   */
+  String getConnectionKey() {
+    return connectionKey;
+  }
+
   public void closeConnection() {
     if (connection != null) {
       connection.close();
@@ -173,9 +235,35 @@ public class ImapStore {
     }
   }
 
+  /**
+   * Keeps the connection open for {@code keepAliveMillis} so that the next store with the same
+   * server, account and network can reuse it, or closes it if it can't be kept, e.g. because a
+   * command on it failed or didn't complete.
+   *
+   * @param onNewMessages called on a background thread if the server reports new messages while the
+   *     connection is kept
+   */
+  public void releaseConnection(long keepAliveMillis, @Nullable Runnable onNewMessages) {
+    if (connection == null) {
+      return;
+    }
+    if (keepAliveMillis > 0 && ImapConnectionPool.canKeep(connection)) {
+      ImapConnectionPool.get()
+          .put(context, connectionKey, connection, keepAliveMillis, onNewMessages);
+    } else {
+      connection.close();
+    }
+    connection = null;
+  }
+
   public ImapConnection getConnection() {
     if (connection == null) {
-      connection = new ImapConnection(this);
+      connection = ImapConnectionPool.get().take(connectionKey);
+      if (connection != null) {
+        connection.setStore(this);
+      } else {
+        connection = new ImapConnection(this);
+      }
     }
     return connection;
   }
@@ -45,6 +45,7 @@ public final class ImapConstants {
   public static final String COPYUID = "COPYUID";
   public static final String CREATE = "CREATE";
   public static final String DELETE = "DELETE";
+  public static final String DONE = "DONE";
   public static final String EXAMINE = "EXAMINE";
   public static final String EXISTS = "EXISTS";
   public static final String EXPUNGE = "EXPUNGE";
@@ -57,6 +58,7 @@ public final class ImapConstants {
   public static final String FLAGS = "FLAGS";
   public static final String FLAGS_SILENT = "FLAGS.SILENT";
   public static final String ID = "ID";
+  public static final String IDLE = "IDLE";
   public static final String INBOX = "INBOX";
   public static final String INTERNALDATE = "INTERNALDATE";
   public static final String LIST = "LIST";
@@ -133,6 +135,8 @@ public final class ImapConstants {
 
   public static final String CAPABILITY_STARTTLS = "STARTTLS";
 
+  public static final String CAPABILITY_IDLE = "IDLE";
+
   /** authentication */
   public static final String AUTH_DIGEST_MD5 = "DIGEST-MD5";
 }
@@ -39,6 +39,11 @@ public class ImapResponse extends ImapList {
     return tag != null;
   }
 
+  /** @return the tag of the command this response completes, or null if it is untagged. */
+  public String getTag() {
+    return tag;
+  }
+
   /** @return whether it's a continuation request. */
   public boolean isContinuationRequest() {
     return isContinuationRequest;
@@ -20,9 +20,9 @@ import android.text.TextUtils;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.mail.FixedLengthInputStream;
 import com.android.voicemail.impl.mail.MessagingException;
-import com.android.voicemail.impl.mail.PeekableInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 /** IMAP response parser. */
@@ -32,8 +32,60 @@ public class ImapResponseParser {
   /** Literal larger than this will be stored in temp file. */
   public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
+  private static final int BUFFER_SIZE = 8 * 1024;
+
+  /**
+   * Atoms and quoted strings that show up in almost every response. They are shared between
+   * responses instead of being allocated for each occurrence.
+   */
+  private static final ImapSimpleString[] SHARED_STRINGS =
+      createSharedStrings(
+          ImapConstants.FETCH,
+          ImapConstants.UID,
+          ImapConstants.FLAGS,
+          ImapConstants.BODYSTRUCTURE,
+          ImapConstants.INTERNALDATE,
+          ImapConstants.RFC822_SIZE,
+          ImapConstants.OK,
+          ImapConstants.NO,
+          ImapConstants.BAD,
+          ImapConstants.EXISTS,
+          ImapConstants.EXPUNGE,
+          "RECENT",
+          "\\Seen",
+          "\\Deleted",
+          "\\Answered",
+          "\\Flagged",
+          "\\Recent",
+          "MULTIPART",
+          "MIXED",
+          "TEXT",
+          "PLAIN",
+          "AUDIO",
+          "AMR",
+          "CHARSET",
+          "US-ASCII",
+          "UTF-8",
+          "NAME",
+          "BOUNDARY",
+          "7BIT",
+          "8BIT",
+          "BASE64",
+          "ATTACHMENT",
+          "INLINE",
+          "FILENAME");
+
   /** Input stream */
-  private final PeekableInputStream in;
+  private final InputStream in;
+
+  /** Bytes read from {@link #in} but not parsed yet, from {@link #position} to {@link #limit}. */
+  private final byte[] buffer = new byte[BUFFER_SIZE];
+
+  private int position;
+  private int limit;
+
+  /** Reads literals, starting with what is left in {@link #buffer}. */
+  private final InputStream literalSource = new LiteralSource();
 
   private final int literalKeepInMemoryThreshold;
 
@@ -68,10 +120,18 @@ public class ImapResponseParser {
 
   /** Constructor for testing to override the literal size threshold. */
   /* package for test */ ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold) {
-    this.in = new PeekableInputStream(in);
+    this.in = in;
     this.literalKeepInMemoryThreshold = literalKeepInMemoryThreshold;
   }
 
+  private static ImapSimpleString[] createSharedStrings(String... strings) {
+    ImapSimpleString[] sharedStrings = new ImapSimpleString[strings.length];
+    for (int i = 0; i < strings.length; i++) {
+      sharedStrings[i] = ImapSimpleString.createShared(strings[i]);
+    }
+    return sharedStrings;
+  }
+
   private static IOException newEOSException() {
     final String message = "End of stream reached";
     VvmLog.d(TAG, message);
@@ -85,11 +145,21 @@ public class ImapResponseParser {
    * shouldn't see EOF during parsing.
    */
   private int peek() throws IOException {
-    final int next = in.peek();
-    if (next == -1) {
+    if (position == limit && !fill()) {
       throw newEOSException();
     }
-    return next;
+    return buffer[position] & 0xff;
+  }
+
+  /** Refills {@link #buffer} once everything in it was parsed. Returns false on EOF. */
+  private boolean fill() throws IOException {
+    int count = in.read(buffer, 0, buffer.length);
+    if (count <= 0) {
+      return false;
+    }
+    position = 0;
+    limit = count;
+    return true;
   }
 
   /**
@@ -99,11 +169,23 @@ public class ImapResponseParser {
    * shouldn't see EOF during parsing.
    */
   private int readByte() throws IOException {
-    int next = in.read();
-    if (next == -1) {
+    if (position == limit && !fill()) {
       throw newEOSException();
     }
-    return next;
+    return buffer[position++] & 0xff;
+  }
+
+  /**
+   * Returns a string of the {@code length} bytes at {@code start} in {@link #buffer}, shared if it
+   * is a common one.
+   */
+  private ImapSimpleString newString(int start, int length) {
+    for (ImapSimpleString sharedString : SHARED_STRINGS) {
+      if (sharedString.equalsAscii(buffer, start, length)) {
+        return sharedString;
+      }
+    }
+    return new ImapSimpleString(new String(buffer, start, length, StandardCharsets.ISO_8859_1));
   }
 
   /**
@@ -192,6 +274,14 @@ public class ImapResponseParser {
    * (rather than peeked) and won't be included in the result.
    */
   /* package for test */ String readUntil(char end) throws IOException {
+    // Most of the time the end is in the buffer already.
+    for (int i = position; i < limit; i++) {
+      if (buffer[i] == (byte) end) {
+        String result = new String(buffer, position, i - position, StandardCharsets.ISO_8859_1);
+        position = i + 1;
+        return result;
+      }
+    }
     bufferReadUntil.setLength(0);
     for (; ; ) {
       final int ch = readByte();
@@ -302,6 +392,13 @@ public class ImapResponseParser {
         return parseList('[', ']');
       case '"':
         readByte(); // Skip "
+        for (int i = position; i < limit; i++) {
+          if (buffer[i] == '"') {
+            ImapSimpleString string = newString(position, i - position);
+            position = i + 1;
+            return string;
+          }
+        }
         return new ImapSimpleString(readUntil('"'));
       case '{':
         return parseLiteral();
@@ -326,31 +423,30 @@ public class ImapResponseParser {
    * <p>If the value is "NIL", returns an empty string.
    */
   private ImapString parseBareString() throws IOException, MessagingException {
+    // Fast path for atoms that end in the buffer and contain no '[': no copying until the end.
+    for (int i = position; i < limit; i++) {
+      final int ch = buffer[i] & 0xff;
+      if (ch == '[') {
+        break;
+      }
+      if (isAtomEnd(ch)) {
+        if (i == position) {
+          break; // Let the slow path report the error.
+        }
+        final int start = position;
+        position = i;
+        if (isNil(start, i - start)) {
+          return ImapString.EMPTY;
+        }
+        return newString(start, i - start);
+      }
+    }
+
     parseBareString.setLength(0);
     for (; ; ) {
       final int ch = peek();
 
-      // TODO Can we clean this up?  (This condition is from the old parser.)
-      if (ch == '('
-          || ch == ')'
-          || ch == '{'
-          || ch == ' '
-          ||
-          // ']' is not part of atom (it's in resp-specials)
-          ch == ']'
-          ||
-          // docs claim that flags are \ atom but atom isn't supposed to
-          // contain
-          // * and some flags contain *
-          // ch == '%' || ch == '*' ||
-          ch == '%'
-          ||
-          // TODO probably should not allow \ and should recognize
-          // it as a flag instead
-          // ch == '"' || ch == '\' ||
-          ch == '"'
-          || (0x00 <= ch && ch <= 0x1f)
-          || ch == 0x7f) {
+      if (isAtomEnd(ch)) {
         if (parseBareString.length() == 0) {
           throw new MessagingException("Expected string, none found.");
         }
@@ -372,6 +468,39 @@ public class ImapResponseParser {
     }
   }
 
+  /** Returns whether {@code ch} ends an atom. */
+  private static boolean isAtomEnd(int ch) {
+    // TODO Can we clean this up?  (This condition is from the old parser.)
+    return ch == '('
+        || ch == ')'
+        || ch == '{'
+        || ch == ' '
+        ||
+        // ']' is not part of atom (it's in resp-specials)
+        ch == ']'
+        ||
+        // docs claim that flags are \ atom but atom isn't supposed to
+        // contain
+        // * and some flags contain *
+        // ch == '%' || ch == '*' ||
+        ch == '%'
+        ||
+        // TODO probably should not allow \ and should recognize
+        // it as a flag instead
+        // ch == '"' || ch == '\' ||
+        ch == '"'
+        || (0x00 <= ch && ch <= 0x1f)
+        || ch == 0x7f;
+  }
+
+  /** Returns whether the {@code length} bytes at {@code start} in {@link #buffer} are "NIL". */
+  private boolean isNil(int start, int length) {
+    return length == 3
+        && (buffer[start] | 0x20) == 'n'
+        && (buffer[start + 1] | 0x20) == 'i'
+        && (buffer[start + 2] | 0x20) == 'l';
+  }
+
   private void parseElements(ImapList list, char end) throws IOException, MessagingException {
     for (; ; ) {
       for (; ; ) {
@@ -414,11 +543,42 @@ public class ImapResponseParser {
     }
     expect('\r');
     expect('\n');
-    FixedLengthInputStream in = new FixedLengthInputStream(this.in, size);
+    FixedLengthInputStream in = new FixedLengthInputStream(literalSource, size);
     if (size > literalKeepInMemoryThreshold) {
       return new ImapTempFileLiteral(in);
     } else {
       return new ImapMemoryLiteral(in);
     }
   }
+
+  /** Reads what is left in {@link #buffer} first, then the underlying stream. */
+  private final class LiteralSource extends InputStream {
+    @Override
+    public int read() throws IOException {
+      if (position == limit && !fill()) {
+        return -1;
+      }
+      return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (position == limit) {
+        if (length >= buffer.length) {
+          // Large reads, e.g. of the voicemail audio, skip the buffer.
+          return in.read(b, offset, length);
+        }
+        if (!fill()) {
+          return -1;
+        }
+      }
+      int count = Math.min(length, limit - position);
+      System.arraycopy(buffer, position, b, offset, count);
+      position += count;
+      return count;
+    }
+  }
 }
@@ -30,6 +30,32 @@ public class ImapSimpleString extends ImapString {
     this.string = (string != null) ? string : "";
   }
 
+  /**
+   * Returns a string that is shared between responses, e.g. a common atom. It is never destroyed.
+   */
+  /* package */ static ImapSimpleString createShared(String string) {
+    return new ImapSimpleString(string) {
+      @Override
+      public void destroy() {
+        // Don't call super.destroy().
+        // It's a shared object.  We don't want the mDestroyed to be set on this.
+      }
+    };
+  }
+
+  /** Returns whether the string equals the {@code length} ASCII bytes at {@code offset}. */
+  /* package */ boolean equalsAscii(byte[] bytes, int offset, int length) {
+    if (string.length() != length) {
+      return false;
+    }
+    for (int i = 0; i < length; i++) {
+      if (string.charAt(i) != bytes[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
   @Override
   public void destroy() {
     string = null;
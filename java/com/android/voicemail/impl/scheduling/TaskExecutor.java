@@ -29,11 +29,17 @@ import android.support.annotation.MainThread;
 import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
+import android.telecom.PhoneAccountHandle;
+import android.util.ArrayMap;
+import android.util.ArraySet;
 import com.android.voicemail.impl.Assert;
 import com.android.voicemail.impl.NeededForTesting;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.scheduling.TaskQueue.NextTask;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * A singleton to queue and run {@link Task} with the {@link android.app.job.JobScheduler}. A task
@@ -52,7 +58,10 @@ import java.util.List;
  * new task will be pushed into the queue of the scheduled job. If the job is already running, the
  * job will be queued in process memory.
  *
- * <p>Only one task will be ran at a time, and same task cannot exist in the queue at the same time.
+ * <p>Tasks are ran in one lane per {@link android.telecom.PhoneAccountHandle}: only one task of a
+ * phone account will be ran at a time, in the order of {@link TaskQueue}, but tasks of different
+ * phone accounts can run at the same time, up to {@link #MAX_CONCURRENT_TASKS}. This way a slow sync
+ * of one SIM does not hold up the other. Same task cannot exist in the queue at the same time.
  * Refer to {@link TaskQueue} for queuing and execution order.
  *
  * <p>If there are still tasks in the queue but none are executable immediately, the service will
@@ -116,8 +125,14 @@ final class TaskExecutor {
   /** Interval between polling of whether the job is finished. */
   private static final int TERMINATE_POLLING_INTERVAL_MILLISECONDS = 1_000;
 
-  // The thread to run tasks on
-  private final WorkerThreadHandler workerThreadHandler;
+  /** Maximum number of tasks running at the same time, each for a different phone account. */
+  private static final int MAX_CONCURRENT_TASKS = 2;
+
+  // The threads to run tasks on
+  private final List<WorkerThreadHandler> workerThreadHandlers = new ArrayList<>();
+
+  /** The threads in {@link #workerThreadHandlers} that are not running a task. */
+  private final ArrayDeque<WorkerThreadHandler> idleWorkerThreadHandlers = new ArrayDeque<>();
 
   private static TaskExecutor instance;
 
@@ -134,12 +149,22 @@ final class TaskExecutor {
   /** Main thread only, access through {@link #getTasks()} */
   private final TaskQueue tasks = new TaskQueue();
 
-  private boolean isWorkerThreadBusy = false;
+  /** The tasks running in the background, and the thread running each. Main thread only. */
+  private final ArrayMap<Task, WorkerThreadHandler> runningTasks = new ArrayMap<>();
 
   private boolean isTerminating = false;
 
   private Job job;
 
+  private final Runnable maybeRunNextTask =
+      new Runnable() {
+        @MainThread
+        @Override
+        public void run() {
+          maybeRunNextTask();
+        }
+      };
+
   private final Runnable stopServiceWithDelay =
       new Runnable() {
         @MainThread
@@ -233,7 +258,7 @@ final class TaskExecutor {
       Task task = (Task) msg.obj;
       getTasks().remove(task);
       task.onCompleted();
-      isWorkerThreadBusy = false;
+      idleWorkerThreadHandlers.add(runningTasks.remove(task));
       if (!isJobRunning() || isTerminating()) {
         // TaskExecutor was terminated when the task is running in background, don't need to run the
         // next task or terminate again
@@ -260,10 +285,6 @@ final class TaskExecutor {
 
   private TaskExecutor(Context context) {
     this.appContext = context.getApplicationContext();
-    HandlerThread thread = new HandlerThread("VvmTaskExecutor");
-    thread.start();
-
-    workerThreadHandler = new WorkerThreadHandler(thread.getLooper());
     mainThreadHandler = new MainThreadHandler(Looper.getMainLooper());
   }
 
@@ -272,7 +293,9 @@ final class TaskExecutor {
     VvmLog.i(TAG, "terminated");
     Assert.isMainThread();
     job = null;
-    workerThreadHandler.getLooper().quit();
+    for (WorkerThreadHandler workerThreadHandler : workerThreadHandlers) {
+      workerThreadHandler.getLooper().quit();
+    }
     instance = null;
     TaskReceiver.resendDeferredBroadcasts(appContext);
   }
@@ -297,7 +320,7 @@ final class TaskExecutor {
   private void maybeRunNextTask() {
     Assert.isMainThread();
 
-    if (isWorkerThreadBusy) {
+    if (runningTasks.size() >= MAX_CONCURRENT_TASKS) {
       return;
     }
     if (taskAutoRunDisabledForTesting) {
@@ -317,17 +340,26 @@ final class TaskExecutor {
       prepareStop();
       return;
     }
-    NextTask nextTask = getTasks().getNextTask(READY_TOLERANCE_MILLISECONDS);
+    NextTask nextTask = getTasks().getNextTask(READY_TOLERANCE_MILLISECONDS, getBusyLanes());
 
     if (nextTask.task != null) {
-      nextTask.task.onBeforeExecute();
-      Message message = workerThreadHandler.obtainMessage();
-      message.obj = nextTask.task;
-      isWorkerThreadBusy = true;
-      messageSender.send(message);
+      runTask(nextTask.task);
+      // Another phone account might have a task ready as well.
+      maybeRunNextTask();
       return;
     }
     VvmLog.i(TAG, "minimal wait time:" + nextTask.minimalWaitTimeMillis);
+    if (!runningTasks.isEmpty()) {
+      // The next task will be picked when a running task completes. Only wake up before that if a
+      // task of an idle phone account will be ready soon.
+      if (!taskAutoRunDisabledForTesting
+          && nextTask.minimalWaitTimeMillis != null
+          && nextTask.minimalWaitTimeMillis < SHORT_SLEEP_THRESHOLD_MILLISECONDS) {
+        mainThreadHandler.removeCallbacks(maybeRunNextTask);
+        mainThreadHandler.postDelayed(maybeRunNextTask, nextTask.minimalWaitTimeMillis);
+      }
+      return;
+    }
     if (!taskAutoRunDisabledForTesting && nextTask.minimalWaitTimeMillis != null) {
       // No tasks are currently ready. Sleep until the next one should be.
       // If a new task is added during the sleep the service will wake immediately.
@@ -335,6 +367,41 @@ final class TaskExecutor {
     }
   }
 
+  @MainThread
+  private void runTask(Task task) {
+    PhoneAccountHandle lane = task.getId().phoneAccountHandle;
+    VvmLog.i(
+        TAG,
+        "lane "
+            + lane
+            + " waited "
+            + Math.max(0, -task.getReadyInMilliSeconds())
+            + " millis to run "
+            + task);
+    task.onBeforeExecute();
+    WorkerThreadHandler workerThreadHandler = idleWorkerThreadHandlers.poll();
+    if (workerThreadHandler == null) {
+      HandlerThread thread = new HandlerThread("VvmTaskExecutor");
+      thread.start();
+      workerThreadHandler = new WorkerThreadHandler(thread.getLooper());
+      workerThreadHandlers.add(workerThreadHandler);
+    }
+    runningTasks.put(task, workerThreadHandler);
+    Message message = workerThreadHandler.obtainMessage();
+    message.obj = task;
+    messageSender.send(message);
+  }
+
+  /** Returns the phone accounts that have a task running. */
+  @MainThread
+  private Set<PhoneAccountHandle> getBusyLanes() {
+    Set<PhoneAccountHandle> busyLanes = new ArraySet<>();
+    for (int i = 0; i < runningTasks.size(); i++) {
+      busyLanes.add(runningTasks.keyAt(i).getId().phoneAccountHandle);
+    }
+    return busyLanes;
+  }
+
   @MainThread
   private void sleep(long timeMillis) {
     VvmLog.i(TAG, "sleep for " + timeMillis + " millis");
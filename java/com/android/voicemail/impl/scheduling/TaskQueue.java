@@ -20,24 +20,38 @@ import android.content.Context;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.telecom.PhoneAccountHandle;
 import com.android.voicemail.impl.Assert;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.scheduling.Task.TaskId;
 import com.android.voicemail.impl.scheduling.Tasks.TaskCreationException;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
 
 /**
  * A queue that manages priority and duplication of {@link Task}. A task is identified by a {@link
  * TaskId}, which consists of an integer representing the operation the task, and a {@link
  * android.telecom.PhoneAccountHandle} representing which SIM it is operated on.
+ *
+ * <p>Tasks are indexed by {@link TaskId}, so adding, looking up and removing a task does not scan
+ * the queue.
  */
 class TaskQueue implements Iterable<Task> {
 
-  private final Queue<Task> queue = new ArrayDeque<>();
+  /** The tasks in insertion order. */
+  private final LinkedHashSet<Task> queue = new LinkedHashSet<>();
+
+  /**
+   * The tasks in {@link #queue} by ID, except the ones with {@link Task#TASK_ALLOW_DUPLICATES}
+   * which are never looked up.
+   */
+  private final Map<TaskId, Task> tasksById = new HashMap<>();
 
   public List<Bundle> toBundles() {
     List<Bundle> result = new ArrayList<>(queue.size());
@@ -80,21 +94,21 @@ class TaskQueue implements Iterable<Task> {
       }
     }
     queue.add(task);
+    if (task.getId().id != Task.TASK_ALLOW_DUPLICATES) {
+      tasksById.put(task.getId(), task);
+    }
     return true;
   }
 
   public void remove(Task task) {
-    queue.remove(task);
+    if (queue.remove(task) && tasksById.get(task.getId()) == task) {
+      tasksById.remove(task.getId());
+    }
   }
 
   public Task getTask(TaskId id) {
     Assert.isMainThread();
-    for (Task task : queue) {
-      if (task.getId().equals(id)) {
-        return task;
-      }
-    }
-    return null;
+    return tasksById.get(id);
   }
 
   /**
@@ -121,8 +135,21 @@ class TaskQueue implements Iterable<Task> {
    */
   @NonNull
   NextTask getNextTask(long readyToleranceMillis) {
+    return getNextTask(readyToleranceMillis, Collections.emptySet());
+  }
+
+  /**
+   * Same as {@link #getNextTask(long)}, but ignores the tasks of the phone accounts in {@code
+   * busyPhoneAccountHandles}, which already have a task running.
+   */
+  @NonNull
+  NextTask getNextTask(
+      long readyToleranceMillis, Collection<PhoneAccountHandle> busyPhoneAccountHandles) {
     Long minimalWaitTime = null;
     for (Task task : queue) {
+      if (busyPhoneAccountHandles.contains(task.getId().phoneAccountHandle)) {
+        continue;
+      }
       long waitTime = task.getReadyInMilliSeconds();
       if (waitTime < readyToleranceMillis) {
         return new NextTask(task, 0L);
@@ -137,6 +164,7 @@ class TaskQueue implements Iterable<Task> {
 
   public void clear() {
     queue.clear();
+    tasksById.clear();
   }
 
   public int size() {
@@ -149,6 +177,7 @@ class TaskQueue implements Iterable<Task> {
 
   @Override
   public Iterator<Task> iterator() {
-    return queue.iterator();
+    // Removing through the iterator would leave the task in tasksById.
+    return Collections.unmodifiableSet(queue).iterator();
   }
 }
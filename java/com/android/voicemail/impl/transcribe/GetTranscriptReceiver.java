@@ -23,10 +23,11 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.SystemClock;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
 import android.telecom.PhoneAccountHandle;
 import android.util.Pair;
 import com.android.dialer.common.Assert;
-import com.android.dialer.common.backoff.ExponentialBaseCalculator;
+import com.android.dialer.common.backoff.ExponentialBackoff;
 import com.android.dialer.common.concurrent.DialerExecutor.Worker;
 import com.android.dialer.common.concurrent.DialerExecutorComponent;
 import com.android.dialer.common.concurrent.ThreadUtil;
@@ -42,8 +43,8 @@ import java.util.List;
 
 /**
  * This class uses the AlarmManager to poll for the result of a voicemail transcription request.
- * Initially it waits for the estimated transcription time, and if the result is not available then
- * it polls using an exponential backoff scheme.
+ * Initially it waits for the transcription time estimated by {@link TranscriptionPollScheduler},
+ * and if the result is not available then it polls using an exponential backoff scheme.
  */
 public class GetTranscriptReceiver extends BroadcastReceiver {
   private static final String TAG = "GetTranscriptReceiver";
@@ -54,6 +55,10 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
   static final String EXTRA_BASE_MULTIPLIER = "extra_base_multiplier";
   static final String EXTRA_REMAINING_ATTEMPTS = "extra_remaining_attempts";
   static final String EXTRA_PHONE_ACCOUNT = "extra_phone_account";
+  static final String EXTRA_AUDIO_DURATION_MILLIS = "extra_audio_duration_millis";
+  static final String EXTRA_UPLOAD_TIME_MILLIS = "extra_upload_time_millis";
+  static final String EXTRA_POLL_COUNT = "extra_poll_count";
+  static final String EXTRA_LAST_PENDING_POLL_MILLIS = "extra_last_pending_poll_millis";
   static final String POLL_ALARM_ACTION =
       "com.android.voicemail.impl.transcribe.GetTranscriptReceiver.POLL_ALARM";
 
@@ -62,33 +67,34 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
       Context context,
       Uri voicemailUri,
       String transcriptId,
+      long audioDurationMillis,
       long estimatedTranscriptionTimeMillis,
       TranscriptionConfigProvider configProvider,
       PhoneAccountHandle account) {
     Assert.checkState(!hasPendingAlarm(context));
-    long initialDelayMillis = configProvider.getInitialGetTranscriptPollDelayMillis();
-    long maxBackoffMillis = configProvider.getMaxGetTranscriptPollTimeMillis();
-    int maxAttempts = configProvider.getMaxGetTranscriptPolls();
-    double baseMultiplier =
-        ExponentialBaseCalculator.findBase(initialDelayMillis, maxBackoffMillis, maxAttempts);
+    TranscriptionPollScheduler scheduler = new TranscriptionPollScheduler(context, configProvider);
+    long firstDelayMillis =
+        scheduler.getFirstPollDelayMillis(audioDurationMillis, estimatedTranscriptionTimeMillis);
+    ExponentialBackoff backoff = scheduler.newBackoff(firstDelayMillis);
     Intent intent =
         makeAlarmIntent(
             context,
             voicemailUri,
             transcriptId,
-            initialDelayMillis,
-            baseMultiplier,
-            maxAttempts,
+            backoff.initialDelayMillis,
+            backoff.baseMultiplier,
+            backoff.maximumBackoffs,
             account);
     // Add an extra to distinguish this initial estimated transcription wait from subsequent backoff
     // waits
     intent.putExtra(EXTRA_IS_INITIAL_ESTIMATED_WAIT, true);
+    intent.putExtra(EXTRA_AUDIO_DURATION_MILLIS, audioDurationMillis);
+    intent.putExtra(EXTRA_UPLOAD_TIME_MILLIS, SystemClock.elapsedRealtime());
     VvmLog.i(
         TAG,
         String.format(
-            "beginPolling, check in %d millis, for: %s",
-            estimatedTranscriptionTimeMillis, transcriptId));
-    scheduleAlarm(context, estimatedTranscriptionTimeMillis, intent);
+            "beginPolling, check in %d millis, for: %s", firstDelayMillis, transcriptId));
+    scheduleAlarm(context, firstDelayMillis, intent);
   }
 
   static boolean hasPendingAlarm(Context context) {
@@ -171,11 +177,46 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
     return PendingIntent.getBroadcast(context.getApplicationContext(), 0, intent, flags);
   }
 
+  /**
+   * Asks the server once for the result of {@code transcriptId}.
+   *
+   * @return the transcript, or the status if the transcription failed, or neither if it is still
+   *     in progress
+   */
+  @WorkerThread
+  static Pair<String, TranscriptionStatus> pollForTranscription(
+      Context context, TranscriptionClient client, String transcriptId) {
+    VvmLog.i(TAG, "pollForTranscription, transcript id: " + transcriptId);
+    GetTranscriptRequest request = getGetTranscriptRequest(transcriptId);
+    Logger.get(context).logImpression(DialerImpression.Type.VVM_TRANSCRIPTION_POLL_REQUEST);
+    GetTranscriptResponseAsync response = client.sendGetTranscriptRequest(request);
+    if (response == null) {
+      VvmLog.i(TAG, "pollForTranscription, no transcription result.");
+      return new Pair<>(null, null);
+    } else if (response.isTranscribing()) {
+      VvmLog.i(TAG, "pollForTranscription, transcribing");
+      return new Pair<>(null, null);
+    } else if (response.hasFatalError()) {
+      VvmLog.i(TAG, "pollForTranscription, fail. " + response.getErrorDescription());
+      return new Pair<>(null, response.getTranscriptionStatus());
+    } else {
+      VvmLog.i(TAG, "pollForTranscription, got transcription");
+      return new Pair<>(response.getTranscript(), TranscriptionStatus.SUCCESS);
+    }
+  }
+
+  private static GetTranscriptRequest getGetTranscriptRequest(String transcriptionId) {
+    Assert.checkArgument(transcriptionId != null);
+    return GetTranscriptRequest.newBuilder().setTranscriptionId(transcriptionId).build();
+  }
+
   private static class PollWorker implements Worker<Intent, Void> {
     private final Context context;
+    private final TranscriptionConfigProvider configProvider;
 
     PollWorker(Context context) {
       this.context = context;
+      this.configProvider = new TranscriptionConfigProvider(context);
     }
 
     @Override
@@ -183,13 +224,27 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
       String transcriptId = intent.getStringExtra(EXTRA_TRANSCRIPT_ID);
       VvmLog.i(TAG, "doInBackground, for transcript id: " + transcriptId);
       Pair<String, TranscriptionStatus> result = pollForTranscription(transcriptId);
+      int polls = intent.getIntExtra(EXTRA_POLL_COUNT, 0) + 1;
+      long pollMillis =
+          SystemClock.elapsedRealtime() - intent.getLongExtra(EXTRA_UPLOAD_TIME_MILLIS, 0);
+      long audioDurationMillis = intent.getLongExtra(EXTRA_AUDIO_DURATION_MILLIS, 0);
+      long lastPendingPollMillis = intent.getLongExtra(EXTRA_LAST_PENDING_POLL_MILLIS, 0);
+      TranscriptionPollScheduler scheduler =
+          new TranscriptionPollScheduler(context, configProvider);
       if (result.first == null && result.second == null) {
         // No result, try again if possible
         Intent nextIntent = getNextAlarmIntent(intent);
         if (nextIntent == null) {
           VvmLog.i(TAG, "doInBackground, too many failures for: " + transcriptId);
           result = new Pair<>(null, TranscriptionStatus.FAILED_NO_RETRY);
+          scheduler.onTranscriptionDone(
+              transcriptId, false, audioDurationMillis, pollMillis, pollMillis, polls);
         } else {
+          nextIntent.putExtra(EXTRA_AUDIO_DURATION_MILLIS, audioDurationMillis);
+          nextIntent.putExtra(
+              EXTRA_UPLOAD_TIME_MILLIS, intent.getLongExtra(EXTRA_UPLOAD_TIME_MILLIS, 0));
+          nextIntent.putExtra(EXTRA_POLL_COUNT, polls);
+          nextIntent.putExtra(EXTRA_LAST_PENDING_POLL_MILLIS, pollMillis);
           long nextDelayMillis = nextIntent.getLongExtra(EXTRA_DELAY_MILLIS, 0L);
           VvmLog.i(
               TAG,
@@ -198,6 +253,14 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
           scheduleAlarm(context, nextDelayMillis, nextIntent);
           return null;
         }
+      } else {
+        scheduler.onTranscriptionDone(
+            transcriptId,
+            result.first != null,
+            audioDurationMillis,
+            lastPendingPollMillis,
+            pollMillis,
+            polls);
       }
 
       // Got transcript or failed too many times
@@ -232,27 +295,11 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
     }
 
     private Pair<String, TranscriptionStatus> pollForTranscription(String transcriptId) {
-      VvmLog.i(TAG, "pollForTranscription, transcript id: " + transcriptId);
-      GetTranscriptRequest request = getGetTranscriptRequest(transcriptId);
       TranscriptionClientFactory factory = null;
       try {
-        factory = getTranscriptionClientFactory(context);
-        TranscriptionClient client = factory.getClient();
-        Logger.get(context).logImpression(DialerImpression.Type.VVM_TRANSCRIPTION_POLL_REQUEST);
-        GetTranscriptResponseAsync response = client.sendGetTranscriptRequest(request);
-        if (response == null) {
-          VvmLog.i(TAG, "pollForTranscription, no transcription result.");
-          return new Pair<>(null, null);
-        } else if (response.isTranscribing()) {
-          VvmLog.i(TAG, "pollForTranscription, transcribing");
-          return new Pair<>(null, null);
-        } else if (response.hasFatalError()) {
-          VvmLog.i(TAG, "pollForTranscription, fail. " + response.getErrorDescription());
-          return new Pair<>(null, response.getTranscriptionStatus());
-        } else {
-          VvmLog.i(TAG, "pollForTranscription, got transcription");
-          return new Pair<>(response.getTranscript(), TranscriptionStatus.SUCCESS);
-        }
+        factory = getTranscriptionClientFactory(context, configProvider);
+        return GetTranscriptReceiver.pollForTranscription(
+            context, factory.getClient(), transcriptId);
       } finally {
         if (factory != null) {
           factory.shutdown();
@@ -260,11 +307,6 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
       }
     }
 
-    private GetTranscriptRequest getGetTranscriptRequest(String transcriptionId) {
-      Assert.checkArgument(transcriptionId != null);
-      return GetTranscriptRequest.newBuilder().setTranscriptionId(transcriptionId).build();
-    }
-
     private @Nullable Intent getNextAlarmIntent(Intent previous) {
       int remainingAttempts = previous.getIntExtra(EXTRA_REMAINING_ATTEMPTS, 0);
       double baseMultiplier = previous.getDoubleExtra(EXTRA_BASE_MULTIPLIER, 0);
@@ -295,10 +337,11 @@ public class GetTranscriptReceiver extends BroadcastReceiver {
     transcriptionClientFactoryForTesting = factory;
   }
 
-  static TranscriptionClientFactory getTranscriptionClientFactory(Context context) {
+  static TranscriptionClientFactory getTranscriptionClientFactory(
+      Context context, TranscriptionConfigProvider configProvider) {
     if (transcriptionClientFactoryForTesting != null) {
       return transcriptionClientFactoryForTesting;
     }
-    return new TranscriptionClientFactory(context, new TranscriptionConfigProvider(context));
+    return new TranscriptionClientFactory(context, configProvider);
   }
 }
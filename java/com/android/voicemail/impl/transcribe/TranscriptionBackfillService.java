@@ -76,13 +76,13 @@ public class TranscriptionBackfillService extends JobIntentService {
     LogUtil.i(
         "TranscriptionBackfillService.onHandleWork",
         "found " + untranscribed.size() + " untranscribed voicemails");
-    // TODO(mdooley): Consider doing the actual transcriptions here instead of scheduling jobs.
-    for (Uri uri : untranscribed) {
-      ThreadUtil.postOnUiThread(
-          () -> {
-            TranscriptionService.scheduleNewVoicemailTranscriptionJob(this, uri, account, false);
-          });
+    if (untranscribed.isEmpty()) {
+      return;
     }
+    ThreadUtil.postOnUiThread(
+        () -> {
+          TranscriptionService.scheduleBatchTranscriptionJob(this, untranscribed, account);
+        });
   }
 
   @Override
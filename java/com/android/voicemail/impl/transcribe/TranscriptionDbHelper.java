@@ -16,14 +16,20 @@
 package com.android.voicemail.impl.transcribe;
 
 import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Build;
+import android.os.RemoteException;
+import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Voicemails;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.util.Pair;
@@ -32,6 +38,7 @@ import com.android.dialer.common.LogUtil;
 import com.android.dialer.compat.android.provider.VoicemailCompat;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /** Helper class for reading and writing transcription data in the database */
 @TargetApi(Build.VERSION_CODES.O)
@@ -50,11 +57,21 @@ public class TranscriptionDbHelper {
 
   private final ContentResolver contentResolver;
   private final Uri uri;
+  @Nullable private final UpdateBatch updateBatch;
 
   TranscriptionDbHelper(Context context, Uri uri) {
+    this(context, uri, null);
+  }
+
+  /**
+   * @param updateBatch if not null, updates are added to this batch instead of being written right
+   *     away
+   */
+  TranscriptionDbHelper(Context context, Uri uri, @Nullable UpdateBatch updateBatch) {
     Assert.isNotNull(uri);
     this.contentResolver = context.getContentResolver();
     this.uri = uri;
+    this.updateBatch = updateBatch;
   }
 
   TranscriptionDbHelper(Context context) {
@@ -81,6 +98,20 @@ public class TranscriptionDbHelper {
     return null;
   }
 
+  /** Returns the length of the voicemail, or 0 if it is unknown. */
+  @WorkerThread
+  long getDurationMillis() {
+    Assert.isWorkerThread();
+    try (Cursor cursor =
+        contentResolver.query(uri, new String[] {Voicemails.DURATION}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return TimeUnit.SECONDS.toMillis(cursor.getLong(0));
+      }
+    }
+    LogUtil.i("TranscriptionDbHelper.getDurationMillis", "query returned no results");
+    return 0;
+  }
+
   @WorkerThread
   List<Uri> getUntranscribedVoicemails() {
     Assert.checkState(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
@@ -151,6 +182,10 @@ public class TranscriptionDbHelper {
   }
 
   private void updateDatabase(ContentValues values) {
+    if (updateBatch != null) {
+      updateBatch.add(uri, values);
+      return;
+    }
     int updatedCount = contentResolver.update(uri, values, null, null);
     if (updatedCount != 1) {
       LogUtil.e(
@@ -158,4 +193,54 @@ public class TranscriptionDbHelper {
           "Wrong row count, should have updated 1 row, was: " + updatedCount);
     }
   }
+
+  /**
+   * Updates of several voicemails that are written together with {@link #apply()}, so that
+   * transcribing many voicemails doesn't take one provider transaction per result.
+   */
+  static final class UpdateBatch {
+    private final ContentResolver contentResolver;
+
+    /** Guarded by this. */
+    private final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+
+    UpdateBatch(Context context) {
+      contentResolver = context.getContentResolver();
+    }
+
+    synchronized void add(Uri uri, ContentValues values) {
+      operations.add(ContentProviderOperation.newUpdate(uri).withValues(values).build());
+    }
+
+    synchronized int size() {
+      return operations.size();
+    }
+
+    /** Writes all updates added so far. */
+    @WorkerThread
+    void apply() {
+      Assert.isWorkerThread();
+      ArrayList<ContentProviderOperation> pending;
+      synchronized (this) {
+        if (operations.isEmpty()) {
+          return;
+        }
+        pending = new ArrayList<>(operations);
+        operations.clear();
+      }
+      LogUtil.i("TranscriptionDbHelper.UpdateBatch.apply", "applying " + pending.size());
+      try {
+        for (ContentProviderResult result :
+            contentResolver.applyBatch(VoicemailContract.AUTHORITY, pending)) {
+          if (result.count == null || result.count != 1) {
+            LogUtil.e(
+                "TranscriptionDbHelper.UpdateBatch.apply",
+                "Wrong row count, should have updated 1 row, was: " + result.count);
+          }
+        }
+      } catch (RemoteException | OperationApplicationException e) {
+        LogUtil.e("TranscriptionDbHelper.UpdateBatch.apply", "failed to apply updates", e);
+      }
+    }
+  }
 }
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.voicemail.impl.transcribe;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import com.android.dialer.common.backoff.ExponentialBackoff;
+import com.android.dialer.common.backoff.ExponentialBaseCalculator;
+import com.android.voicemail.impl.VvmLog;
+import java.util.Locale;
+
+/**
+ * Decides when to poll for the result of an asynchronous transcription.
+ *
+ * <p>The first poll is timed from the length of the voicemail and how long the server recently took
+ * per second of audio, capped by the server's own estimate. The polls after that back off
+ * exponentially from a delay proportional to the first one, so short voicemails are checked again
+ * soon and long ones don't use up their polls early.
+ */
+final class TranscriptionPollScheduler {
+  private static final String TAG = "TranscriptionPollScheduler";
+
+  private static final String PREF_MILLIS_PER_AUDIO_SECOND =
+      "transcription_poll_scheduler_millis_per_audio_second";
+
+  /** Used until a transcription completed: about as long as the audio itself. */
+  private static final float DEFAULT_MILLIS_PER_AUDIO_SECOND = 1000;
+
+  /** Weight of the latest transcription in the learned server speed. */
+  private static final float SPEED_SMOOTHING_FACTOR = 0.3f;
+
+  /**
+   * Applied to the time of the first poll when it already got the result. The transcript may have
+   * been ready long before, so the estimate keeps decreasing until a first poll comes too early.
+   */
+  private static final float FIRST_POLL_RESULT_FACTOR = 0.75f;
+
+  /** The polls after the first one start at this fraction of the first delay. */
+  private static final int BACKOFF_FRACTION_OF_FIRST_DELAY = 8;
+
+  private static final long MIN_POLL_DELAY_MILLIS = 1000;
+
+  private final Context context;
+  private final TranscriptionConfigProvider configProvider;
+
+  TranscriptionPollScheduler(Context context, TranscriptionConfigProvider configProvider) {
+    this.context = context;
+    this.configProvider = configProvider;
+  }
+
+  /**
+   * Returns how long to wait after the upload before polling the first time.
+   *
+   * @param audioDurationMillis the length of the voicemail, or 0 if unknown
+   * @param serverEstimateMillis the wait estimated by the server, or 0 if there is none
+   */
+  long getFirstPollDelayMillis(long audioDurationMillis, long serverEstimateMillis) {
+    long delayMillis = serverEstimateMillis;
+    if (audioDurationMillis > 0) {
+      long estimateMillis = (long) (audioDurationMillis * getMillisPerAudioSecond() / 1000);
+      // Polling early costs a request, polling late delays the transcript.
+      delayMillis =
+          serverEstimateMillis > 0
+              ? Math.min(estimateMillis, serverEstimateMillis)
+              : estimateMillis;
+    }
+    return Math.min(
+        Math.max(delayMillis, MIN_POLL_DELAY_MILLIS),
+        configProvider.getMaxGetTranscriptPollTimeMillis());
+  }
+
+  /** Returns the delays between the polls after the first one. */
+  ExponentialBackoff newBackoff(long firstPollDelayMillis) {
+    long initialDelayMillis =
+        Math.max(
+            configProvider.getInitialGetTranscriptPollDelayMillis(),
+            firstPollDelayMillis / BACKOFF_FRACTION_OF_FIRST_DELAY);
+    int maxPolls = configProvider.getMaxGetTranscriptPolls();
+    double baseMultiplier =
+        ExponentialBaseCalculator.findBase(
+            initialDelayMillis, configProvider.getMaxGetTranscriptPollTimeMillis(), maxPolls);
+    return new ExponentialBackoff(initialDelayMillis, baseMultiplier, maxPolls);
+  }
+
+  /**
+   * Records how a transcription went and learns the server's speed from it.
+   *
+   * @param lastPendingPollMillis the time from the upload to the last poll that found the
+   *     transcription still in progress, or 0 if the first poll got the result
+   * @param resultMillis the time from the upload to the poll that got the result
+   */
+  void onTranscriptionDone(
+      String transcriptId,
+      boolean success,
+      long audioDurationMillis,
+      long lastPendingPollMillis,
+      long resultMillis,
+      int polls) {
+    VvmLog.i(
+        TAG,
+        String.format(
+            Locale.US,
+            "onTranscriptionDone, id: %s, success: %b, audio: %d ms, time to result: %d ms,"
+                + " polls: %d",
+            transcriptId,
+            success,
+            audioDurationMillis,
+            resultMillis,
+            polls));
+    if (!success || audioDurationMillis <= 0) {
+      return;
+    }
+    // The transcript was ready somewhere between the last two polls. Without an earlier poll all
+    // that is known is that it took at most until the first one, which was timed from the current
+    // estimate. Sampling that time as is would never let the estimate go down again.
+    float resultAfterMillis =
+        lastPendingPollMillis > 0
+            ? (lastPendingPollMillis + resultMillis) / 2f
+            : resultMillis * FIRST_POLL_RESULT_FACTOR;
+    float sample = resultAfterMillis * 1000 / audioDurationMillis;
+    synchronized (TranscriptionPollScheduler.class) {
+      SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+      float current = prefs.getFloat(PREF_MILLIS_PER_AUDIO_SECOND, -1);
+      float updated = current < 0 ? sample : current + SPEED_SMOOTHING_FACTOR * (sample - current);
+      prefs.edit().putFloat(PREF_MILLIS_PER_AUDIO_SECOND, updated).apply();
+    }
+  }
+
+  private float getMillisPerAudioSecond() {
+    float millis =
+        PreferenceManager.getDefaultSharedPreferences(context)
+            .getFloat(PREF_MILLIS_PER_AUDIO_SECOND, -1);
+    return millis < 0 ? DEFAULT_MILLIS_PER_AUDIO_SECOND : millis;
+  }
+}
@@ -29,8 +29,11 @@ import android.support.annotation.MainThread;
 import android.support.annotation.VisibleForTesting;
 import android.telecom.PhoneAccountHandle;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.common.concurrent.ThreadUtil;
 import com.android.dialer.constants.ScheduledJobIds;
 import com.android.dialer.logging.DialerImpression;
 import com.android.dialer.logging.Logger;
@@ -38,6 +41,9 @@ import com.android.voicemail.CarrierConfigKeys;
 import com.android.voicemail.VoicemailClient;
 import com.android.voicemail.VoicemailComponent;
 import com.android.voicemail.impl.transcribe.grpc.TranscriptionClientFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -49,12 +55,32 @@ import java.util.concurrent.Executors;
 public class TranscriptionService extends JobService {
   @VisibleForTesting static final String EXTRA_VOICEMAIL_URI = "extra_voicemail_uri";
   @VisibleForTesting static final String EXTRA_ACCOUNT_HANDLE = "extra_account_handle";
+  @VisibleForTesting static final String EXTRA_BATCHED = "extra_batched";
+
+  /** The maximum number of tasks transcribing at the same time. */
+  private static final int MAX_CONCURRENT_TASKS = 3;
+
+  /** The number of batched results to collect before writing them. */
+  private static final int UPDATE_BATCH_SIZE = 10;
 
   private ExecutorService executorService;
   private JobParameters jobParameters;
   private TranscriptionClientFactory clientFactory;
   private TranscriptionConfigProvider configProvider;
-  private TranscriptionTask activeTask;
+  private final ArrayMap<JobWorkItem, TranscriptionTask> activeTasks = new ArrayMap<>();
+
+  /**
+   * Work items that hand their polling to the single {@link GetTranscriptReceiver} alarm, waiting
+   * for the one doing so to finish.
+   */
+  private final ArrayDeque<JobWorkItem> deferredWorkItems = new ArrayDeque<>();
+
+  private int activeExclusiveTaskCount;
+  private TranscriptionDbHelper.UpdateBatch updateBatch;
+
+  /** Batched work items whose results are not written yet. */
+  private final List<JobWorkItem> unappliedWorkItems = new ArrayList<>();
+
   private boolean stopped;
 
   /** Callback used by a task to indicate it has finished processing its work item */
@@ -92,6 +118,41 @@ public class TranscriptionService extends JobService {
     return scheduler.enqueue(builder.build(), workItem) == JobScheduler.RESULT_SUCCESS;
   }
 
+  /**
+   * Schedules transcription of {@code voicemailUris} as a batch: up to {@link
+   * #MAX_CONCURRENT_TASKS} of them are transcribed at the same time and their results are written
+   * together. Used to transcribe old voicemails.
+   *
+   * @return the number of voicemails scheduled
+   */
+  @MainThread
+  public static int scheduleBatchTranscriptionJob(
+      Context context, List<Uri> voicemailUris, PhoneAccountHandle account) {
+    Assert.isMainThread();
+    if (voicemailUris.isEmpty() || !canTranscribeVoicemail(context, account)) {
+      return 0;
+    }
+
+    LogUtil.i(
+        "TranscriptionService.scheduleBatchTranscriptionJob",
+        "scheduling " + voicemailUris.size() + " transcriptions");
+    ComponentName componentName = new ComponentName(context, TranscriptionService.class);
+    JobInfo jobInfo =
+        new JobInfo.Builder(ScheduledJobIds.VVM_TRANSCRIPTION_JOB, componentName)
+            .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+            .build();
+    JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+    int scheduled = 0;
+    for (Uri voicemailUri : voicemailUris) {
+      JobWorkItem workItem = makeWorkItem(voicemailUri, account);
+      workItem.getIntent().putExtra(EXTRA_BATCHED, true);
+      if (scheduler.enqueue(jobInfo, workItem) == JobScheduler.RESULT_SUCCESS) {
+        scheduled++;
+      }
+    }
+    return scheduled;
+  }
+
   private static boolean canTranscribeVoicemail(Context context, PhoneAccountHandle account) {
     if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
       LogUtil.i("TranscriptionService.canTranscribeVoicemail", "not supported by sdk");
@@ -167,11 +228,16 @@ public class TranscriptionService extends JobService {
     LogUtil.i("TranscriptionService.onStopJob", "params: " + params);
     stopped = true;
     Logger.get(this).logImpression(DialerImpression.Type.VVM_TRANSCRIPTION_JOB_STOPPED);
-    if (activeTask != null) {
+    for (TranscriptionTask task : activeTasks.values()) {
       LogUtil.i("TranscriptionService.onStopJob", "cancelling active task");
-      activeTask.cancel();
+      task.cancel();
       Logger.get(this).logImpression(DialerImpression.Type.VVM_TRANSCRIPTION_TASK_CANCELLED);
     }
+    if (updateBatch != null) {
+      // Don't lose the results collected so far. The work items will be delivered again.
+      DialerExecutorComponent.get(this).backgroundExecutor().execute(updateBatch::apply);
+      unappliedWorkItems.clear();
+    }
     return true;
   }
 
@@ -201,20 +267,90 @@ public class TranscriptionService extends JobService {
       LogUtil.i("TranscriptionService.checkForWork", "stopped");
       return false;
     }
-    JobWorkItem workItem = jobParameters.dequeueWork();
-    if (workItem != null) {
-      Assert.checkState(activeTask == null);
-      activeTask =
+    while (activeTasks.size() < MAX_CONCURRENT_TASKS) {
+      JobWorkItem workItem = getNextWorkItem();
+      if (workItem == null) {
+        break;
+      }
+      boolean batched = isBatched(workItem);
+      TranscriptionDbHelper.UpdateBatch taskUpdateBatch = batched ? getUpdateBatch() : null;
+      TranscriptionTask task =
           configProvider.shouldUseSyncApi()
               ? new TranscriptionTaskSync(
-                  this, new Callback(), workItem, getClientFactory(), configProvider)
+                  this,
+                  new Callback(),
+                  workItem,
+                  getClientFactory(),
+                  configProvider,
+                  taskUpdateBatch)
               : new TranscriptionTaskAsync(
-                  this, new Callback(), workItem, getClientFactory(), configProvider);
-      getExecutorService().execute(activeTask);
-      return true;
-    } else {
-      return false;
+                  this,
+                  new Callback(),
+                  workItem,
+                  getClientFactory(),
+                  configProvider,
+                  taskUpdateBatch);
+      if (isExclusive(workItem)) {
+        activeExclusiveTaskCount++;
+      }
+      activeTasks.put(workItem, task);
+      getExecutorService().execute(task);
     }
+    return !activeTasks.isEmpty();
+  }
+
+  /**
+   * Returns the next work item that can be started now, deferring those that have to wait for
+   * another one to finish.
+   */
+  @MainThread
+  private JobWorkItem getNextWorkItem() {
+    if (activeExclusiveTaskCount == 0 && !deferredWorkItems.isEmpty()) {
+      return deferredWorkItems.poll();
+    }
+    JobWorkItem workItem;
+    while ((workItem = jobParameters.dequeueWork()) != null) {
+      if (activeExclusiveTaskCount > 0 && isExclusive(workItem)) {
+        deferredWorkItems.add(workItem);
+      } else {
+        return workItem;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Whether the task of {@code workItem} can't run alongside another such task, because it hands
+   * its polling to the single {@link GetTranscriptReceiver} alarm.
+   */
+  private boolean isExclusive(JobWorkItem workItem) {
+    return !isBatched(workItem) && !configProvider.shouldUseSyncApi();
+  }
+
+  private static boolean isBatched(JobWorkItem workItem) {
+    return workItem.getIntent().getBooleanExtra(EXTRA_BATCHED, false);
+  }
+
+  /** Writes the batched results collected so far, then completes their work items. */
+  @MainThread
+  private void applyUpdateBatch() {
+    List<JobWorkItem> workItems = new ArrayList<>(unappliedWorkItems);
+    unappliedWorkItems.clear();
+    TranscriptionDbHelper.UpdateBatch batch = getUpdateBatch();
+    getExecutorService()
+        .execute(
+            () -> {
+              batch.apply();
+              ThreadUtil.postOnUiThread(
+                  () -> {
+                    if (stopped) {
+                      return;
+                    }
+                    for (JobWorkItem workItem : workItems) {
+                      jobParameters.completeWork(workItem);
+                    }
+                  });
+            });
   }
 
   static Uri getVoicemailUri(JobWorkItem workItem) {
@@ -227,10 +363,10 @@ public class TranscriptionService extends JobService {
 
   private ExecutorService getExecutorService() {
     if (executorService == null) {
-      // The common use case is transcribing a single voicemail so just use a single thread executor
       // The reason we're not using DialerExecutor here is because the transcription task can be
-      // very long running (ie. multiple minutes).
-      executorService = Executors.newSingleThreadExecutor();
+      // very long running (ie. multiple minutes). One more thread than tasks so that writing
+      // batched results doesn't wait for a slot.
+      executorService = Executors.newFixedThreadPool(MAX_CONCURRENT_TASKS + 1);
     }
     return executorService;
   }
@@ -241,12 +377,29 @@ public class TranscriptionService extends JobService {
     public void onWorkCompleted(JobWorkItem completedWorkItem) {
       Assert.isMainThread();
       LogUtil.i("TranscriptionService.Callback.onWorkCompleted", completedWorkItem.toString());
-      activeTask = null;
+      activeTasks.remove(completedWorkItem);
+      if (isExclusive(completedWorkItem)) {
+        activeExclusiveTaskCount--;
+      }
       if (stopped) {
         LogUtil.i("TranscriptionService.Callback.onWorkCompleted", "stopped");
+        if (isBatched(completedWorkItem)) {
+          DialerExecutorComponent.get(TranscriptionService.this)
+              .backgroundExecutor()
+              .execute(getUpdateBatch()::apply);
+        }
+        return;
+      }
+      if (isBatched(completedWorkItem)) {
+        // Completed once its result is written.
+        unappliedWorkItems.add(completedWorkItem);
       } else {
         jobParameters.completeWork(completedWorkItem);
-        checkForWork();
+      }
+      checkForWork();
+      if (!unappliedWorkItems.isEmpty()
+          && (unappliedWorkItems.size() >= UPDATE_BATCH_SIZE || activeTasks.isEmpty())) {
+        applyUpdateBatch();
       }
     }
   }
@@ -267,6 +420,13 @@ public class TranscriptionService extends JobService {
     return configProvider;
   }
 
+  private TranscriptionDbHelper.UpdateBatch getUpdateBatch() {
+    if (updateBatch == null) {
+      updateBatch = new TranscriptionDbHelper.UpdateBatch(this);
+    }
+    return updateBatch;
+  }
+
   private TranscriptionClientFactory getClientFactory() {
     if (clientFactory == null) {
       clientFactory = new TranscriptionClientFactory(this, getConfigProvider());
@@ -19,6 +19,7 @@ import android.app.job.JobWorkItem;
 import android.content.Context;
 import android.net.Uri;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.telecom.PhoneAccountHandle;
 import android.util.Pair;
@@ -57,12 +58,16 @@ public abstract class TranscriptionTask implements Runnable {
 
   private final JobCallback callback;
   private final JobWorkItem workItem;
-  private final TranscriptionClientFactory clientFactory;
+  protected final TranscriptionClientFactory clientFactory;
   protected final Context context;
   protected final Uri voicemailUri;
   protected final PhoneAccountHandle phoneAccountHandle;
   protected final TranscriptionConfigProvider configProvider;
   protected final TranscriptionDbHelper dbHelper;
+  /** Writes the result, possibly as part of a batch. */
+  private final TranscriptionDbHelper resultDbHelper;
+  /** Whether this task is one of a batch, e.g. when transcribing old voicemails. */
+  protected final boolean batched;
   protected ByteString audioData;
   protected AudioFormat encoding;
   protected volatile boolean cancelled;
@@ -77,7 +82,8 @@ public abstract class TranscriptionTask implements Runnable {
       JobCallback callback,
       JobWorkItem workItem,
       TranscriptionClientFactory clientFactory,
-      TranscriptionConfigProvider configProvider) {
+      TranscriptionConfigProvider configProvider,
+      @Nullable TranscriptionDbHelper.UpdateBatch updateBatch) {
     this.context = context;
     this.callback = callback;
     this.workItem = workItem;
@@ -86,6 +92,11 @@ public abstract class TranscriptionTask implements Runnable {
     this.phoneAccountHandle = TranscriptionService.getPhoneAccountHandle(workItem);
     this.configProvider = configProvider;
     dbHelper = new TranscriptionDbHelper(context, voicemailUri);
+    resultDbHelper =
+        updateBatch == null
+            ? dbHelper
+            : new TranscriptionDbHelper(context, voicemailUri, updateBatch);
+    batched = updateBatch != null;
   }
 
   @MainThread
@@ -123,7 +134,7 @@ public abstract class TranscriptionTask implements Runnable {
 
   private void transcribeVoicemail() {
     VvmLog.i(TAG, "transcribeVoicemail");
-    recordResult(context, getTranscription(), dbHelper, cancelled);
+    recordResult(context, getTranscription(), resultDbHelper, cancelled);
   }
 
   protected TranscriptionResponse sendRequest(Request request) {
@@ -17,12 +17,16 @@ package com.android.voicemail.impl.transcribe;
 
 import android.app.job.JobWorkItem;
 import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.util.Pair;
+import com.android.dialer.common.backoff.ExponentialBackoff;
 import com.android.dialer.logging.DialerImpression;
 import com.android.voicemail.VoicemailComponent;
 import com.android.voicemail.impl.VvmLog;
 import com.android.voicemail.impl.transcribe.TranscriptionService.JobCallback;
+import com.android.voicemail.impl.transcribe.grpc.TranscriptionClient;
 import com.android.voicemail.impl.transcribe.grpc.TranscriptionClientFactory;
 import com.android.voicemail.impl.transcribe.grpc.TranscriptionResponseAsync;
 import com.google.internal.communications.voicemailtranscription.v1.DonationPreference;
@@ -39,8 +43,9 @@ import com.google.internal.communications.voicemailtranscription.v1.Transcriptio
  *   <li>client waits appropriate amount of time then begins polling for the result
  * </ol>
  *
- * This implementation blocks until the response or an error is received, even though it is using
- * the asynchronous server API.
+ * This implementation blocks until the upload response or an error is received, then leaves the
+ * polling to {@link GetTranscriptReceiver}. Tasks that are part of a batch poll on their own
+ * thread instead, sharing the service's channel.
  */
 public class TranscriptionTaskAsync extends TranscriptionTask {
   private static final String TAG = "TranscriptionTaskAsync";
@@ -51,14 +56,24 @@ public class TranscriptionTaskAsync extends TranscriptionTask {
       JobWorkItem workItem,
       TranscriptionClientFactory clientFactory,
       TranscriptionConfigProvider configProvider) {
-    super(context, callback, workItem, clientFactory, configProvider);
+    this(context, callback, workItem, clientFactory, configProvider, null);
+  }
+
+  public TranscriptionTaskAsync(
+      Context context,
+      JobCallback callback,
+      JobWorkItem workItem,
+      TranscriptionClientFactory clientFactory,
+      TranscriptionConfigProvider configProvider,
+      @Nullable TranscriptionDbHelper.UpdateBatch updateBatch) {
+    super(context, callback, workItem, clientFactory, configProvider, updateBatch);
   }
 
   @Override
   protected Pair<String, TranscriptionStatus> getTranscription() {
     VvmLog.i(TAG, "getTranscription");
 
-    if (GetTranscriptReceiver.hasPendingAlarm(context)) {
+    if (!batched && GetTranscriptReceiver.hasPendingAlarm(context)) {
       // Don't start a transcription while another is still active
       VvmLog.i(
           TAG,
@@ -85,10 +100,14 @@ public class TranscriptionTaskAsync extends TranscriptionTask {
       return new Pair<>(null, TranscriptionStatus.FAILED_NO_RETRY);
     } else if (uploadResponse.isStatusAlreadyExists()) {
       VvmLog.i(TAG, "getTranscription, transcription already exists.");
+      if (batched) {
+        return pollUntilDone(uploadRequest.getTranscriptionId(), 0);
+      }
       GetTranscriptReceiver.beginPolling(
           context,
           voicemailUri,
           uploadRequest.getTranscriptionId(),
+          dbHelper.getDurationMillis(),
           0,
           configProvider,
           phoneAccountHandle);
@@ -98,10 +117,15 @@ public class TranscriptionTaskAsync extends TranscriptionTask {
       return new Pair<>(null, TranscriptionStatus.FAILED_NO_RETRY);
     } else {
       VvmLog.i(TAG, "getTranscription, begin polling for: " + uploadResponse.getTranscriptionId());
+      if (batched) {
+        return pollUntilDone(
+            uploadResponse.getTranscriptionId(), uploadResponse.getEstimatedWaitMillis());
+      }
       GetTranscriptReceiver.beginPolling(
           context,
           voicemailUri,
           uploadResponse.getTranscriptionId(),
+          dbHelper.getDurationMillis(),
           uploadResponse.getEstimatedWaitMillis(),
           configProvider,
           phoneAccountHandle);
@@ -110,6 +134,52 @@ public class TranscriptionTaskAsync extends TranscriptionTask {
     }
   }
 
+  /**
+   * Polls for the result on this thread, on the same schedule as {@link GetTranscriptReceiver}.
+   * Used in batches, so that each task holds one of the service's bounded slots until its result
+   * is in, instead of all voicemails waiting on the single polling alarm one after another.
+   */
+  private Pair<String, TranscriptionStatus> pollUntilDone(
+      String transcriptId, long estimatedWaitMillis) {
+    long uploadMillis = SystemClock.elapsedRealtime();
+    long audioDurationMillis = dbHelper.getDurationMillis();
+    TranscriptionPollScheduler scheduler = new TranscriptionPollScheduler(context, configProvider);
+    long firstDelayMillis =
+        scheduler.getFirstPollDelayMillis(audioDurationMillis, estimatedWaitMillis);
+    ExponentialBackoff backoff = scheduler.newBackoff(firstDelayMillis);
+    TranscriptionClient client = clientFactory.getClient();
+    long delayMillis = firstDelayMillis;
+    long lastPendingPollMillis = 0;
+    for (int polls = 1; ; polls++) {
+      sleep(delayMillis);
+      if (cancelled || Thread.currentThread().isInterrupted()) {
+        VvmLog.i(TAG, "pollUntilDone, cancelled.");
+        return new Pair<>(null, TranscriptionStatus.FAILED_NO_RETRY);
+      }
+      Pair<String, TranscriptionStatus> result =
+          GetTranscriptReceiver.pollForTranscription(context, client, transcriptId);
+      long pollMillis = SystemClock.elapsedRealtime() - uploadMillis;
+      if (result.first != null || result.second != null) {
+        scheduler.onTranscriptionDone(
+            transcriptId,
+            result.first != null,
+            audioDurationMillis,
+            lastPendingPollMillis,
+            pollMillis,
+            polls);
+        return result;
+      }
+      lastPendingPollMillis = pollMillis;
+      if (!backoff.isInRange()) {
+        VvmLog.i(TAG, "pollUntilDone, too many failures for: " + transcriptId);
+        scheduler.onTranscriptionDone(
+            transcriptId, false, audioDurationMillis, lastPendingPollMillis, pollMillis, polls);
+        return new Pair<>(null, TranscriptionStatus.FAILED_NO_RETRY);
+      }
+      delayMillis = backoff.getNextBackoff();
+    }
+  }
+
   @Override
   protected DialerImpression.Type getRequestSentImpression() {
     return DialerImpression.Type.VVM_TRANSCRIPTION_REQUEST_SENT_ASYNC;
@@ -17,6 +17,7 @@ package com.android.voicemail.impl.transcribe;
 
 import android.app.job.JobWorkItem;
 import android.content.Context;
+import android.support.annotation.Nullable;
 import android.util.Pair;
 import com.android.dialer.logging.DialerImpression;
 import com.android.voicemail.impl.VvmLog;
@@ -36,7 +37,17 @@ public class TranscriptionTaskSync extends TranscriptionTask {
       JobWorkItem workItem,
       TranscriptionClientFactory clientFactory,
       TranscriptionConfigProvider configProvider) {
-    super(context, callback, workItem, clientFactory, configProvider);
+    this(context, callback, workItem, clientFactory, configProvider, null);
+  }
+
+  public TranscriptionTaskSync(
+      Context context,
+      JobCallback callback,
+      JobWorkItem workItem,
+      TranscriptionClientFactory clientFactory,
+      TranscriptionConfigProvider configProvider,
+      @Nullable TranscriptionDbHelper.UpdateBatch updateBatch) {
+    super(context, callback, workItem, clientFactory, configProvider, updateBatch);
   }
 
   @Override